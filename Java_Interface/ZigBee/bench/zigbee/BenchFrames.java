@@ -0,0 +1,67 @@
+package zigbee;
+
+import java.util.Random;
+
+/*
+ * Builds synthetic 0x92 IO sample streams for the benchmarks.
+ */
+final class BenchFrames {
+
+    private BenchFrames() {
+    }
+
+    //Frame data of one 0x92 sample from the given node with the given masks.
+    static int ioSample(byte[] out, long serial, int digitalMask, int analogMask,
+            Random random) {
+        int i = 0;
+
+        out[i++] = (byte)XBee.IO_DATA_SAMPLE_RX_INDICATOR_FRAME;
+        XBee.putLong(out, i, serial);
+        i += 8;
+        out[i++] = (byte)random.nextInt(); //16-bit network address.
+        out[i++] = (byte)random.nextInt();
+        out[i++] = 0x01; //Options, packet acknowledged.
+        out[i++] = 0x01; //Number of samples.
+        out[i++] = (byte)(digitalMask >> 8);
+        out[i++] = (byte)digitalMask;
+        out[i++] = (byte)analogMask;
+        if(digitalMask != 0) {
+            int samples = random.nextInt() & digitalMask;
+            out[i++] = (byte)(samples >> 8);
+            out[i++] = (byte)samples;
+        }
+        for(int channel = 0; channel < 4; channel++) {
+            if((analogMask & (1 << channel)) != 0) {
+                int adc = random.nextInt(1024);
+                out[i++] = (byte)(adc >> 8);
+                out[i++] = (byte)adc;
+            }
+        }
+
+        return i;
+    }
+
+    //Wire stream of count frames from nodes nodes, corrupting the given fraction.
+    static byte[] stream(int count, int nodes, boolean escaped, double corruption,
+            long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[64];
+        byte[] wire = new byte[FrameEncoder.maxEncodedLength(64)];
+        byte[] stream = new byte[count * wire.length];
+        int length = 0;
+
+        for(int f = 0; f < count; f++) {
+            long serial = 0x0013A20040000000L + random.nextInt(nodes);
+            int dataLength = ioSample(data, serial, 0x1CF0, 0x0F, random);
+            int wireLength = FrameEncoder.encode(data, 0, dataLength, escaped, wire, 0);
+            if(random.nextDouble() < corruption)
+                wire[3 + random.nextInt(wireLength - 3)] ^= 0x5A; //Leave the header alone.
+            System.arraycopy(wire, 0, stream, length, wireLength);
+            length += wireLength;
+        }
+
+        byte[] result = new byte[length];
+        System.arraycopy(stream, 0, result, 0, length);
+        return result;
+    }
+}
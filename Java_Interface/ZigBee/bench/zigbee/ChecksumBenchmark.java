@@ -0,0 +1,45 @@
+package zigbee;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Checksum and full frame encoding cost over a range of frame sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    @Param({"8", "20", "64", "128", "256"})
+    int size;
+
+    byte[] data;
+    byte[] wire;
+
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+        wire = new byte[FrameEncoder.maxEncodedLength(size)];
+    }
+
+    @Benchmark
+    public byte checksum() {
+        return FrameEncoder.checksum(data, 0, size);
+    }
+
+    @Benchmark
+    public int encode() {
+        return FrameEncoder.encode(data, 0, size, false, wire, 0);
+    }
+
+    @Benchmark
+    public int encodeEscaped() {
+        return FrameEncoder.encode(data, 0, size, true, wire, 0);
+    }
+}
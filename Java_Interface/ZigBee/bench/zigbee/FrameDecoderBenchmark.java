@@ -0,0 +1,54 @@
+package zigbee;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Frames per second through the frame decoder for clean streams, streams
+ * read in small fragments and streams with 1% corrupted frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    static final int FRAMES = 10000;
+
+    @Param({"clean", "fragmented", "corrupt"})
+    String stream;
+
+    @Param({"false", "true"})
+    boolean escaped;
+
+    byte[] data;
+    int fragment;
+    FrameDecoder decoder;
+    Blackhole blackhole;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        this.blackhole = blackhole;
+        data = BenchFrames.stream(FRAMES, 100, escaped, stream.equals("corrupt") ? 0.01 : 0, 1);
+        fragment = stream.equals("fragmented") ? 7 : data.length; //Odd size splits every frame.
+        decoder = new FrameDecoder(
+            new FrameDecoder.Listener() {
+                public void frameDecoded(byte[] frame, int offset, int length) {
+                    blackhole.consume(frame[offset + length - 1]);
+                }
+            }
+        );
+        decoder.setEscaped(escaped);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decode() {
+        for(int i = 0; i < data.length; i += fragment)
+            decoder.decode(data, i, Math.min(fragment, data.length - i));
+        return decoder.getFramesDecoded();
+    }
+}
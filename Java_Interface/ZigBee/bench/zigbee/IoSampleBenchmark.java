@@ -0,0 +1,85 @@
+package zigbee;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * 0x92 IO sample decode throughput for a range of digital and analog mask
+ * combinations, for the bare sample view, for the full engine path that
+ * also updates the node registry and for the column batch decoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IoSampleBenchmark {
+
+    static final int FRAMES = 1024;
+    static final int FRAME_SIZE = 64;
+
+    @Param({"0x0000", "0x0010", "0x1CF0"})
+    String digitalMask;
+
+    @Param({"0x00", "0x01", "0x0F"})
+    String analogMask;
+
+    byte[] frames = new byte[FRAMES * FRAME_SIZE];
+    int[] lengths = new int[FRAMES];
+    int[] offsets = new int[FRAMES];
+    IoSample sample = new IoSample();
+    ZigBeeEngine engine;
+    CoordinatorPort port;
+    BatchDecoder batchDecoder = new BatchDecoder();
+    SampleBatch batch = new SampleBatch(FRAMES);
+    float[] degrees = new float[FRAMES];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        byte[] data = new byte[FRAME_SIZE];
+        int digital = Integer.decode(digitalMask);
+        int analog = Integer.decode(analogMask);
+
+        for(int f = 0; f < FRAMES; f++) {
+            lengths[f] = BenchFrames.ioSample(data, 0x0013A20040000000L + f % 100, digital,
+                    analog, random);
+            System.arraycopy(data, 0, frames, f * FRAME_SIZE, lengths[f]);
+            offsets[f] = f * FRAME_SIZE;
+        }
+
+        engine = new ZigBeeEngine("bench-trace.log");
+        port = new CoordinatorPort(engine, 0, new MemoryTransport(), false); //Never started.
+        port.setMaxSampleRate(0); //A port that never reads never earns credit.
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int wrap() {
+        int sum = 0;
+        for(int f = 0; f < FRAMES; f++) {
+            if(sample.wrap(frames, f * FRAME_SIZE, lengths[f]))
+                sum += sample.getDigitalSamples() + sample.getAdc(0) + sample.getAdc(3);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int processFrame() {
+        for(int f = 0; f < FRAMES; f++)
+            port.processFrame(frames, f * FRAME_SIZE, lengths[f]);
+        return engine.getRegistry().size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float batch() {
+        batch.clear();
+        batchDecoder.decode(frames, offsets, lengths, FRAMES, 0, batch);
+        batch.convert(3, AdcTables.DEGREES_C, degrees);
+        return degrees[FRAMES - 1];
+    }
+}
@@ -0,0 +1,46 @@
+package zigbee;
+
+/*
+ * Conversions of 10 bit XBee ADC readings, precomputed for all 1024 values
+ * with the same arithmetic as the UI so batch results match what it shows.
+ * The ADC reference is 1.2 V and the temperature sensor gives 10 mV per
+ * degree Celsius.  Fahrenheit is cut to one decimal like the UI field.
+ */
+public final class AdcTables {
+
+    public static final int SIZE = 1024;
+
+    public static final int[] MILLIVOLTS = new int[SIZE];
+    public static final int[] SCALED = new int[SIZE]; //0-102 scale of the UI sliders and bar.
+    public static final float[] DEGREES_C = new float[SIZE];
+    public static final float[] DEGREES_F = new float[SIZE];
+
+    static {
+        for(int adc = 0; adc < SIZE; adc++) {
+            int mv = (adc * 1200) / 1024;
+            float degC = mv / 10.0f;
+            float degF = degC * 1.8f + 32;
+
+            MILLIVOLTS[adc] = mv;
+            SCALED[adc] = (adc * 120) / 1200;
+            DEGREES_C[adc] = degC;
+            DEGREES_F[adc] = (int)(degF * 10) / 10.0f;
+        }
+    }
+
+    private AdcTables() {
+    }
+
+/******************************************************************************************/
+
+    //out[i] = table[adc[i]] for the first count readings.
+    public static void convert(int[] table, short[] adc, int count, int[] out) {
+        for(int i = 0; i < count; i++)
+            out[i] = table[adc[i] & (SIZE - 1)];
+    }
+
+    public static void convert(float[] table, short[] adc, int count, float[] out) {
+        for(int i = 0; i < count; i++)
+            out[i] = table[adc[i] & (SIZE - 1)];
+    }
+}
@@ -0,0 +1,47 @@
+package zigbee;
+
+/*
+ * View of a 0x88 local AT command response.
+ */
+public class AtCommandResponse extends FrameView {
+
+    private static final int FRAME_ID = 1, COMMAND = 2, STATUS = 4, DATA = 5;
+
+    protected int minimumLength() {
+        return DATA;
+    }
+
+    public int getFrameId() {
+        return u8(FRAME_ID);
+    }
+
+    public char getCommand1() {
+        return (char)u8(COMMAND);
+    }
+
+    public char getCommand2() {
+        return (char)u8(COMMAND + 1);
+    }
+
+    //Builds a string, for logging rather than the receive path.
+    public String getCommand() {
+        return command(COMMAND);
+    }
+
+    //Same values as RemoteAtException.
+    public int getStatus() {
+        return u8(STATUS);
+    }
+
+    public int getDataLength() {
+        return length - DATA;
+    }
+
+    public int getData(int index) {
+        return u8(DATA + index);
+    }
+
+    public int copyData(byte[] out, int outOffset) {
+        return copy(DATA, length - DATA, out, outOffset);
+    }
+}
@@ -0,0 +1,136 @@
+package zigbee;
+
+import static zigbee.XBee.*;
+
+import java.io.IOException;
+
+/*
+ * Decodes runs of 0x92 IO sample frames straight into a SampleBatch, for
+ * replays and analytics that never need the per frame listener path.
+ * Nodes are numbered in the order this decoder first sees them, through a
+ * private hash map, so a decoder does not touch the engine's registry and
+ * is meant for one thread.  Frames that are not valid IO samples are
+ * counted and skipped.
+ */
+public class BatchDecoder {
+
+    private final LongIntHashMap nodes = new LongIntHashMap(64);
+    private long[] serials = new long[64];
+    private int nodeCount;
+    private long rejected;
+
+/******************************************************************************************/
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getSerial(int node) {
+        return serials[node];
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+/******************************************************************************************/
+
+    //Decode one frame into the batch.  Returns false if it is not a valid 0x92
+    //frame or the batch is full.
+    public boolean decode(byte[] frame, int offset, int length, long time, SampleBatch batch) {
+        if(batch.isFull())
+            return false;
+
+        if(length <= IO_PAYLOAD_AN_MASK
+                || (frame[offset] & 0xff) != IO_DATA_SAMPLE_RX_INDICATOR_FRAME) {
+            rejected++;
+            return false;
+        }
+
+        int digitalMask = (frame[offset + IO_PAYLOAD_DIG_MASK] & 0xff) << 8
+                | frame[offset + IO_PAYLOAD_DIG_MASK + 1] & 0xff;
+        int analogMask = frame[offset + IO_PAYLOAD_AN_MASK] & 0x0F;
+        int i = offset + IO_PAYLOAD_AN_MASK + 1;
+        int end = i + (digitalMask != 0 ? 2 : 0) + 2 * Integer.bitCount(analogMask);
+        if(end > offset + length) {
+            rejected++;
+            return false;
+        }
+
+        int digitalSamples = 0;
+        if(digitalMask != 0) {
+            digitalSamples = (frame[i] & 0xff) << 8 | frame[i + 1] & 0xff;
+            i += 2;
+        }
+
+        //AD0-AD3 in mask order, unrolled.
+        int adc0 = 0, adc1 = 0, adc2 = 0, adc3 = 0;
+        if((analogMask & 1) != 0) {
+            adc0 = (frame[i] & 0xff) << 8 | frame[i + 1] & 0xff;
+            i += 2;
+        }
+        if((analogMask & 2) != 0) {
+            adc1 = (frame[i] & 0xff) << 8 | frame[i + 1] & 0xff;
+            i += 2;
+        }
+        if((analogMask & 4) != 0) {
+            adc2 = (frame[i] & 0xff) << 8 | frame[i + 1] & 0xff;
+            i += 2;
+        }
+        if((analogMask & 8) != 0)
+            adc3 = (frame[i] & 0xff) << 8 | frame[i + 1] & 0xff;
+
+        batch.add(node(getLong(frame, offset + IO_PAYLOAD_SRC_SER_HI)), time, digitalSamples,
+                adc0, adc1, adc2, adc3);
+        return true;
+    }
+
+    //Decode count frames stored back to back in frames at the given offsets and
+    //lengths, all stamped with time.  Returns how many frames were consumed,
+    //fewer than count only when the batch filled up.
+    public int decode(byte[] frames, int[] offsets, int[] lengths, int count, long time,
+            SampleBatch batch) {
+        for(int f = 0; f < count; f++) {
+            if(batch.isFull())
+                return f;
+            decode(frames, offsets[f], lengths[f], time, batch);
+        }
+        return count;
+    }
+
+    //Fill the batch from the received frames of a capture, stamped with their
+    //capture time in milliseconds.  Returns the number of samples added, 0 once
+    //the capture is exhausted.
+    public int decode(CaptureReader reader, SampleBatch batch) throws IOException {
+        int start = batch.size();
+        long startMillis = reader.getStartMillis();
+        long startNanos = reader.getStartNanos();
+
+        while(!batch.isFull() && reader.next()) {
+            byte[] data = reader.getData();
+            if(reader.getDirection() != CaptureRecorder.RX || reader.getLength() == 0
+                    || (data[0] & 0xff) != IO_DATA_SAMPLE_RX_INDICATOR_FRAME)
+                continue;
+
+            long time = startMillis + (reader.getNanos() - startNanos) / 1000000;
+            decode(data, 0, reader.getLength(), time, batch);
+        }
+
+        return batch.size() - start;
+    }
+
+    private int node(long serial) {
+        int node = nodes.get(serial);
+        if(node != LongIntHashMap.NO_VALUE)
+            return node;
+
+        if(nodeCount == serials.length) {
+            long[] larger = new long[nodeCount * 2];
+            System.arraycopy(serials, 0, larger, 0, nodeCount);
+            serials = larger;
+        }
+        serials[nodeCount] = serial;
+        nodes.put(serial, nodeCount);
+        return nodeCount++;
+    }
+}
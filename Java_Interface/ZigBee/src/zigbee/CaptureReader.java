@@ -0,0 +1,106 @@
+package zigbee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Streams the records of a capture file written by CaptureRecorder.  The
+ * file is read through a fixed buffer so captures of any size can be
+ * walked without allocating per record.
+ */
+public class CaptureReader {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final long startMillis, startNanos;
+    private boolean endOfFile;
+
+    //Current record.
+    private long nanos;
+    private int direction;
+    private int length;
+    private final byte[] data = new byte[0xFFFF];
+
+    public CaptureReader(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        buffer.flip();
+
+        if(!fill(CaptureRecorder.HEADER_LENGTH))
+            throw new IOException(fileName + ": Not A Capture File");
+        for(int i = 0; i < CaptureRecorder.MAGIC.length; i++) {
+            if(buffer.get() != CaptureRecorder.MAGIC[i])
+                throw new IOException(fileName + ": Not A Capture File");
+        }
+        startMillis = buffer.getLong();
+        startNanos = buffer.getLong();
+    }
+
+/******************************************************************************************/
+
+    //Advance to the next record.  Returns false at the end of the capture.
+    public boolean next() throws IOException {
+        if(!fill(CaptureRecorder.RECORD_HEADER_LENGTH))
+            return false;
+
+        nanos = buffer.getLong();
+        direction = buffer.get();
+        length = buffer.getShort() & 0xffff;
+
+        if(!fill(length))
+            return false; //Truncated last record.
+        buffer.get(data, 0, length);
+
+        return true;
+    }
+
+    //Make sure at least count bytes are buffered.
+    private boolean fill(int count) throws IOException {
+        if(buffer.remaining() >= count)
+            return true;
+
+        buffer.compact();
+        while(buffer.position() < count && !endOfFile) {
+            if(channel.read(buffer) < 0)
+                endOfFile = true;
+        }
+        buffer.flip();
+
+        return buffer.remaining() >= count;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+/******************************************************************************************/
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public int getDirection() {
+        return direction;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    //Frame data of the current record, valid until the next call to next().
+    public byte[] getData() {
+        return data;
+    }
+}
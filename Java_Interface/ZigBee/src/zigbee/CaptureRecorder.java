@@ -0,0 +1,186 @@
+package zigbee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Appends received and transmitted frames to a binary capture file for
+ * later replay.  Records are staged in one of two direct buffers, and a
+ * writer thread swaps the filled one for the empty one and appends it
+ * through a FileChannel, once it is half full, every FLUSH_MILLIS, when
+ * flush() is called and on close.  The receive threads only copy their
+ * frame in, so a slow disk never holds up decoding.  If the disk falls so
+ * far behind that both buffers are full, frames are counted as dropped.
+ *
+ * File layout, all values big endian:
+ *   header  "ZBCAP001", 8 byte wall clock ms and 8 byte nanoTime at start
+ *   record  8 byte System.nanoTime(), 1 byte direction, 2 byte length,
+ *           unescaped frame data (frame type through last payload byte)
+ */
+public class CaptureRecorder {
+
+    public static final byte[] MAGIC = {'Z', 'B', 'C', 'A', 'P', '0', '0', '1'};
+    public static final int HEADER_LENGTH = 24, RECORD_HEADER_LENGTH = 11;
+
+    //Direction flags.
+    public static final int RX = 0, TX = 1;
+
+    public static final long FLUSH_MILLIS = 1000;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final Thread thread;
+
+    //Guarded by this.
+    private ByteBuffer filling = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE); //Writer thread's.
+    private long recorded, written; //Bytes staged and bytes in the file.
+    private long records, dropped;
+    private boolean flushRequested, closed;
+    private IOException failure; //First write error, reported to the next caller.
+
+    public CaptureRecorder(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        filling.put(MAGIC);
+        filling.putLong(System.currentTimeMillis());
+        filling.putLong(System.nanoTime());
+        recorded = HEADER_LENGTH;
+
+        thread = new Thread(new Writer(), "CaptureRecorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+/******************************************************************************************/
+
+    //Called from the receive threads, and whichever thread queues a command.
+    //Throws the error of an earlier failed write.
+    public synchronized void record(int direction, byte[] frame, int offset, int length)
+            throws IOException {
+        if(failure != null)
+            throw failure;
+        if(closed)
+            return;
+
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        if(filling.remaining() < recordLength) {
+            dropped++; //The writer is still busy with the other buffer.
+            return;
+        }
+
+        boolean wake = filling.position() < BUFFER_SIZE / 2;
+        filling.putLong(System.nanoTime());
+        filling.put((byte)direction);
+        filling.putShort((short)length);
+        filling.put(frame, offset, length);
+        recorded += recordLength;
+        records++;
+        if(wake && filling.position() >= BUFFER_SIZE / 2)
+            notifyAll();
+    }
+
+    //Wait until everything recorded so far is in the file.
+    public synchronized void flush() throws IOException {
+        long target = recorded;
+        flushRequested = true;
+        notifyAll();
+        try {
+            while(written < target && failure == null && thread.isAlive())
+                wait();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(failure != null)
+            throw failure;
+    }
+
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+            notifyAll(); //The writer empties the buffer and stops.
+        }
+        try {
+            thread.join();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+
+        synchronized(this) {
+            if(failure != null)
+                throw failure;
+        }
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    //Frames not recorded because the disk fell behind.
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+/*************************************Capture Writer**************************************/
+
+    class Writer implements Runnable {
+
+        public void run() {
+            while(true) {
+                ByteBuffer full;
+                boolean stop;
+
+                synchronized(CaptureRecorder.this) {
+                    if(!closed && !flushRequested && filling.position() < BUFFER_SIZE / 2) {
+                        try {
+                            CaptureRecorder.this.wait(FLUSH_MILLIS);
+                        }
+                        catch(InterruptedException e) {
+                            closed = true;
+                        }
+                    }
+
+                    //Swap buffers so recording carries on while this one is written.
+                    full = filling;
+                    filling = spare;
+                    spare = full;
+                    flushRequested = false;
+                    stop = closed;
+                }
+
+                long count = full.position();
+                try {
+                    full.flip();
+                    while(full.hasRemaining())
+                        channel.write(full);
+                }
+                catch(IOException e) {
+                    synchronized(CaptureRecorder.this) {
+                        failure = e;
+                        closed = true;
+                        CaptureRecorder.this.notifyAll();
+                    }
+                    return;
+                }
+                full.clear();
+
+                synchronized(CaptureRecorder.this) {
+                    written += count;
+                    CaptureRecorder.this.notifyAll(); //Wakes flush().
+                }
+                if(stop)
+                    return;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package zigbee;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Passes on only the samples that change something.  Registered as an
+ * EngineListener, it keeps each node's last DIO word and the last
+ * published value of each ADC channel, and calls its ChangeListeners with
+ * a compact delta when a DIO line flips, a channel is switched on or off,
+ * or an ADC value leaves its deadband.
+ *
+ * An ADC channel is published when it moves more than its deadband from
+ * the value last published.  Turning back the other way also has to clear
+ * the hysteresis, so a reading sitting on the edge of the band does not
+ * chatter between two values.  Samples that change nothing cost a few
+ * compares and no allocation.
+ *
+ * Each node's state has its own lock, so receive threads of different
+ * ports only meet on the detector's lock when a node is first sampled.
+ */
+public class ChangeDetector implements EngineListener {
+
+    //Bits of the changed mask passed to ChangeListeners.
+    public static final int DIO_CHANGED = 0xFFFF, ADC_CHANGED = 0xF << 16;
+
+    private static final int ADC_CHANNELS = NodeRegistry.ADC_CHANNELS;
+
+    private final CopyOnWriteArrayList<ChangeListener> listeners =
+            new CopyOnWriteArrayList<ChangeListener>();
+
+    //Deadband of each channel, then hysteresis.  Replaced, not changed, under this.
+    private volatile int[] bands = new int[2 * ADC_CHANNELS];
+
+    //Replaced, not changed, under this.  Null for a node not yet sampled.
+    private volatile Node[] nodes = new Node[16];
+
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder changes = new LongAdder();
+
+    //Bit of the changed mask for an ADC channel.
+    public static int adcChanged(int channel) {
+        return 1 << (16 + channel);
+    }
+
+/******************************************************************************************/
+
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    //ADC counts a channel must move before it is published, and the extra counts
+    //needed to reverse direction.
+    public synchronized void setDeadband(int channel, int counts, int hysteresisCounts) {
+        int[] b = bands.clone();
+        b[channel] = counts;
+        b[ADC_CHANNELS + channel] = hysteresisCounts;
+        bands = b;
+    }
+
+    public synchronized void setDeadband(int counts, int hysteresisCounts) {
+        for(int channel = 0; channel < ADC_CHANNELS; channel++)
+            setDeadband(channel, counts, hysteresisCounts);
+    }
+
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    //Samples passed on as delta events.
+    public long getChanges() {
+        return changes.sum();
+    }
+
+/******************************************************************************************/
+
+    public void nodeDiscovered(int node, long serial) {
+    }
+
+    //Called on the receive threads, which may be several.
+    public void sampleReceived(int node, IoSample sample) {
+        Node[] all = nodes;
+        Node n = node < all.length ? all[node] : null;
+        if(n == null)
+            n = add(node);
+
+        int changed;
+        long packed;
+
+        samples.increment();
+        synchronized(n) {
+            changed = detect(n, sample);
+            if(changed == 0)
+                return;
+
+            packed = PackedSample.pack(n.digitalMask, n.digital, n.analogMask,
+                    n.published[0], n.published[1], n.published[2], n.published[3]);
+        }
+        changes.increment();
+
+        for(ChangeListener listener : listeners)
+            listener.sampleChanged(node, changed, packed);
+    }
+
+    //Update the node's state and return what changed.
+    private int detect(Node n, IoSample sample) {
+        int newDigitalMask = sample.getDigitalMask();
+        int newDigital = sample.getDigitalSamples() & newDigitalMask;
+        int newAnalogMask = sample.getAnalogMask() & 0xF;
+        int[] band = bands;
+        int changed;
+
+        if(!n.sampled) {
+            n.sampled = true;
+            changed = DIO_CHANGED | ADC_CHANGED; //First sample, everything is new.
+        }
+        else {
+            changed = (newDigital ^ n.digital) | (newDigitalMask ^ n.digitalMask);
+            changed |= (newAnalogMask ^ n.analogMask) << 16;
+        }
+
+        n.digitalMask = newDigitalMask;
+        n.digital = newDigital;
+        n.analogMask = newAnalogMask;
+
+        int[] published = n.published;
+        byte[] direction = n.direction;
+        for(int channel = 0; channel < ADC_CHANNELS; channel++) {
+            int value = (newAnalogMask & (1 << channel)) != 0 ? sample.getAdc(channel) : 0;
+
+            if((changed & adcChanged(channel)) != 0) {
+                published[channel] = value; //Switched on or off, or new node.
+                direction[channel] = 0;
+                continue;
+            }
+
+            int move = value - published[channel];
+            if(move == 0)
+                continue;
+
+            int sign = move > 0 ? 1 : -1;
+            int limit = band[channel];
+            if(direction[channel] != 0 && direction[channel] != sign)
+                limit += band[ADC_CHANNELS + channel];
+
+            if(Math.abs(move) > limit) {
+                published[channel] = value;
+                direction[channel] = (byte)sign;
+                changed |= adcChanged(channel);
+            }
+        }
+
+        return changed;
+    }
+
+    //State of a node seen for the first time, unless another port added it.
+    private synchronized Node add(int node) {
+        Node[] all = nodes;
+        if(node >= all.length) {
+            Node[] larger = new Node[Math.max(node + 1, all.length * 2)];
+            System.arraycopy(all, 0, larger, 0, all.length);
+            all = larger;
+        }
+        if(all[node] == null)
+            all[node] = new Node();
+        nodes = all;
+        return all[node];
+    }
+
+/******************************************************************************************/
+
+    //Last DIO word and published ADC values of one node, guarded by itself.
+    static class Node {
+
+        boolean sampled;
+        int digitalMask;
+        int digital;
+        int analogMask;
+        final int[] published = new int[ADC_CHANNELS];
+        final byte[] direction = new byte[ADC_CHANNELS]; //Sign of the last published move.
+    }
+}
@@ -0,0 +1,13 @@
+package zigbee;
+
+/*
+ * Delta events from a ChangeDetector, called on the receive thread of the
+ * port the sample arrived on.  changed marks what moved: DIO lines in bits
+ * 0-15 and ADC channels in bits 16-19, see ChangeDetector.  sample is a
+ * PackedSample of the node's state with ADC values as last published, so
+ * a listener that missed nothing never needs the full sample.
+ */
+public interface ChangeListener {
+
+    void sampleChanged(int node, int changed, long sample);
+}
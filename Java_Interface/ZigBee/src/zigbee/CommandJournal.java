@@ -0,0 +1,529 @@
+package zigbee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/*
+ * Write-ahead journal of remote AT commands sent with a response requested.
+ * A command is appended to the journal file and synced before it goes to a
+ * port, and an acknowledgement record follows once the node answers.
+ * Commands without an acknowledgement are kept, survive a lost connection
+ * or a restart, and are replayed in order whenever a port opens.
+ *
+ * A single journal thread writes whatever records have built up since its
+ * last write with one FileChannel write and one force(), so a burst of
+ * commands costs one sync.  Once the file passes COMPACT_BYTES it is
+ * rewritten with only the unacknowledged commands and swapped in with an
+ * atomic rename, followed by a sync of the directory, so it stays small
+ * however many commands go through it.
+ *
+ * At most MAX_IN_FLIGHT commands are out at once, so a burst stays inside
+ * the frame IDs a port can track.  A node that answers with an error status
+ * has acknowledged the command, it is not replayed.  Timeouts, full queues
+ * and closed ports leave it pending, and it is sent again after RETRY_MILLIS
+ * or when the next port opens.
+ *
+ * Records are RECORD_LENGTH bytes: type, sequence number, serial, network
+ * address, options, command, parameter (-1 for none), padding and a CRC32
+ * of the rest.  Reading stops at the first damaged record, a torn write
+ * from a crash.
+ */
+public class CommandJournal {
+
+    public static final int RECORD_LENGTH = 32;
+    public static final long COMPACT_BYTES = 1 << 20;
+    public static final int MAX_IN_FLIGHT = 128;
+    public static final long RETRY_MILLIS = 1000;
+
+    private static final byte COMMAND = 1, ACK = 2;
+    private static final int BATCH_RECORDS = 1024; //Per write, more waits for the next.
+
+    private final Path path;
+    private FileChannel channel; //Journal thread only once started.
+    private final Thread thread;
+    private ZigBeeEngine engine;
+
+    //Guarded by this.
+    private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    private ByteBuffer records = ByteBuffer.allocate(BATCH_RECORDS * RECORD_LENGTH);
+    private long nextSequence = 1;
+    private long synced; //Commands up to this sequence number are on disk.
+    private int inFlight;
+    private boolean closed;
+    private final CRC32 encodeCrc = new CRC32();
+
+    //Journal thread only.
+    private ByteBuffer writing = ByteBuffer.allocate(BATCH_RECORDS * RECORD_LENGTH);
+    private final CRC32 crc = new CRC32();
+    private long size;
+
+    private volatile long syncs, compactions;
+
+    //Open or create the journal and recover the commands still pending in it.
+    public CommandJournal(String fileName) throws IOException {
+        path = Paths.get(fileName);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        recover();
+        compact();
+
+        thread = new Thread(new Writer(), "CommandJournal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+/******************************************************************************************/
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    public long getSyncs() {
+        return syncs;
+    }
+
+    public long getCompactions() {
+        return compactions;
+    }
+
+    //Called by ZigBeeEngine.setJournal().
+    synchronized void attach(ZigBeeEngine engine) {
+        this.engine = engine;
+        notifyAll(); //Recovered commands can go as soon as a port is open.
+    }
+
+    //Journal a command.  The future completes with the node's answer, however many
+    //reconnects that takes, or fails with its error status.
+    public synchronized CompletableFuture<byte[]> submit(long serial, int netAddress,
+            int options, char c1, char c2, int parameter) {
+        Entry entry = new Entry(nextSequence++, serial, netAddress, options, c1, c2,
+                parameter);
+        if(closed) {
+            entry.future.completeExceptionally(new IOException("Journal closed"));
+            return entry.future;
+        }
+
+        pending.put(entry.sequence, entry);
+        append(COMMAND, entry);
+        return entry.future;
+    }
+
+    //Send every command that is synced and not already out, oldest first.  Called
+    //when a port opens.
+    public synchronized void replay() {
+        for(Entry entry : pending.values()) {
+            entry.replay = true;
+            entry.retryAt = 0;
+        }
+        notifyAll();
+    }
+
+    //Write and sync what is queued, then stop.  Pending commands stay in the file.
+    public void close() throws IOException {
+        synchronized(this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+/******************************************************************************************/
+
+    //Caller holds the lock on this.
+    private void append(byte type, Entry entry) {
+        if(records.remaining() < RECORD_LENGTH) {
+            ByteBuffer larger = ByteBuffer.allocate(records.capacity() * 2);
+            records.flip();
+            larger.put(records);
+            records = larger;
+        }
+
+        encode(type, entry, records);
+        notifyAll();
+    }
+
+    //Caller holds the lock on this.
+    private void encode(byte type, Entry entry, ByteBuffer out) {
+        int start = out.position();
+        out.put(type);
+        out.putLong(entry.sequence);
+        out.putLong(entry.serial);
+        out.putShort((short)entry.netAddress);
+        out.put((byte)entry.options);
+        out.put((byte)entry.c1);
+        out.put((byte)entry.c2);
+        out.putShort((short)entry.parameter);
+        out.putInt(0);
+
+        encodeCrc.reset();
+        encodeCrc.update(out.array(), out.arrayOffset() + start, RECORD_LENGTH - 4);
+        out.putInt((int)encodeCrc.getValue());
+    }
+
+    //Node answered, or failed for good.  Runs on a port's reader thread.
+    private synchronized void acknowledged(Entry entry) {
+        landed(entry);
+        if(pending.remove(entry.sequence) != null && !closed)
+            append(ACK, entry);
+    }
+
+    //Timed out or not sent, try again later.  Runs on whichever thread failed it.
+    private synchronized void retry(Entry entry) {
+        landed(entry);
+        entry.replay = true;
+        entry.retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+        notifyAll();
+    }
+
+    //Caller holds the lock on this.
+    private void landed(Entry entry) {
+        if(entry.inFlight) {
+            entry.inFlight = false;
+            inFlight--;
+            notifyAll(); //Room for another command.
+        }
+    }
+
+    private void send(final Entry entry) {
+        engine.sendRemoteAtNow(entry.serial, entry.netAddress, entry.options, entry.c1,
+                entry.c2, entry.parameter).whenComplete(
+            new BiConsumer<byte[], Throwable>() {
+                public void accept(byte[] response, Throwable failure) {
+                    if(failure == null) {
+                        acknowledged(entry);
+                        entry.future.complete(response);
+                    }
+                    else if(failure instanceof RemoteAtException
+                            && ((RemoteAtException)failure).getStatus() > 0) {
+                        acknowledged(entry); //The node refused it, sending again won't help.
+                        entry.future.completeExceptionally(failure);
+                    }
+                    else
+                        retry(entry);
+                }
+            }
+        );
+    }
+
+/******************************************************************************************/
+
+    //Rebuild the pending set from the file, dropping a damaged tail.
+    private void recover() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * RECORD_LENGTH);
+        long position = 0;
+        channel.position(0);
+
+        read:
+        while(channel.read(buffer) > 0 || buffer.position() > 0) {
+            buffer.flip();
+            if(buffer.remaining() < RECORD_LENGTH && channel.position() == channel.size())
+                break; //Partial record at the end.
+
+            while(buffer.remaining() >= RECORD_LENGTH) {
+                int start = buffer.position();
+                crc.reset();
+                crc.update(buffer.array(), start, RECORD_LENGTH - 4);
+                if(buffer.getInt(start + RECORD_LENGTH - 4) != (int)crc.getValue())
+                    break read;
+
+                byte type = buffer.get();
+                long sequence = buffer.getLong();
+                long serial = buffer.getLong();
+                int netAddress = buffer.getShort() & 0xffff;
+                int options = buffer.get() & 0xff;
+                char c1 = (char)(buffer.get() & 0xff);
+                char c2 = (char)(buffer.get() & 0xff);
+                int parameter = buffer.getShort();
+                buffer.position(start + RECORD_LENGTH);
+                position += RECORD_LENGTH;
+
+                if(type == COMMAND)
+                    pending.put(sequence, new Entry(sequence, serial, netAddress, options,
+                            c1, c2, parameter));
+                else
+                    pending.remove(sequence);
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            }
+            buffer.compact();
+        }
+
+        for(Entry entry : pending.values())
+            entry.replay = true;
+        synced = nextSequence - 1;
+        size = position;
+    }
+
+    //Rewrite the file with only the pending commands.  Journal thread, or the
+    //constructor before it starts.  Nothing changes if the rewrite fails.
+    private void compact() throws IOException {
+        Path temporary = Paths.get(path + ".tmp");
+        ByteBuffer buffer;
+        int covered;
+        long sequence;
+        synchronized(this) {
+            buffer = ByteBuffer.allocate(Math.max(1, pending.size()) * RECORD_LENGTH);
+            for(Entry entry : pending.values())
+                encode(COMMAND, entry, buffer);
+            //Records queued before this point are either in the rewrite or acks of
+            //commands that are not, so they can go once it is in place.
+            covered = records.position();
+            sequence = nextSequence - 1;
+        }
+        buffer.flip();
+
+        FileChannel rewritten = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            while(buffer.hasRemaining())
+                rewritten.write(buffer);
+            rewritten.force(true);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e) {
+            rewritten.close();
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        channel.close();
+        channel = rewritten;
+        size = channel.position();
+
+        //Until the directory is synced a crash can undo the rename, and bring back
+        //acks and commands that the rewrite dropped.  If it fails, the covered
+        //records stay queued and go to the new file again.
+        syncDirectory();
+        compactions++;
+
+        synchronized(this) {
+            records.flip();
+            records.position(covered);
+            records.compact();
+            synced = Math.max(synced, sequence);
+        }
+    }
+
+    //Make a rename in the journal's directory durable.  Some platforms cannot open a
+    //directory, there the file system decides when the rename is on disk.
+    private void syncDirectory() throws IOException {
+        FileChannel directory;
+        try {
+            directory = FileChannel.open(path.toAbsolutePath().getParent(),
+                    StandardOpenOption.READ);
+        }
+        catch(IOException e) {
+            return;
+        }
+        try {
+            directory.force(true);
+        }
+        finally {
+            directory.close();
+        }
+    }
+
+    //A write failed, put the batch back in front of what was queued since and
+    //cut the file back to where the batch started.  Journal thread only.
+    private void requeue(long start) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+        }
+        catch(IOException e) {
+            e.printStackTrace(); //Recovery stops at the torn record.
+        }
+        size = start;
+
+        writing.rewind();
+        synchronized(this) {
+            ByteBuffer merged = ByteBuffer.allocate(Math.max(records.capacity(),
+                    writing.remaining() + records.position()));
+            merged.put(writing);
+            records.flip();
+            merged.put(records);
+            records = merged;
+        }
+        writing.clear();
+    }
+
+/*************************************Journal Writer**************************************/
+
+    class Writer implements Runnable {
+
+        public void run() {
+            while(true) {
+                boolean stop;
+                long batch;
+                Entry[] ready;
+
+                synchronized(CommandJournal.this) {
+                    while(!closed && records.position() == 0 && !replayDue())
+                        waitForWork(nextRetry());
+
+                    //Swap buffers so appenders carry on while this one is written.
+                    ByteBuffer full = records;
+                    records = writing;
+                    writing = full;
+                    batch = nextSequence - 1;
+                    stop = closed;
+                }
+
+                long start = size;
+                try {
+                    writing.flip();
+                    if(writing.hasRemaining()) { //Not when woken for a replay or retry.
+                        while(writing.hasRemaining())
+                            size += channel.write(writing);
+                        channel.force(false); //One sync for everything in this batch.
+                        syncs++;
+                    }
+                }
+                catch(IOException e) {
+                    //Nothing in the batch counts as synced, so none of it is sent.
+                    e.printStackTrace();
+                    requeue(start);
+                    if(stop)
+                        return;
+                    synchronized(CommandJournal.this) {
+                        waitForWork(RETRY_MILLIS);
+                    }
+                    continue;
+                }
+
+                writing.clear();
+                synchronized(CommandJournal.this) {
+                    synced = Math.max(synced, batch);
+                }
+
+                try {
+                    if(size > COMPACT_BYTES)
+                        compact();
+                }
+                catch(IOException e) {
+                    e.printStackTrace(); //The file keeps growing until a rewrite works.
+                }
+
+                if(stop)
+                    return;
+
+                //Everything appended so far is on disk, send what is due.
+                synchronized(CommandJournal.this) {
+                    ready = sendable();
+                }
+                for(Entry entry : ready)
+                    send(entry);
+            }
+        }
+
+        //Commands marked for sending while a port is open.  Caller holds the lock.
+        private boolean replayDue() {
+            if(engine == null || !engine.isOpen() || inFlight >= MAX_IN_FLIGHT)
+                return false;
+            long now = System.currentTimeMillis();
+            for(Entry entry : pending.values())
+                if(due(entry, now))
+                    return true;
+            return false;
+        }
+
+        //Synced, not out now, and new or marked for replay and past its retry time.
+        private boolean due(Entry entry, long now) {
+            return entry.sequence <= synced && !entry.inFlight
+                    && (entry.replay || entry.sent == 0) && now >= entry.retryAt;
+        }
+
+        //Milliseconds until the earliest retry, 0 to wait for a notify.  Caller
+        //holds the lock.
+        private long nextRetry() {
+            if(engine == null || !engine.isOpen() || inFlight >= MAX_IN_FLIGHT)
+                return 0;
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            for(Entry entry : pending.values())
+                if(entry.replay && !entry.inFlight && entry.retryAt > now)
+                    next = Math.min(next, entry.retryAt);
+            return next == Long.MAX_VALUE ? 0 : next - now;
+        }
+
+        //Caller holds the lock.
+        private Entry[] sendable() {
+            if(engine == null || !engine.isOpen())
+                return new Entry[0];
+
+            int count = 0;
+            long now = System.currentTimeMillis();
+            Entry[] ready = new Entry[Math.max(0, MAX_IN_FLIGHT - inFlight)];
+            Iterator<Entry> entries = pending.values().iterator();
+            while(count < ready.length && entries.hasNext()) {
+                Entry entry = entries.next();
+                if(due(entry, now)) {
+                    entry.replay = false;
+                    entry.sent++;
+                    entry.inFlight = true;
+                    inFlight++;
+                    ready[count++] = entry;
+                }
+            }
+
+            Entry[] result = new Entry[count];
+            System.arraycopy(ready, 0, result, 0, count);
+            return result;
+        }
+
+        private void waitForWork(long millis) {
+            try {
+                CommandJournal.this.wait(millis);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closed = true;
+            }
+        }
+    }
+
+/******************************************************************************************/
+
+    static class Entry {
+
+        final long sequence;
+        final long serial;
+        final int netAddress, options;
+        final char c1, c2;
+        final int parameter;
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+        //Guarded by the journal.
+        int sent; //Times handed to a port.
+        boolean inFlight, replay;
+        long retryAt; //Not sent again before this time.
+
+        Entry(long sequence, long serial, int netAddress, int options, char c1, char c2,
+                int parameter) {
+            this.sequence = sequence;
+            this.serial = serial;
+            this.netAddress = netAddress;
+            this.options = options;
+            this.c1 = c1;
+            this.c2 = c2;
+            this.parameter = parameter;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package zigbee;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Bounded lock-free multi-producer, single-consumer queue of outbound frames.
+ * Any thread may offer commands; the serial writer thread takes them and
+ * parks while the queue is empty, so a command goes out as soon as it is
+ * queued.  A full queue rejects the offer instead of overwriting anything.
+ */
+public class CommandQueue {
+
+    private final AtomicReferenceArray<OutboundFrame> slots;
+    private final int capacity;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(); //Next slot claimed by a producer.
+    private volatile long head; //Next slot read by the consumer.
+
+    private volatile Thread waiter; //Consumer thread while it is parked.
+    private volatile boolean closed;
+
+    //Queue metrics.
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile long sent, totalLatencyNanos, maxLatencyNanos, lastLatencyNanos;
+
+    //Capacity is rounded up to a power of two.
+    public CommandQueue(int capacity) {
+        int size = 1;
+        while(size < capacity)
+            size <<= 1;
+
+        this.capacity = size;
+        mask = size - 1;
+        slots = new AtomicReferenceArray<OutboundFrame>(size);
+    }
+
+/******************************************************************************************/
+
+    //Returns false if the queue is full or closed.
+    public boolean offer(OutboundFrame frame) {
+        while(!closed) {
+            long t = tail.get();
+            if(t - head >= capacity) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if(tail.compareAndSet(t, t + 1)) {
+                //A full volatile store, so it cannot pass the read of waiter below
+                //while take() stores waiter and then reads the slot.
+                slots.set((int)t & mask, frame);
+                Thread w = waiter;
+                if(w != null)
+                    LockSupport.unpark(w);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    //Queue every frame in order, or none of them if the queue has no room for them
+    //all or is closed.  The slots are claimed together, so no other producer's
+    //frame lands between them.
+    public boolean offer(OutboundFrame[] frames) {
+        int count = frames.length;
+        while(!closed) {
+            long t = tail.get();
+            if(t - head + count > capacity) {
+                rejected.addAndGet(count);
+                return false;
+            }
+            if(tail.compareAndSet(t, t + count)) {
+                for(int i = 0; i < count; i++)
+                    slots.set((int)(t + i) & mask, frames[i]); //Full stores, see offer().
+                Thread w = waiter;
+                if(w != null)
+                    LockSupport.unpark(w);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    //Blocks until a frame is available.  Returns null once the queue is closed.
+    public OutboundFrame take() {
+        while(true) {
+            OutboundFrame frame = poll();
+            if(frame != null)
+                return frame;
+            if(closed)
+                return null;
+
+            waiter = Thread.currentThread();
+            if(slots.get((int)head & mask) == null && !closed)
+                LockSupport.park(this);
+            waiter = null;
+        }
+    }
+
+    //Consumer side only.
+    public OutboundFrame poll() {
+        long h = head;
+        int index = (int)h & mask;
+        OutboundFrame frame = slots.get(index);
+
+        if(frame != null) {
+            slots.lazySet(index, null);
+            head = h + 1;
+        }
+
+        return frame;
+    }
+
+    //Wakes the consumer and refuses any further offers.
+    public void close() {
+        closed = true;
+        Thread w = waiter;
+        if(w != null)
+            LockSupport.unpark(w);
+    }
+
+    //Take offers again after close(), dropping whatever was left.  Only while
+    //there is no consumer, before a port starts its writer again.
+    void reopen() {
+        while(poll() != null)
+            ;
+        closed = false;
+    }
+
+/******************************************************************************************/
+
+    //Called by the consumer once a frame has been written to the port.
+    public void frameSent(OutboundFrame frame) {
+        long latency = System.nanoTime() - frame.getCreatedNanos();
+
+        sent++;
+        totalLatencyNanos += latency;
+        lastLatencyNanos = latency;
+        if(latency > maxLatencyNanos)
+            maxLatencyNanos = latency;
+    }
+
+    public int getDepth() {
+        long h = head; //Read head first so the depth is never negative.
+        return (int)(tail.get() - h);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getLastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    public long getAverageLatencyNanos() {
+        long count = sent;
+        return count == 0 ? 0 : totalLatencyNanos / count;
+    }
+}
@@ -0,0 +1,627 @@
+package zigbee;
+
+import static zigbee.XBee.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * One coordinator connected to an engine.  Each port has its own transport,
+ * decoder, frame views, command queue and remote AT frame IDs, so ports only
+ * meet in the engine's shared registry, statistics and listeners.
+ *
+ * A port either runs its own reader and writer threads, or, when the
+ * engine is event driven and the transport is an EventTransport, reads
+ * when the transport reports data and writes queued commands on the
+ * shared IoReactor thread, so an idle port holds no thread at all.
+ *
+ * A sample budget limits how many IO samples a second the port passes on
+ * to the shared structures.  Samples over the budget are counted and
+ * dropped, so a noisy network cannot starve the other ports.  Command
+ * responses and status frames are never dropped.  The default budget,
+ * DEFAULT_MAX_SAMPLE_RATE, is far above what one 250 kbit/s network can
+ * carry, under a thousand samples a second, so only a runaway source such
+ * as a looping bridge or a full speed replay ever reaches it.
+ *
+ * When the engine reconnects lost ports, a read or write error or the end
+ * of the stream closes the transport but not the port.  The same port
+ * opens its transport again after RECONNECT_MIN_MILLIS, doubling the wait
+ * after every failed attempt up to RECONNECT_MAX_MILLIS, and keeps its
+ * index, decoder counters and sample budget meanwhile.  reconnectNow()
+ * skips the wait, for when the device is known to be back.
+ */
+public class CoordinatorPort {
+
+    public static final long RECONNECT_MIN_MILLIS = 50, RECONNECT_MAX_MILLIS = 5000;
+
+    //Samples a second each port passes on unless set otherwise.
+    public static final int DEFAULT_MAX_SAMPLE_RATE = 20000;
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    //Reconnect attempts of every port, opening a serial port can block for seconds.
+    private static final ScheduledThreadPoolExecutor reconnects =
+            new ScheduledThreadPoolExecutor(1,
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Reconnect");
+                t.setDaemon(true);
+                return t;
+            }
+        }
+    );
+
+    //Frame types without a decoder are counted and dropped.
+    private static final FrameHandler IGNORE = new FrameHandler() {
+        public void handle(byte[] frame, int offset, int length) {
+        }
+    };
+
+    private final ZigBeeEngine engine;
+    private final int index;
+    private final Transport transport;
+    private final boolean escaped; //API mode 2 framing.
+    private final CommandQueue commandQueue;
+    private final RemoteAtRequests requests = new RemoteAtRequests(this);
+    private final FrameHandler[] handlers = new FrameHandler[256]; //Indexed by frame type.
+
+    private final FrameDecoder decoder = new FrameDecoder(
+        new FrameDecoder.Listener() {
+            public void frameDecoded(byte[] frame, int offset, int length) {
+                engine.frameReceived(frame, offset, length);
+                processFrame(frame, offset, length);
+            }
+        }
+    );
+
+    //Views reused for every frame of their type, reader thread only.
+    private final IoSample sample = new IoSample();
+    private final ReceivePacket receivePacket = new ReceivePacket();
+    private final TransmitStatus transmitStatus = new TransmitStatus();
+    private final AtCommandResponse atResponse = new AtCommandResponse();
+    private final RemoteAtResponse remoteAtResponse = new RemoteAtResponse();
+    private final ModemStatus modemStatus = new ModemStatus();
+    private final NodeIdentification nodeIdentification = new NodeIdentification();
+    private final LongIntHashMap nodes = new LongIntHashMap(64); //Serials seen to node numbers.
+
+    //Sample budget, 0 for none.  Credit is in billionths of a sample so reads
+    //a few microseconds apart still earn it, and is refilled once per read.
+    private volatile int maxSampleRate = DEFAULT_MAX_SAMPLE_RATE;
+    private long credit;
+    private long refillNanos;
+    private volatile long shedSamples;
+
+    private volatile boolean finished = true;
+
+    //Reconnection, guarded by this.
+    private boolean stopped; //Closed by close(), never reconnects.
+    private boolean events;
+    private ScheduledFuture<?> reconnect; //Next attempt, null when connected.
+    private long reconnectDelay = RECONNECT_MIN_MILLIS;
+    private Thread reader, writer;
+    private volatile long reconnectCount;
+
+    //Event driven I/O, null reactor when the port has its own threads.
+    private IoReactor reactor;
+    private ByteBuffer readBuffer;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    //Remote AT request under construction, guarded by this.
+    private final byte[] txData = new byte[32];
+    private final byte[] txWire = new byte[FrameEncoder.maxEncodedLength(32)];
+
+    CoordinatorPort(ZigBeeEngine engine, int index, Transport transport, boolean escaped) {
+        this.engine = engine;
+        this.index = index;
+        this.transport = transport;
+        this.escaped = escaped;
+        commandQueue = new CommandQueue(ZigBeeEngine.COMMAND_QUEUE_SIZE);
+        decoder.setEscaped(escaped);
+        installHandlers();
+    }
+
+/******************************************************************************************/
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return transport.getName();
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    public CommandQueue getCommandQueue() {
+        return commandQueue;
+    }
+
+    public boolean isOpen() {
+        return !finished;
+    }
+
+    //True while the port is lost and waiting to open its transport again.
+    public synchronized boolean isReconnecting() {
+        return reconnect != null;
+    }
+
+    //Times the transport has been opened again after it was lost.
+    public long getReconnects() {
+        return reconnectCount;
+    }
+
+    //Most IO samples a second passed on to the engine, 0 for no limit.
+    public void setMaxSampleRate(int samplesPerSecond) {
+        maxSampleRate = samplesPerSecond;
+    }
+
+    public long getShedSamples() {
+        return shedSamples;
+    }
+
+    public int getCommandsInFlight() {
+        return requests.getInFlight();
+    }
+
+    void setCommandTimeout(long timeoutMillis, int retries) {
+        requests.setTimeout(timeoutMillis, retries);
+    }
+
+/******************************************************************************************/
+
+    //Open the transport and start reading, on the shared reactor if events is set
+    //and the transport supports it.
+    synchronized void start(boolean events) throws IOException {
+        this.events = events;
+        transport.open();
+        finished = false;
+
+        if(events && transport instanceof EventTransport) {
+            reactor = IoReactor.getShared();
+            flushScheduled.set(false); //A flush left on a failed reactor never runs.
+            readBuffer = newReadBuffer();
+            refillNanos = System.nanoTime() - 1000000000L; //Start with a full second.
+            try {
+                ((EventTransport)transport).startEvents(reactor, new Runnable() {
+                    public void run() {
+                        readAvailable();
+                    }
+                });
+            }
+            catch(IOException e) {
+                disconnect();
+                throw e;
+            }
+            return;
+        }
+
+        String name = transport.getName();
+        reader = new Thread(new SerialReader(), "SerialReader " + name);
+        writer = new Thread(new SerialWriter(), "SerialWriter " + name);
+        reader.start();
+        writer.start();
+    }
+
+    public boolean isEventDriven() {
+        return reactor != null;
+    }
+
+    //Close for good, a pending reconnect is cancelled.
+    public synchronized void close() {
+        stopped = true;
+        if(reconnect != null) {
+            reconnect.cancel(false);
+            reconnect = null;
+        }
+        disconnect();
+    }
+
+    private synchronized void disconnect() {
+        if(finished)
+            return;
+
+        finished = true;
+        commandQueue.close(); //Wake the writer so it exits.
+        transport.close(); //Unblocks the reader.
+        requests.closed();
+        engine.portClosed(this);
+    }
+
+    //The transport failed or ended.  Reconnect if the engine asks for it, except
+    //after the end of a replay, which has simply run out.
+    void lost(boolean endOfStream) {
+        boolean retry = engine.isReconnect()
+                && !(endOfStream && transport instanceof ReplayTransport);
+
+        synchronized(this) {
+            if(stopped || reconnect != null)
+                return;
+            if(!retry)
+                stopped = true;
+            disconnect();
+            if(!stopped)
+                scheduleReconnect(reconnectDelay);
+        }
+    }
+
+    //Try to open the transport again at once, for when the device has come back.
+    public synchronized void reconnectNow() {
+        if(reconnect == null)
+            return;
+
+        reconnect.cancel(false);
+        reconnectDelay = RECONNECT_MIN_MILLIS;
+        scheduleReconnect(0);
+    }
+
+    //Caller holds the lock on this.
+    private void scheduleReconnect(long delay) {
+        reconnect = reconnects.schedule(
+            new Runnable() {
+                public void run() {
+                    reconnect();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    //One attempt, on the reconnect thread.
+    private void reconnect() {
+        Thread oldReader, oldWriter;
+        synchronized(this) {
+            if(stopped || reconnect == null)
+                return;
+            oldReader = reader;
+            oldWriter = writer;
+        }
+
+        //The old threads must be gone before the queue gets a new consumer.
+        try {
+            if(oldReader != null)
+                oldReader.join(RECONNECT_MAX_MILLIS);
+            if(oldWriter != null)
+                oldWriter.join(RECONNECT_MAX_MILLIS);
+        }
+        catch(InterruptedException e) {
+            return;
+        }
+
+        synchronized(this) {
+            if(stopped || reconnect == null || !finished)
+                return;
+
+            try {
+                if((oldReader != null && oldReader.isAlive())
+                        || (oldWriter != null && oldWriter.isAlive()))
+                    throw new IOException(transport.getName() + " threads still running");
+                commandQueue.reopen();
+                decoder.reset(); //Drop a frame cut off by the loss.
+                start(events);
+            }
+            catch(IOException e) {
+                finished = true;
+                commandQueue.close();
+                transport.close();
+                reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_MAX_MILLIS);
+                scheduleReconnect(reconnectDelay);
+                return;
+            }
+
+            reconnect = null;
+            reconnectDelay = RECONNECT_MIN_MILLIS;
+            reconnectCount++;
+        }
+        engine.portReopened(this);
+    }
+
+/******************************************************************************************/
+
+    //Queue a remote AT command with a one byte parameter, no response is requested.
+    public synchronized boolean sendRemoteAt(long serial, int netAddress, int options,
+            char c1, char c2, int parameter) {
+        if(finished)
+            return false;
+
+        return queued(commandQueue.offer(encodeRemoteAt(0, serial, netAddress, options,
+                c1, c2, parameter)));
+    }
+
+    //Queue one command per DIO line set in mask, driving it to the matching bit of
+    //values, with only the highest line applying the changes.  No responses are
+    //requested.  Either every command is queued or none is, so a full queue never
+    //leaves deferred changes on the node for an unrelated command to apply.
+    public synchronized boolean sendDigitalOutputs(long serial, int netAddress, int mask,
+            int values) {
+        if(finished)
+            return false;
+
+        OutboundFrame[] frames = new OutboundFrame[Integer.bitCount(mask)];
+        int last = 31 - Integer.numberOfLeadingZeros(mask);
+        int count = 0;
+        for(int dio = 0; dio <= last; dio++) {
+            if((mask & 1 << dio) == 0)
+                continue;
+            String command = dioCommand(dio);
+            frames[count++] = encodeRemoteAt(0, serial, netAddress,
+                    dio == last ? RAT_OPTION_APPLY_CHANGES : RAT_OPTION_NONE,
+                    command.charAt(0), command.charAt(1),
+                    (values & 1 << dio) != 0 ? DIO_OUTPUT_HIGH : DIO_OUTPUT_LOW);
+        }
+        return queued(commandQueue.offer(frames));
+    }
+
+    //Queue a remote AT command with a frame ID from this port, see ZigBeeEngine.
+    public CompletableFuture<byte[]> sendRemoteAtAsync(long serial, int netAddress,
+            int options, char c1, char c2, int parameter) {
+        RemoteAtRequests.Request request = new RemoteAtRequests.Request(serial, netAddress,
+                options, c1, c2, parameter);
+
+        if(requests.claim(request) != 0) {
+            synchronized(this) {
+                if(!finished) {
+                    OutboundFrame frame = encodeRemoteAt(request.id, serial, netAddress,
+                            options, c1, c2, parameter);
+                    requests.sending(request);
+                    if(queued(commandQueue.offer(frame)))
+                        return request.future;
+                }
+            }
+        }
+
+        requests.notSent(request);
+        return request.future;
+    }
+
+    //Send a request again after a response timeout.  The frame is encoded afresh
+    //so the retry is traced and captured and its latency starts now.
+    synchronized void resend(RemoteAtRequests.Request request) {
+        if(finished)
+            return;
+
+        OutboundFrame frame = encodeRemoteAt(request.id, request.serial, request.netAddress,
+                request.options, request.c1, request.c2, request.parameter);
+        request.sentNanos = System.nanoTime();
+        queued(commandQueue.offer(frame)); //A full queue just costs this attempt.
+    }
+
+    //Event driven ports write on the reactor, at most one flush is pending at once.
+    private boolean queued(boolean offered) {
+        if(offered && reactor != null && flushScheduled.compareAndSet(false, true))
+            reactor.execute(flush);
+        return offered;
+    }
+
+    //Build a remote AT request.  Caller holds the lock on this.
+    private OutboundFrame encodeRemoteAt(int frameId, long serial, int netAddress,
+            int options, char c1, char c2, int parameter) {
+        txData[RAT_FRAME_TYPE] = (byte)REMOTE_AT_COMMAND_REQUEST_FRAME;
+        txData[RAT_FRAME_ID] = (byte)frameId; //0 requests no response.
+        putLong(txData, RAT_DEST_SER, serial);
+        txData[RAT_DEST_NET_ADR] = (byte)(netAddress >> 8);
+        txData[RAT_DEST_NET_ADR + 1] = (byte)netAddress;
+        txData[RAT_OPTIONS] = (byte)options;
+        txData[RAT_COMMAND] = (byte)c1;
+        txData[RAT_COMMAND + 1] = (byte)c2;
+        txData[RAT_PARAMETER] = (byte)parameter;
+        int length = parameter < 0 ? RAT_PARAMETER : RAT_PARAMETER + 1;
+
+        engine.frameSent(txData, 0, length);
+
+        int wireLength = FrameEncoder.encode(txData, 0, length, escaped, txWire, 0);
+        return new OutboundFrame(txWire, 0, wireLength);
+    }
+
+/******************************************************************************************/
+
+    void processFrame(byte[] frame, int offset, int length) {
+        int frameType = frame[offset] & 0xff;
+        engine.getMetrics().frameReceived(frameType);
+        handlers[frameType].handle(frame, offset, length);
+    }
+
+    //Refill the sample budget for the time since the last read.
+    private void refill(long now) {
+        int rate = maxSampleRate;
+        if(rate <= 0)
+            return;
+
+        long elapsed = Math.min(now - refillNanos, 1000000000L);
+        credit = Math.min(rate * 1000000000L, credit + elapsed * rate);
+        refillNanos = now;
+    }
+
+    private void installHandlers() {
+        Arrays.fill(handlers, IGNORE);
+
+        handlers[IO_DATA_SAMPLE_RX_INDICATOR_FRAME] = new FrameHandler() {
+            public void handle(byte[] frame, int offset, int length) {
+                if(maxSampleRate > 0) {
+                    if(credit < 1000000000L) {
+                        shedSamples++; //Reader thread only.
+                        return;
+                    }
+                    credit -= 1000000000L;
+                }
+                if(sample.wrap(frame, offset, length))
+                    engine.ioSampleReceived(index, nodes, sample);
+            }
+        };
+
+        handlers[REMOTE_AT_COMMAND_RESPONSE_FRAME] = new FrameHandler() {
+            public void handle(byte[] frame, int offset, int length) {
+                if(!remoteAtResponse.wrap(frame, offset, length))
+                    return;
+                requests.response(remoteAtResponse, engine.getMetrics().getCommandRoundTrip());
+                for(FrameListener listener : engine.frameListeners)
+                    listener.remoteAtResponse(remoteAtResponse);
+            }
+        };
+
+        handlers[RECEIVE_PACKET_FRAME] = new FrameHandler() {
+            public void handle(byte[] frame, int offset, int length) {
+                if(receivePacket.wrap(frame, offset, length))
+                    for(FrameListener listener : engine.frameListeners)
+                        listener.packetReceived(receivePacket);
+            }
+        };
+
+        handlers[TRANSMIT_STATUS_FRAME] = new FrameHandler() {
+            public void handle(byte[] frame, int offset, int length) {
+                if(transmitStatus.wrap(frame, offset, length))
+                    for(FrameListener listener : engine.frameListeners)
+                        listener.transmitStatus(transmitStatus);
+            }
+        };
+
+        handlers[AT_COMMAND_RESPONSE_FRAME] = new FrameHandler() {
+            public void handle(byte[] frame, int offset, int length) {
+                if(atResponse.wrap(frame, offset, length))
+                    for(FrameListener listener : engine.frameListeners)
+                        listener.atCommandResponse(atResponse);
+            }
+        };
+
+        handlers[MODEM_STATUS_FRAME] = new FrameHandler() {
+            public void handle(byte[] frame, int offset, int length) {
+                if(modemStatus.wrap(frame, offset, length))
+                    for(FrameListener listener : engine.frameListeners)
+                        listener.modemStatus(modemStatus);
+            }
+        };
+
+        handlers[NODE_IDENTIFICATION_FRAME] = new FrameHandler() {
+            public void handle(byte[] frame, int offset, int length) {
+                if(nodeIdentification.wrap(frame, offset, length))
+                    for(FrameListener listener : engine.frameListeners)
+                        listener.nodeIdentified(nodeIdentification);
+            }
+        };
+    }
+
+/*************************************Event Driven I/O*************************************/
+
+    private ByteBuffer newReadBuffer() {
+        //NIO transports read straight into a direct buffer that the decoder
+        //walks in place.
+        return transport.isDirect()
+                ? ByteBuffer.allocateDirect(READ_BUFFER_SIZE)
+                : ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+
+    //Decode count bytes just read into buffer.
+    private void received(ByteBuffer buffer, int count) {
+        long readNanos = System.nanoTime();
+        refill(readNanos);
+        EngineMetrics metrics = engine.getMetrics();
+        metrics.bytesRead(count);
+        buffer.flip();
+        decoder.decode(buffer);
+        buffer.clear();
+        metrics.getDecodeLatency().record(System.nanoTime() - readNanos);
+    }
+
+    //Read until the transport has nothing waiting, called by the transport's events.
+    private void readAvailable() {
+        int count;
+        try {
+            while(!finished && (count = transport.read(readBuffer)) != 0) {
+                if(count < 0) {
+                    lost(true);
+                    return;
+                }
+                received(readBuffer, count);
+            }
+        }
+        catch(IOException e) {
+            if(!finished) {
+                e.printStackTrace();
+                lost(false);
+            }
+        }
+    }
+
+    //Write everything queued, run on the reactor thread.
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            flushScheduled.set(false); //Commands queued from here on schedule another flush.
+            Histogram latency = engine.getMetrics().getCommandLatency();
+            OutboundFrame frame;
+
+            try {
+                while(!finished && (frame = commandQueue.poll()) != null) {
+                    frame.writeTo(transport);
+                    commandQueue.frameSent(frame);
+                    latency.record(System.nanoTime() - frame.getCreatedNanos());
+                }
+            }
+            catch(IOException e) {
+                if(!finished) {
+                    e.printStackTrace();
+                    lost(false);
+                }
+            }
+        }
+    };
+
+/************************************Serial Reader Class***********************************/
+
+    class SerialReader implements Runnable {
+
+        public void run() {
+            ByteBuffer buffer = newReadBuffer();
+            refillNanos = System.nanoTime() - 1000000000L; //Start with a full second.
+            int count;
+
+            try {
+                while ((count = transport.read(buffer)) > -1) {
+                    if(finished) //Exit once the port has been closed.
+                        return;
+                    received(buffer, count);
+                }
+            }
+            catch ( IOException e ) {
+                if(!finished) {
+                    e.printStackTrace();
+                    lost(false);
+                }
+                return;
+            }
+
+            if(!finished)
+                lost(true); //End of stream, stop the writer as well.
+        }
+    }
+
+/************************************Serial Writer Class***********************************/
+
+    class SerialWriter implements Runnable {
+
+        public void run() {
+            Histogram latency = engine.getMetrics().getCommandLatency();
+            OutboundFrame frame;
+
+            try {
+                //Parks until a command is queued, returns null on close.
+                while((frame = commandQueue.take()) != null) {
+                    frame.writeTo(transport);
+                    commandQueue.frameSent(frame);
+                    latency.record(System.nanoTime() - frame.getCreatedNanos());
+                }
+            }
+            catch ( IOException e ) {
+                if(!finished) {
+                    e.printStackTrace();
+                    lost(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package zigbee;
+
+import static zigbee.XBee.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Synthetic coordinator for load and soak testing without hardware.  Acts as
+ * a transport that emits 0x92 IO samples from a number of virtual end
+ * devices and answers 0x17 remote AT command requests with 0x97 responses
+ * the way remote radios would.  DIO output commands change the virtual
+ * pins, so later samples show the new state.
+ *
+ * Every node samples at the configured rate, 0 means as fast as the engine
+ * reads.  Noise is the largest step of the ADC random walk per sample and
+ * the corruption rate is the fraction of frames with one byte damaged.
+ */
+public class CoordinatorSimulator implements Transport {
+
+    public static final long FIRST_SERIAL = 0x0013A20040000000L;
+
+    //Digital and analog mask pairs, the expansion board first.
+    public static final int[][] BOARD_PROFILE = {{0x1CF0, 0x0F}};
+    public static final int[][] MIXED_PROFILES = {
+        {0x1CF0, 0x0F}, {0x1C00, 0x00}, {0x0000, 0x0F}, {0x0010, 0x01}
+    };
+
+    //Remote AT command status values.
+    private static final int STATUS_OK = 0, STATUS_INVALID_COMMAND = 2,
+            STATUS_TX_FAILURE = 4;
+
+    private final int nodes;
+    private final double sampleRate;
+    private final boolean escaped;
+    private int[][] profiles = BOARD_PROFILE;
+    private int noise = 4;
+    private double corruptionRate;
+    private long firstSerial = FIRST_SERIAL;
+
+    //Virtual node state.
+    private final int[] netAddresses;
+    private final int[] digitalSamples;
+    private final int[] pendingOutputs; //DIO changes waiting for AC or apply.
+    private final int[] pendingMask;
+    private final int[] adc;
+
+    private final Random random = new Random(1);
+    private final FrameDecoder commandDecoder;
+    private final ConcurrentLinkedQueue<byte[]> responses = new ConcurrentLinkedQueue<byte[]>();
+
+    private final byte[] data = new byte[64];
+    private final byte[] wire = new byte[FrameEncoder.maxEncodedLength(64)];
+    private long startNanos;
+    private long framesSent;
+    private int nextNode;
+    private volatile boolean closed;
+    private volatile long commandsReceived;
+
+    public CoordinatorSimulator(int nodes, double sampleRate, boolean escaped) {
+        this.nodes = nodes;
+        this.sampleRate = sampleRate;
+        this.escaped = escaped;
+
+        netAddresses = new int[nodes];
+        digitalSamples = new int[nodes];
+        pendingOutputs = new int[nodes];
+        pendingMask = new int[nodes];
+        adc = new int[nodes * 4];
+        for(int node = 0; node < nodes; node++) {
+            netAddresses[node] = 0x0001 + node;
+            for(int channel = 0; channel < 4; channel++)
+                adc[node * 4 + channel] = 512;
+        }
+
+        commandDecoder = new FrameDecoder(
+            new FrameDecoder.Listener() {
+                public void frameDecoded(byte[] frame, int offset, int length) {
+                    command(frame, offset, length);
+                }
+            }
+        );
+        commandDecoder.setEscaped(escaped);
+    }
+
+    public void setProfiles(int[][] profiles) {
+        this.profiles = profiles;
+    }
+
+    public void setNoise(int noise) {
+        this.noise = noise;
+    }
+
+    public void setCorruptionRate(double corruptionRate) {
+        this.corruptionRate = corruptionRate;
+    }
+
+    //Serial of node 0, so several simulators on one engine have their own nodes.
+    public void setFirstSerial(long firstSerial) {
+        this.firstSerial = firstSerial;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public long getCommandsReceived() {
+        return commandsReceived;
+    }
+
+/******************************************************************************************/
+
+    public void open() throws IOException {
+        closed = false;
+        startNanos = System.nanoTime();
+        framesSent = 0;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+
+        while(!closed) {
+            //Command responses go out ahead of samples.
+            byte[] response;
+            while((response = responses.peek()) != null && dst.remaining() >= response.length) {
+                dst.put(response);
+                responses.poll();
+            }
+
+            long due = sampleRate > 0
+                    ? (long)((System.nanoTime() - startNanos) * 1e-9 * sampleRate * nodes)
+                    : Long.MAX_VALUE;
+            while(framesSent < due) {
+                int length = sample(nextNode);
+                if(dst.remaining() < length)
+                    break;
+                dst.put(wire, 0, length);
+                framesSent++;
+                if(++nextNode == nodes)
+                    nextNode = 0;
+            }
+
+            if(dst.position() > start)
+                return dst.position() - start;
+
+            //Nothing due yet, sleep until the next sample or a short poll for responses.
+            LockSupport.parkNanos(Math.min(1000000L, (long)(1e9 / (sampleRate * nodes))));
+        }
+
+        return -1;
+    }
+
+    //Encode the next sample of a node into wire and return its length.
+    private int sample(int node) {
+        int[] profile = profiles[node % profiles.length];
+        int digitalMask = profile[0];
+        int analogMask = profile[1];
+        int i = 0;
+
+        data[i++] = (byte)IO_DATA_SAMPLE_RX_INDICATOR_FRAME;
+        putLong(data, i, firstSerial + node);
+        i += 8;
+        data[i++] = (byte)(netAddresses[node] >> 8);
+        data[i++] = (byte)netAddresses[node];
+        data[i++] = 0x01; //Packet acknowledged.
+        data[i++] = 0x01; //Number of samples.
+        data[i++] = (byte)(digitalMask >> 8);
+        data[i++] = (byte)digitalMask;
+        data[i++] = (byte)analogMask;
+        if(digitalMask != 0) {
+            int samples = digitalSamples[node] & digitalMask;
+            data[i++] = (byte)(samples >> 8);
+            data[i++] = (byte)samples;
+        }
+        for(int channel = 0; channel < 4; channel++) {
+            if((analogMask & (1 << channel)) != 0) {
+                int a = node * 4 + channel;
+                if(noise > 0)
+                    adc[a] = Math.max(0, Math.min(1023,
+                            adc[a] + random.nextInt(2 * noise + 1) - noise));
+                data[i++] = (byte)(adc[a] >> 8);
+                data[i++] = (byte)adc[a];
+            }
+        }
+
+        int length = FrameEncoder.encode(data, 0, i, escaped, wire, 0);
+        if(corruptionRate > 0 && random.nextDouble() < corruptionRate)
+            wire[3 + random.nextInt(length - 3)] ^= 0x5A; //Keep the delimiter and length.
+
+        return length;
+    }
+
+/******************************************************************************************/
+
+    public void write(ByteBuffer src) throws IOException {
+        if(closed)
+            throw new IOException("Closed");
+
+        commandDecoder.decode(src);
+    }
+
+    //Handle a 0x17 remote AT command request.
+    private void command(byte[] frame, int offset, int length) {
+        if((frame[offset] & 0xff) != REMOTE_AT_COMMAND_REQUEST_FRAME || length < RAT_PARAMETER)
+            return;
+
+        commandsReceived++;
+        long serial = getLong(frame, offset + RAT_DEST_SER);
+        int options = frame[offset + RAT_OPTIONS] & 0xff;
+        char c1 = (char)frame[offset + RAT_COMMAND];
+        char c2 = (char)frame[offset + RAT_COMMAND + 1];
+        int parameterLength = length - RAT_PARAMETER;
+        int parameter = parameterLength > 0 ? frame[offset + RAT_PARAMETER] & 0xff : -1;
+        int frameId = frame[offset + RAT_FRAME_ID] & 0xff;
+
+        if(serial == BROADCAST_SERIAL) {
+            for(int node = 0; node < nodes; node++)
+                apply(node, options, c1, c2, parameter, frameId);
+        }
+        else {
+            long node = serial - firstSerial;
+            if(node >= 0 && node < nodes)
+                apply((int)node, options, c1, c2, parameter, frameId);
+            else
+                respond(frameId, serial, UNKNOWN_NET_ADDRESS, c1, c2, STATUS_TX_FAILURE);
+        }
+    }
+
+    private void apply(int node, int options, char c1, char c2, int parameter, int frameId) {
+        int status = STATUS_OK;
+        int line = -1;
+
+        if(c1 == 'D' && c2 >= '0' && c2 <= '7')
+            line = c2 - '0';
+        else if(c1 == 'P' && c2 >= '0' && c2 <= '2')
+            line = 10 + c2 - '0';
+
+        if(line >= 0) {
+            if(parameter == DIO_OUTPUT_LOW || parameter == DIO_OUTPUT_HIGH) {
+                int bit = 1 << line;
+                pendingMask[node] |= bit;
+                if(parameter == DIO_OUTPUT_HIGH)
+                    pendingOutputs[node] |= bit;
+                else
+                    pendingOutputs[node] &= ~bit;
+            }
+        }
+        else if(!(c1 == 'A' && c2 == 'C'))
+            status = STATUS_INVALID_COMMAND;
+
+        //AC or the apply option commits every pending change.
+        if((c1 == 'A' && c2 == 'C') || (options & RAT_OPTION_APPLY_CHANGES) != 0) {
+            digitalSamples[node] = (digitalSamples[node] & ~pendingMask[node])
+                    | (pendingOutputs[node] & pendingMask[node]);
+            pendingMask[node] = 0;
+        }
+
+        respond(frameId, firstSerial + node, netAddresses[node], c1, c2, status);
+    }
+
+    //Frame ID 0 asks for no response.
+    private void respond(int frameId, long serial, int netAddress, char c1, char c2,
+            int status) {
+        if(frameId == 0)
+            return;
+
+        byte[] response = new byte[15];
+        response[0] = (byte)REMOTE_AT_COMMAND_RESPONSE_FRAME;
+        response[1] = (byte)frameId;
+        putLong(response, 2, serial);
+        response[10] = (byte)(netAddress >> 8);
+        response[11] = (byte)netAddress;
+        response[12] = (byte)c1;
+        response[13] = (byte)c2;
+        response[14] = (byte)status;
+
+        byte[] encoded = new byte[FrameEncoder.maxEncodedLength(response.length)];
+        int length = FrameEncoder.encode(response, 0, response.length, escaped, encoded, 0);
+        byte[] frame = new byte[length];
+        System.arraycopy(encoded, 0, frame, 0, length);
+        responses.add(frame);
+    }
+
+/******************************************************************************************/
+
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isDirect() {
+        return false;
+    }
+
+    //Simulators with their own nodes also show how far their first serial is moved.
+    public String getName() {
+        long offset = firstSerial - FIRST_SERIAL;
+        return "sim:" + nodes + "@" + sampleRate + (offset != 0 ? "+" + offset : "");
+    }
+}
@@ -0,0 +1,115 @@
+package zigbee;
+
+/*
+ * One event published on an EventBus.  The type says which fields are
+ * set: samples carry the node, addresses, masks and readings, modem status
+ * and transmit status events the status, and remote AT responses the frame
+ * ID, command and status.
+ *
+ * Events live in preallocated rings and are filled again once delivered,
+ * so a subscriber must copy anything it keeps before onNext() returns.
+ */
+public final class EngineEvent {
+
+    public static final int NODE_DISCOVERED = 0, SAMPLE = 1, MODEM_STATUS = 2,
+            TRANSMIT_STATUS = 3, REMOTE_AT_RESPONSE = 4;
+
+    int type;
+    long time; //System.currentTimeMillis() when published.
+    int node = NodeRegistry.NO_NODE;
+    long serial;
+    int netAddress;
+    int digitalMask, digitalSamples, analogMask;
+    final int[] adc = new int[NodeRegistry.ADC_CHANNELS];
+    int frameId;
+    char command1, command2;
+    int status;
+
+    void copyFrom(EngineEvent other) {
+        type = other.type;
+        time = other.time;
+        node = other.node;
+        serial = other.serial;
+        netAddress = other.netAddress;
+        digitalMask = other.digitalMask;
+        digitalSamples = other.digitalSamples;
+        analogMask = other.analogMask;
+        System.arraycopy(other.adc, 0, adc, 0, adc.length);
+        frameId = other.frameId;
+        command1 = other.command1;
+        command2 = other.command2;
+        status = other.status;
+    }
+
+/******************************************************************************************/
+
+    public int getType() {
+        return type;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    //Registry index, NO_NODE for events not tied to a known node.
+    public int getNode() {
+        return node;
+    }
+
+    public long getSerial() {
+        return serial;
+    }
+
+    public int getNetAddress() {
+        return netAddress;
+    }
+
+    public int getDigitalMask() {
+        return digitalMask;
+    }
+
+    public int getDigitalSamples() {
+        return digitalSamples;
+    }
+
+    public int getAnalogMask() {
+        return analogMask;
+    }
+
+    public int getAdc(int channel) {
+        return adc[channel];
+    }
+
+    public int getFrameId() {
+        return frameId;
+    }
+
+    public char getCommand1() {
+        return command1;
+    }
+
+    public char getCommand2() {
+        return command2;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String toString() {
+        switch(type) {
+            case NODE_DISCOVERED:
+                return "node " + node + " discovered " + NodeRegistry.formatSerial(serial);
+            case SAMPLE:
+                return String.format("node %d dio 0x%04X adc %d %d %d %d", node,
+                        digitalSamples & digitalMask, adc[0], adc[1], adc[2], adc[3]);
+            case MODEM_STATUS:
+                return "modem status " + status;
+            case TRANSMIT_STATUS:
+                return "transmit status " + status + " frame " + frameId;
+            default:
+                return "" + command1 + command2 + " from " + NodeRegistry.formatSerial(serial)
+                        + " status " + status + " frame " + frameId;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package zigbee;
+
+/*
+ * Callbacks from the ZigBee engine.  They run on the engine's reader thread,
+ * so implementations should return quickly and must not keep the sample.
+ */
+public interface EngineListener {
+
+    //A node was heard from for the first time.
+    void nodeDiscovered(int node, long serial);
+
+    //A valid 0x92 sample arrived and has been recorded in the registry.
+    void sampleReceived(int node, IoSample sample);
+}
@@ -0,0 +1,249 @@
+package zigbee;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Health of the links and decoders of one engine.  The receive and writer
+ * threads of every port record into LongAdders and preallocated histograms,
+ * decoder error counts and command queue depths are summed over the ports
+ * when asked for.
+ *
+ * register() publishes the metrics as JMX MBeans under "zigbee:" and
+ * start() runs a daemon thread that updates the per second rates and can
+ * print a text snapshot at a fixed interval.
+ */
+public class EngineMetrics implements EngineMetricsMBean {
+
+    private final ZigBeeEngine engine;
+
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder[] framesByType = new LongAdder[256];
+
+    //Read to last dispatch of each read, command enqueue to wire and command
+    //enqueue to matching response.
+    private final Histogram decodeLatency = new Histogram("decodeLatencyNanos");
+    private final Histogram commandLatency = new Histogram("commandLatencyNanos");
+    private final Histogram commandRoundTrip = new Histogram("commandRoundTripNanos");
+
+    private volatile double bytesPerSecond, framesPerSecond;
+    private Thread ticker;
+
+    public EngineMetrics(ZigBeeEngine engine) {
+        this.engine = engine;
+        for(int i = 0; i < framesByType.length; i++)
+            framesByType[i] = new LongAdder();
+    }
+
+/******************************************************************************************/
+
+    public void bytesRead(int count) {
+        bytesReceived.add(count);
+    }
+
+    public void frameReceived(int frameType) {
+        framesByType[frameType].increment();
+    }
+
+    public Histogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    public Histogram getCommandLatency() {
+        return commandLatency;
+    }
+
+    public Histogram getCommandRoundTrip() {
+        return commandRoundTrip;
+    }
+
+/******************************************************************************************/
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getFramesReceived() {
+        long frames = 0;
+        for(LongAdder adder : framesByType)
+            frames += adder.sum();
+        return frames;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    public long getChecksumErrors() {
+        long n = 0;
+        for(CoordinatorPort port : engine.getPorts())
+            n += port.getDecoder().getChecksumErrors();
+        return n;
+    }
+
+    public long getLengthErrors() {
+        long n = 0;
+        for(CoordinatorPort port : engine.getPorts())
+            n += port.getDecoder().getLengthErrors();
+        return n;
+    }
+
+    public long getDiscardedBytes() {
+        long n = 0;
+        for(CoordinatorPort port : engine.getPorts())
+            n += port.getDecoder().getDiscardedBytes();
+        return n;
+    }
+
+    public long getTruncatedFrames() {
+        long n = 0;
+        for(CoordinatorPort port : engine.getPorts())
+            n += port.getDecoder().getTruncatedFrames();
+        return n;
+    }
+
+    //Counts of every frame type seen, as "0x92=1234 0x97=5".
+    public String getFramesByType() {
+        StringBuilder text = new StringBuilder();
+        for(int type = 0; type < framesByType.length; type++) {
+            long frames = framesByType[type].sum();
+            if(frames == 0)
+                continue;
+            if(text.length() > 0)
+                text.append(' ');
+            text.append(String.format("0x%02X=%d", type, frames));
+        }
+        return text.toString();
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for(CoordinatorPort port : engine.getPorts())
+            depth += port.getCommandQueue().getDepth();
+        return depth;
+    }
+
+    public long getCommandsRejected() {
+        long n = 0;
+        for(CoordinatorPort port : engine.getPorts())
+            n += port.getCommandQueue().getRejected();
+        return n;
+    }
+
+    public long getShedSamples() {
+        long n = 0;
+        for(CoordinatorPort port : engine.getPorts())
+            n += port.getShedSamples();
+        return n;
+    }
+
+    public int getPortsOpen() {
+        int n = 0;
+        for(CoordinatorPort port : engine.getPorts())
+            if(port.isOpen())
+                n++;
+        return n;
+    }
+
+    public long getReconnects() {
+        long n = 0;
+        for(CoordinatorPort port : engine.getPorts())
+            n += port.getReconnects();
+        return n;
+    }
+
+    public int getCommandsInFlight() {
+        return engine.getCommandsInFlight();
+    }
+
+    public String getSnapshot() {
+        return String.format("bytes %d (%.0f/s), frames %d (%.0f/s), checksum errors %d,"
+                + " length errors %d, discarded bytes %d, truncated frames %d,"
+                + " queue depth %d, commands rejected %d, commands in flight %d,"
+                + " ports open %d, reconnects %d, shed samples %d%n"
+                + "  types: %s%n  %s%n  %s%n  %s",
+                getBytesReceived(), bytesPerSecond, getFramesReceived(), framesPerSecond,
+                getChecksumErrors(), getLengthErrors(), getDiscardedBytes(),
+                getTruncatedFrames(), getQueueDepth(), getCommandsRejected(),
+                getCommandsInFlight(), getPortsOpen(), getReconnects(), getShedSamples(),
+                getFramesByType(),
+                decodeLatency, commandLatency, commandRoundTrip);
+    }
+
+/******************************************************************************************/
+
+    //Publish as zigbee:type=Engine,name=<name> plus one MBean per histogram.
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String quoted = ObjectName.quote(name);
+
+        server.registerMBean(this, new ObjectName("zigbee:type=Engine,name=" + quoted));
+        for(Histogram h : new Histogram[] {decodeLatency, commandLatency, commandRoundTrip})
+            server.registerMBean(h, new ObjectName("zigbee:type=Histogram,engine=" + quoted
+                    + ",name=" + h.getName()));
+    }
+
+    public void unregister(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String quoted = ObjectName.quote(name);
+
+        server.unregisterMBean(new ObjectName("zigbee:type=Engine,name=" + quoted));
+        for(Histogram h : new Histogram[] {decodeLatency, commandLatency, commandRoundTrip})
+            server.unregisterMBean(new ObjectName("zigbee:type=Histogram,engine=" + quoted
+                    + ",name=" + h.getName()));
+    }
+
+    //Update the rates every second and print a snapshot to out every reportSeconds,
+    //out may be null for rates only.
+    public synchronized void start(final PrintStream out, final int reportSeconds) {
+        if(ticker != null)
+            return;
+
+        ticker = new Thread(new Runnable() {
+            public void run() {
+                long lastBytes = getBytesReceived();
+                long lastFrames = getFramesReceived();
+                long lastNanos = System.nanoTime();
+
+                for(int second = 1; ; second++) {
+                    try {
+                        Thread.sleep(1000);
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+
+                    long bytes = getBytesReceived();
+                    long frames = getFramesReceived();
+                    long now = System.nanoTime();
+                    double seconds = (now - lastNanos) * 1e-9;
+                    bytesPerSecond = (bytes - lastBytes) / seconds;
+                    framesPerSecond = (frames - lastFrames) / seconds;
+                    lastBytes = bytes;
+                    lastFrames = frames;
+                    lastNanos = now;
+
+                    if(out != null && reportSeconds > 0 && second % reportSeconds == 0)
+                        out.println(getSnapshot());
+                }
+            }
+        }, "Metrics");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public synchronized void stop() {
+        if(ticker != null) {
+            ticker.interrupt();
+            ticker = null;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package zigbee;
+
+/*
+ * JMX view of the link and decoder metrics of an engine.
+ */
+public interface EngineMetricsMBean {
+
+    long getBytesReceived();
+
+    long getFramesReceived();
+
+    double getBytesPerSecond();
+
+    double getFramesPerSecond();
+
+    long getChecksumErrors();
+
+    long getLengthErrors();
+
+    long getDiscardedBytes();
+
+    long getTruncatedFrames();
+
+    String getFramesByType();
+
+    int getQueueDepth();
+
+    long getCommandsRejected();
+
+    int getCommandsInFlight();
+
+    long getShedSamples();
+
+    int getPortsOpen();
+
+    long getReconnects();
+
+    String getSnapshot();
+}
@@ -0,0 +1,359 @@
+package zigbee;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Publishes node discoveries, samples, modem and transmit status and remote
+ * AT responses of an engine to any number of Flow subscribers, such as a
+ * display, a store, alerting or an exporter, each independent of the rest.
+ *
+ * Every subscriber has its own preallocated ring of events.  The receive
+ * thread copies each event into the rings and returns, and an executor
+ * thread delivers from a ring as the subscriber requests more.  When a ring
+ * is full its overflow policy decides: DROP_OLDEST overwrites the oldest
+ * undelivered event, DROP_NEWEST discards the new one, and BLOCK makes the
+ * receive thread wait for room.  Only BLOCK can hold up the ports, so it is
+ * for subscribers that must not lose events and keep up on average.
+ *
+ * Publishing takes no bus-wide lock, each receive thread fills its own
+ * event and copies it into the rings, those that never wait first.  A full
+ * BLOCK ring holds up every port that publishes while it stays full, since
+ * none of them may drop its event, but waits on that ring's own monitor
+ * after every other subscriber has the event, so their delivery carries
+ * on.  Events of different ports may reach two subscribers in a different
+ * order, the events of one port never do.
+ *
+ * The event passed to onNext() is reused for the next one, see EngineEvent.
+ */
+public class EventBus extends FrameAdapter implements EngineListener,
+        Flow.Publisher<EngineEvent> {
+
+    //Overflow policies.
+    public static final int DROP_OLDEST = 0, DROP_NEWEST = 1, BLOCK = 2;
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private static final ExecutorService deliveryThreads = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "EventBus");
+                t.setDaemon(true);
+                return t;
+            }
+        }
+    );
+
+    private final Executor executor;
+    private final CopyOnWriteArrayList<Ring> rings = new CopyOnWriteArrayList<Ring>();
+
+    //Event being published, one per publishing thread so no lock is shared.
+    private final ThreadLocal<EngineEvent> events = new ThreadLocal<EngineEvent>() {
+        protected EngineEvent initialValue() {
+            return new EngineEvent();
+        }
+    };
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder published = new LongAdder();
+
+    //Deliver on a shared pool of daemon threads.
+    public EventBus() {
+        this(deliveryThreads);
+    }
+
+    public EventBus(Executor executor) {
+        this.executor = executor;
+    }
+
+/******************************************************************************************/
+
+    //Start publishing the events of an engine.
+    public void attach(ZigBeeEngine engine) {
+        engine.addListener(this);
+        engine.addFrameListener(this);
+    }
+
+    public void detach(ZigBeeEngine engine) {
+        engine.removeListener(this);
+        engine.removeFrameListener(this);
+    }
+
+    //Subscribe with a DEFAULT_BUFFER_SIZE ring that drops the oldest events.
+    public void subscribe(Flow.Subscriber<? super EngineEvent> subscriber) {
+        subscribe(subscriber, DEFAULT_BUFFER_SIZE, DROP_OLDEST);
+    }
+
+    //Buffer size is rounded up to a power of two.
+    public void subscribe(Flow.Subscriber<? super EngineEvent> subscriber, int bufferSize,
+            int overflow) {
+        if(overflow < DROP_OLDEST || overflow > BLOCK)
+            throw new IllegalArgumentException("Overflow policy " + overflow);
+
+        Ring ring = new Ring(subscriber, bufferSize, overflow);
+        rings.add(ring);
+        subscriber.onSubscribe(ring);
+    }
+
+    //Complete every subscription once its ring has been delivered.
+    public void close() {
+        for(Ring ring : rings)
+            ring.complete();
+    }
+
+    public int getSubscribers() {
+        return rings.size();
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    //Events lost to full rings, over all subscribers.
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+/******************************************************************************************/
+
+    public void nodeDiscovered(int node, long serial) {
+        if(rings.isEmpty())
+            return;
+
+        publish(start(EngineEvent.NODE_DISCOVERED, node, serial, 0));
+    }
+
+    public void sampleReceived(int node, IoSample sample) {
+        if(rings.isEmpty())
+            return;
+
+        EngineEvent event = start(EngineEvent.SAMPLE, node, sample.getSerial(),
+                sample.getNetAddress());
+        event.digitalMask = sample.getDigitalMask();
+        event.digitalSamples = sample.getDigitalSamples();
+        event.analogMask = sample.getAnalogMask();
+        for(int channel = 0; channel < event.adc.length; channel++)
+            event.adc[channel] = sample.getAdc(channel);
+        publish(event);
+    }
+
+    public void modemStatus(ModemStatus status) {
+        if(rings.isEmpty())
+            return;
+
+        EngineEvent event = start(EngineEvent.MODEM_STATUS, NodeRegistry.NO_NODE, 0, 0);
+        event.status = status.getStatus();
+        publish(event);
+    }
+
+    public void transmitStatus(TransmitStatus status) {
+        if(rings.isEmpty())
+            return;
+
+        EngineEvent event = start(EngineEvent.TRANSMIT_STATUS, NodeRegistry.NO_NODE, 0,
+                status.getNetAddress());
+        event.frameId = status.getFrameId();
+        event.status = status.getDeliveryStatus();
+        publish(event);
+    }
+
+    public void remoteAtResponse(RemoteAtResponse response) {
+        if(rings.isEmpty())
+            return;
+
+        EngineEvent event = start(EngineEvent.REMOTE_AT_RESPONSE, NodeRegistry.NO_NODE,
+                response.getSerial(), response.getNetAddress());
+        event.frameId = response.getFrameId();
+        event.command1 = response.getCommand1();
+        event.command2 = response.getCommand2();
+        event.status = response.getStatus();
+        publish(event);
+    }
+
+    //Reset the calling thread's event for publishing.
+    private EngineEvent start(int type, int node, long serial, int netAddress) {
+        EngineEvent event = events.get();
+        event.type = type;
+        event.time = System.currentTimeMillis();
+        event.node = node;
+        event.serial = serial;
+        event.netAddress = netAddress;
+        event.digitalMask = event.digitalSamples = event.analogMask = 0;
+        for(int channel = 0; channel < event.adc.length; channel++)
+            event.adc[channel] = 0;
+        event.frameId = event.status = 0;
+        event.command1 = event.command2 = 0;
+        return event;
+    }
+
+    //Rings that never wait first, so a full BLOCK ring only holds up later BLOCK rings.
+    private void publish(EngineEvent event) {
+        published.increment();
+        for(Ring ring : rings)
+            if(ring.overflow != BLOCK)
+                ring.offer(event);
+        for(Ring ring : rings)
+            if(ring.overflow == BLOCK)
+                ring.offer(event);
+    }
+
+/**************************************Subscriber Ring*************************************/
+
+    class Ring implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super EngineEvent> subscriber;
+        private final EngineEvent[] slots;
+        private final int mask;
+        private final int overflow;
+
+        //Guarded by this.
+        private long head, tail;
+        private long demand;
+        private boolean cancelled, completed;
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final EngineEvent delivering = new EngineEvent(); //Delivery thread only.
+
+        Ring(Flow.Subscriber<? super EngineEvent> subscriber, int bufferSize, int overflow) {
+            int size = 1;
+            while(size < bufferSize)
+                size <<= 1;
+
+            this.subscriber = subscriber;
+            this.overflow = overflow;
+            slots = new EngineEvent[size];
+            mask = size - 1;
+            for(int i = 0; i < size; i++)
+                slots[i] = new EngineEvent();
+        }
+
+        //Copy an event in, called on a receive thread.
+        void offer(EngineEvent event) {
+            synchronized(this) {
+                if(cancelled || completed)
+                    return;
+
+                if(tail - head == slots.length) {
+                    if(overflow == DROP_NEWEST) {
+                        dropped.increment();
+                        return;
+                    }
+                    else if(overflow == DROP_OLDEST) {
+                        head++;
+                        dropped.increment();
+                    }
+                    else if(!awaitRoom())
+                        return;
+                }
+
+                slots[(int)tail & mask].copyFrom(event);
+                tail++;
+                if(demand == 0)
+                    return; //request() schedules delivery.
+            }
+
+            schedule();
+        }
+
+        //BLOCK policy, wait until the subscriber takes an event.  Returns false
+        //if the subscription ended or the thread was interrupted meanwhile.
+        private boolean awaitRoom() {
+            while(tail - head == slots.length) {
+                if(cancelled || completed)
+                    return false;
+                try {
+                    wait();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                    return false;
+                }
+            }
+            return !cancelled;
+        }
+
+        private void schedule() {
+            if(scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        synchronized void complete() {
+            completed = true;
+            notifyAll();
+            schedule();
+        }
+
+/******************************************************************************************/
+
+        public void request(long n) {
+            if(n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested " + n));
+                return;
+            }
+
+            synchronized(this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n; //Saturate.
+            }
+            schedule();
+        }
+
+        public void cancel() {
+            synchronized(this) {
+                cancelled = true;
+                notifyAll(); //Release a blocked receive thread.
+            }
+            rings.remove(this);
+        }
+
+        //Deliver while there are events and demand, on the executor.
+        public void run() {
+            while(true) {
+                boolean finish = false;
+
+                synchronized(this) {
+                    if(cancelled) {
+                        scheduled.set(false);
+                        return;
+                    }
+
+                    if(head == tail && completed)
+                        finish = true;
+                    else if(head == tail || demand == 0) {
+                        scheduled.set(false); //Offers from here on schedule again.
+                        return;
+                    }
+                    else {
+                        delivering.copyFrom(slots[(int)head & mask]);
+                        head++;
+                        if(demand != Long.MAX_VALUE)
+                            demand--;
+                        if(overflow == BLOCK)
+                            notifyAll();
+                    }
+                }
+
+                if(finish) {
+                    cancel();
+                    subscriber.onComplete();
+                    return;
+                }
+
+                try {
+                    subscriber.onNext(delivering);
+                }
+                catch(RuntimeException e) {
+                    cancel(); //A failing subscriber is dropped, the rest carry on.
+                    subscriber.onError(e);
+                    return;
+                }
+            }
+        }
+    }
+}
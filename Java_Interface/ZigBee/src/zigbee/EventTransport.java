@@ -0,0 +1,15 @@
+package zigbee;
+
+import java.io.IOException;
+
+/*
+ * Transport that can say when data is waiting, so a port needs no thread
+ * of its own blocked in read().  Once events are started read() returns 0
+ * instead of blocking when nothing is waiting, and ready is run, on a
+ * thread of the transport's choosing but never two at once, whenever more
+ * may have arrived.  Events stop when the transport is closed.
+ */
+public interface EventTransport extends Transport {
+
+    void startEvents(IoReactor reactor, Runnable ready) throws IOException;
+}
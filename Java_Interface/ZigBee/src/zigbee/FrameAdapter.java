@@ -0,0 +1,25 @@
+package zigbee;
+
+/*
+ * FrameListener that ignores everything.
+ */
+public class FrameAdapter implements FrameListener {
+
+    public void packetReceived(ReceivePacket packet) {
+    }
+
+    public void transmitStatus(TransmitStatus status) {
+    }
+
+    public void atCommandResponse(AtCommandResponse response) {
+    }
+
+    public void remoteAtResponse(RemoteAtResponse response) {
+    }
+
+    public void modemStatus(ModemStatus status) {
+    }
+
+    public void nodeIdentified(NodeIdentification node) {
+    }
+}
@@ -0,0 +1,312 @@
+package zigbee;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bulk XBee API frame decoder.  Takes whole read buffers from the serial
+ * reader, reassembles frames that are split across reads, validates the
+ * checksum and hands the frame data (frame type through last payload byte)
+ * to a listener.  Nothing is allocated per frame.  On a bad length or bad
+ * checksum the decoder simply goes back to hunting for the next 0x7E,
+ * starting at the byte after the delimiter that turned out to be noise,
+ * whether or not the frame was split across reads.
+ *
+ * In API mode 2 (AP=2) the escaped bytes are restored in the same pass that
+ * assembles the frame, and any unescaped 0x7E starts a new frame.
+ */
+public class FrameDecoder {
+
+    //Listener for validated frames.  The frame bytes are only valid for the
+    //duration of the call, the buffer is reused for the next frame.
+    public interface Listener {
+        void frameDecoded(byte[] frame, int offset, int length);
+    }
+
+    public static final byte START_DELIMITER = 0x7E, ESCAPE = 0x7D, XON = 0x11, XOFF = 0x13;
+    public static final int ESCAPE_XOR = 0x20;
+
+    //Largest frame data length accepted before the frame is treated as garbage.
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 256;
+
+    //Decoder states.
+    private static final int READY = 0, LENGTH_HI = 1, LENGTH_LO = 2, DATABLOCK = 3, CHECKSUM = 4;
+
+    private final Listener listener;
+    private final byte[] frame; //Assembly buffer for frames split across reads.
+    private final byte[] rescan; //Bytes after a bad delimiter, hunted again.
+    private final int maxFrameLength;
+
+    private int state = READY;
+    private int frameLength;
+    private int frameIndex;
+    private int sum; //Running sum of the frame data bytes.
+
+    private boolean escaped; //API mode 2.
+    private boolean escapeNext; //Last byte was the escape character.
+
+    //Decoder statistics.  Only the receive thread writes them, with lazySet, so the
+    //metrics thread reads published values without a full fence per frame.
+    private final AtomicLong framesDecoded = new AtomicLong(), checksumErrors = new AtomicLong(),
+            lengthErrors = new AtomicLong(), discardedBytes = new AtomicLong(),
+            truncatedFrames = new AtomicLong();
+
+    public FrameDecoder(Listener listener) {
+        this(listener, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameDecoder(Listener listener, int maxFrameLength) {
+        this.listener = listener;
+        this.maxFrameLength = maxFrameLength;
+        frame = new byte[maxFrameLength];
+        rescan = new byte[maxFrameLength + 3];
+    }
+
+/******************************************************************************************/
+
+    public void decode(byte[] buffer, int offset, int length) {
+        if(escaped) {
+            decodeEscaped(buffer, offset, length);
+            return;
+        }
+
+        int index = offset;
+        int end = offset + length;
+
+        while(index < end) {
+            if(state == READY) {
+                //Hunt for the start delimiter.
+                int start = index;
+                while(index < end && buffer[index] != START_DELIMITER)
+                    index++;
+                count(discardedBytes, index - start);
+                if(index == end)
+                    return;
+                index++;
+
+                //Fast path, the whole frame is in the buffer so validate and
+                //dispatch it in place without copying.
+                if(end - index >= 2) {
+                    int len = ((buffer[index] & 0xff) << 8) | (buffer[index + 1] & 0xff);
+                    if(len == 0 || len > maxFrameLength) {
+                        count(lengthErrors, 1);
+                        continue; //Resync from the byte after the bad delimiter.
+                    }
+                    if(end - index >= len + 3) {
+                        int data = index + 2;
+                        int s = 0;
+                        for(int i = data; i <= data + len; i++) //Includes checksum byte.
+                            s += buffer[i];
+                        if((s & 0xff) == 0xff) {
+                            count(framesDecoded, 1);
+                            listener.frameDecoded(buffer, data, len);
+                            index = data + len + 1;
+                        }
+                        else
+                            count(checksumErrors, 1);
+                        continue;
+                    }
+                }
+                state = LENGTH_HI;
+            }
+            else if(state == LENGTH_HI) {
+                frameLength = (buffer[index++] & 0xff) << 8;
+                state = LENGTH_LO;
+            }
+            else if(state == LENGTH_LO) {
+                frameLength |= buffer[index++] & 0xff;
+                if(frameLength == 0 || frameLength > maxFrameLength) {
+                    count(lengthErrors, 1);
+                    resync(false, 0);
+                }
+                else {
+                    frameIndex = 0;
+                    sum = 0;
+                    state = DATABLOCK;
+                }
+            }
+            else if(state == DATABLOCK) {
+                //Copy as much of the frame as this buffer holds.
+                int count = Math.min(frameLength - frameIndex, end - index);
+                System.arraycopy(buffer, index, frame, frameIndex, count);
+                for(int i = 0; i < count; i++)
+                    sum += buffer[index + i];
+                frameIndex += count;
+                index += count;
+                if(frameIndex == frameLength)
+                    state = CHECKSUM;
+            }
+            else { //CHECKSUM
+                int checksum = buffer[index++];
+                sum += checksum;
+                state = READY;
+                if((sum & 0xff) == 0xff) {
+                    count(framesDecoded, 1);
+                    listener.frameDecoded(frame, 0, frameLength);
+                }
+                else {
+                    count(checksumErrors, 1);
+                    resync(true, checksum);
+                }
+            }
+        }
+    }
+
+/******************************************************************************************/
+
+    //Decode the remaining bytes of a buffer.  Heap buffers take the array path,
+    //direct buffers filled by NIO transports are read in place.
+    public void decode(ByteBuffer buffer) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        if(buffer.hasArray())
+            decode(buffer.array(), buffer.arrayOffset() + position, limit - position);
+        else if(escaped) {
+            for(int index = position; index < limit; index++)
+                escapedByte(buffer.get(index));
+        }
+        else {
+            for(int index = position; index < limit; index++)
+                frameByte(buffer.get(index));
+        }
+
+        buffer.position(limit);
+    }
+
+/******************************************************************************************/
+
+    private void decodeEscaped(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+
+        for(int index = offset; index < end; index++)
+            escapedByte(buffer[index]);
+    }
+
+    private void escapedByte(int b) {
+        //An unescaped delimiter always starts a new frame in API mode 2.
+        if(b == START_DELIMITER) {
+            if(state != READY)
+                count(truncatedFrames, 1);
+            state = LENGTH_HI;
+            escapeNext = false;
+        }
+        else if(state == READY)
+            count(discardedBytes, 1);
+        else if(b == ESCAPE)
+            escapeNext = true;
+        else if(escapeNext) {
+            escapeNext = false;
+            frameByte(b ^ ESCAPE_XOR);
+        }
+        else
+            frameByte(b);
+    }
+
+    //Run one unescaped byte through the state machine.
+    private void frameByte(int b) {
+        if(state == DATABLOCK) {
+            frame[frameIndex++] = (byte)b;
+            sum += b;
+            if(frameIndex == frameLength)
+                state = CHECKSUM;
+        }
+        else if(state == READY) {
+            if(b == START_DELIMITER)
+                state = LENGTH_HI;
+            else
+                count(discardedBytes, 1);
+        }
+        else if(state == LENGTH_HI) {
+            frameLength = (b & 0xff) << 8;
+            state = LENGTH_LO;
+        }
+        else if(state == LENGTH_LO) {
+            frameLength |= b & 0xff;
+            if(frameLength == 0 || frameLength > maxFrameLength) {
+                count(lengthErrors, 1);
+                state = READY;
+                if(!escaped)
+                    resync(false, 0);
+            }
+            else {
+                frameIndex = 0;
+                sum = 0;
+                state = DATABLOCK;
+            }
+        }
+        else { //CHECKSUM
+            sum += b;
+            state = READY;
+            if((sum & 0xff) == 0xff) {
+                count(framesDecoded, 1);
+                listener.frameDecoded(frame, 0, frameLength);
+            }
+            else {
+                count(checksumErrors, 1);
+                if(!escaped) //An unescaped 0x7E would have started a new frame already.
+                    resync(true, b);
+            }
+        }
+    }
+
+    //Hunt again through the length bytes, and the data and checksum when withData
+    //is set, of a frame whose delimiter was noise, as the fast path does in place.
+    //The rescan runs on the array path, where a frame that fits is handled without
+    //coming back here, so the rescan buffer is never reused while it is read.
+    private void resync(boolean withData, int checksum) {
+        int count = 2;
+        rescan[0] = (byte)(frameLength >> 8);
+        rescan[1] = (byte)frameLength;
+        if(withData) {
+            System.arraycopy(frame, 0, rescan, 2, frameLength);
+            rescan[frameLength + 2] = (byte)checksum;
+            count += frameLength + 1;
+        }
+
+        state = READY;
+        decode(rescan, 0, count);
+    }
+
+    private static void count(AtomicLong counter, long n) {
+        counter.lazySet(counter.get() + n);
+    }
+
+/******************************************************************************************/
+
+    //Drop any partially assembled frame.
+    public void reset() {
+        state = READY;
+        escapeNext = false;
+    }
+
+    //Select API mode 2 (escaped) or API mode 1 framing.
+    public void setEscaped(boolean escaped) {
+        this.escaped = escaped;
+        reset();
+    }
+
+    public boolean isEscaped() {
+        return escaped;
+    }
+
+    public long getFramesDecoded() {
+        return framesDecoded.get();
+    }
+
+    public long getChecksumErrors() {
+        return checksumErrors.get();
+    }
+
+    public long getLengthErrors() {
+        return lengthErrors.get();
+    }
+
+    public long getDiscardedBytes() {
+        return discardedBytes.get();
+    }
+
+    public long getTruncatedFrames() {
+        return truncatedFrames.get();
+    }
+}
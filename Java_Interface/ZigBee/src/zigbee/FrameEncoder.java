@@ -0,0 +1,80 @@
+package zigbee;
+
+/*
+ * Builds XBee API frames for transmission.  The delimiter, length and
+ * checksum are added around the frame data, and in API mode 2 the bytes
+ * after the delimiter are escaped in the same pass.  The checksum is always
+ * computed over the unescaped frame data.
+ */
+public class FrameEncoder {
+
+    private static final int START_DELIMITER = FrameDecoder.START_DELIMITER & 0xff,
+            ESCAPE = FrameDecoder.ESCAPE & 0xff, XON = FrameDecoder.XON & 0xff,
+            XOFF = FrameDecoder.XOFF & 0xff;
+
+    private FrameEncoder() {
+    }
+
+/******************************************************************************************/
+
+    //Worst case size of an encoded frame, every byte after the delimiter escaped.
+    public static int maxEncodedLength(int frameLength) {
+        return 1 + 2 * (frameLength + 3);
+    }
+
+    //Checksum over unescaped frame data (frame type through last payload byte).
+    public static byte checksum(byte[] data, int offset, int length) {
+        int sum = 0;
+
+        for(int i = offset; i < offset + length; i++)
+            sum += data[i];
+
+        return (byte)(0xFF - (sum & 0xff));
+    }
+
+/******************************************************************************************/
+
+    //Encodes frame data into out and returns the number of bytes written.
+    public static int encode(byte[] data, int offset, int length, boolean escaped,
+            byte[] out, int outOffset) {
+        int index = outOffset;
+        int sum = 0;
+
+        out[index++] = (byte)START_DELIMITER;
+
+        if(!escaped) {
+            out[index++] = (byte)(length >> 8);
+            out[index++] = (byte)length;
+            for(int i = offset; i < offset + length; i++) {
+                byte b = data[i];
+                sum += b;
+                out[index++] = b;
+            }
+            out[index++] = (byte)(0xFF - (sum & 0xff));
+            return index - outOffset;
+        }
+
+        index = putEscaped(out, index, length >> 8);
+        index = putEscaped(out, index, length);
+        for(int i = offset; i < offset + length; i++) {
+            int b = data[i];
+            sum += b;
+            index = putEscaped(out, index, b);
+        }
+        index = putEscaped(out, index, 0xFF - (sum & 0xff));
+
+        return index - outOffset;
+    }
+
+    private static int putEscaped(byte[] out, int index, int b) {
+        b &= 0xff;
+        if(b == START_DELIMITER || b == ESCAPE || b == XON || b == XOFF) {
+            out[index++] = (byte)ESCAPE;
+            out[index++] = (byte)(b ^ FrameDecoder.ESCAPE_XOR);
+        }
+        else
+            out[index++] = (byte)b;
+
+        return index;
+    }
+}
@@ -0,0 +1,9 @@
+package zigbee;
+
+/*
+ * Entry in the engine's table of handlers indexed by frame type.
+ */
+interface FrameHandler {
+
+    void handle(byte[] frame, int offset, int length);
+}
@@ -0,0 +1,28 @@
+package zigbee;
+
+/*
+ * Callbacks for the API frames other than IO samples, which go to
+ * EngineListener.  Like those they run on the engine's reader thread and
+ * the views are reused for the next frame, so copy anything to be kept.
+ * Extend FrameAdapter to handle only some of them.
+ */
+public interface FrameListener {
+
+    //0x90
+    void packetReceived(ReceivePacket packet);
+
+    //0x8B
+    void transmitStatus(TransmitStatus status);
+
+    //0x88
+    void atCommandResponse(AtCommandResponse response);
+
+    //0x97, after any waiting future has been completed.
+    void remoteAtResponse(RemoteAtResponse response);
+
+    //0x8A
+    void modemStatus(ModemStatus status);
+
+    //0x95
+    void nodeIdentified(NodeIdentification node);
+}
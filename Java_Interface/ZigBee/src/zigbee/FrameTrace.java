@@ -0,0 +1,211 @@
+package zigbee;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Frame trace that can be switched on and off while running.  The receive
+ * threads copy each frame into a ring buffer and a background thread
+ * drains it to a hex log file.  A receive thread never waits for another:
+ * it reserves room for its record by moving the tail with a CAS, copies the
+ * frame in and then sets the record's commit flag, and the drain thread
+ * stops at the first record not yet committed.  When tracing is off
+ * recording costs one volatile read, and when the ring is full frames are
+ * counted as dropped rather than making a receive thread wait.
+ *
+ * Each ring record is a 2 byte length, an 8 byte System.nanoTime() stamp and
+ * the frame data, padded to RECORD_ALIGN bytes so a commit flag per
+ * RECORD_ALIGN bytes of ring covers every possible record start.  The ring
+ * is only allocated the first time tracing is switched on.
+ */
+public class FrameTrace {
+
+    private static final int HEADER_LENGTH = 10;
+    private static final int RECORD_ALIGN = 8;
+    private static final long DRAIN_INTERVAL_NANOS = 20000000L; //20 ms.
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final int size;
+    private final int mask;
+    private final String fileName;
+
+    //Allocated by the first setEnabled(true), and published by the write of enabled.
+    private byte[] ring;
+    private AtomicIntegerArray committed; //Per RECORD_ALIGN bytes, 1 once a record is in.
+
+    private final AtomicLong tail = new AtomicLong(); //Reserved by the producers.
+    private final AtomicLong head = new AtomicLong(); //Written by the drain thread.
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean enabled;
+    private Thread drainThread;
+
+    //Capacity is rounded up to a power of two.
+    public FrameTrace(String fileName, int capacity) {
+        int size = 1024;
+        while(size < capacity)
+            size <<= 1;
+
+        this.fileName = fileName;
+        this.size = size;
+        mask = size - 1;
+    }
+
+/******************************************************************************************/
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        if(enabled && ring == null) {
+            ring = new byte[size];
+            committed = new AtomicIntegerArray(size / RECORD_ALIGN);
+        }
+        if(enabled && drainThread == null) {
+            drainThread = new Thread(new Drain(), "FrameTrace");
+            drainThread.setDaemon(true);
+            drainThread.start();
+        }
+        this.enabled = enabled;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    //Called from the receive threads.  A frame recorded just as tracing is switched
+    //off may stay in the ring until it is switched on again.
+    public void record(byte[] frame, int offset, int length) {
+        if(!enabled)
+            return;
+
+        int recordLength = (HEADER_LENGTH + length + RECORD_ALIGN - 1) & -RECORD_ALIGN;
+        long t;
+        do {
+            t = tail.get();
+            if(recordLength > size - (t - head.get())) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while(!tail.compareAndSet(t, t + recordLength));
+
+        long now = System.nanoTime();
+        put(t, (byte)(length >> 8));
+        put(t + 1, (byte)length);
+        for(int i = 0; i < 8; i++)
+            put(t + 2 + i, (byte)(now >>> (56 - 8 * i)));
+
+        //Copy the frame in at most two pieces around the end of the ring.
+        int start = (int)(t + HEADER_LENGTH) & mask;
+        int first = Math.min(length, size - start);
+        System.arraycopy(frame, offset, ring, start, first);
+        System.arraycopy(frame, offset + first, ring, 0, length - first);
+
+        committed.lazySet(flag(t), 1); //Publishes the record.
+    }
+
+    private void put(long position, byte b) {
+        ring[(int)position & mask] = b;
+    }
+
+    private int get(long position) {
+        return ring[(int)position & mask] & 0xff;
+    }
+
+    private int flag(long position) {
+        return ((int)position & mask) / RECORD_ALIGN;
+    }
+
+/******************************************************************************************/
+
+    class Drain implements Runnable {
+
+        public void run() {
+            Writer out = null;
+            char[] line = new char[32 + 3 * 65536];
+
+            try {
+                out = new BufferedWriter(new FileWriter(fileName, true));
+
+                while(true) {
+                    long h = head.get();
+                    long t = tail.get();
+
+                    //Stop at the first record still being copied in.
+                    long start = h;
+                    while(h < t && committed.get(flag(h)) != 0) {
+                        int length = get(h) << 8 | get(h + 1);
+                        long stamp = 0;
+                        for(int i = 0; i < 8; i++)
+                            stamp = (stamp << 8) | get(h + 2 + i);
+
+                        //Format as "<nanos> <length>: <hex bytes>".
+                        String prefix = stamp + " " + length + ":";
+                        int n = prefix.length();
+                        prefix.getChars(0, n, line, 0);
+                        for(int i = 0; i < length; i++) {
+                            int b = get(h + HEADER_LENGTH + i);
+                            line[n++] = ' ';
+                            line[n++] = HEX[b >> 4];
+                            line[n++] = HEX[b & 0x0F];
+                        }
+                        line[n++] = '\n';
+                        out.write(line, 0, n);
+
+                        committed.lazySet(flag(h), 0); //Before head frees the room.
+                        h += (HEADER_LENGTH + length + RECORD_ALIGN - 1) & -RECORD_ALIGN;
+                    }
+
+                    if(h != start) {
+                        head.lazySet(h);
+                        continue;
+                    }
+                    if(h < t) {
+                        Thread.yield(); //A producer is part way through its copy.
+                        continue;
+                    }
+
+                    out.flush();
+                    if(drained())
+                        return;
+                    LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+                }
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+            finally {
+                synchronized(FrameTrace.this) {
+                    if(drainThread == Thread.currentThread()) { //Write failed.
+                        drainThread = null;
+                        enabled = false;
+                    }
+                }
+                try {
+                    if(out != null)
+                        out.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        //True, and the thread given up, once tracing is off and every reserved
+        //record has been written.  setEnabled(true) then starts a new drain thread.
+        private boolean drained() {
+            synchronized(FrameTrace.this) {
+                if(enabled || head.get() != tail.get())
+                    return false;
+                drainThread = null;
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package zigbee;
+
+/*
+ * Base of the reusable frame views.  wrap() points a view at a frame in the
+ * receive buffer and the getters read their fields from it in place, so
+ * nothing is copied or allocated.  A view is only valid during the callback
+ * it is passed to, the buffer is reused for the next frame.
+ */
+public abstract class FrameView {
+
+    protected byte[] frame;
+    protected int offset;
+    protected int length;
+
+    //Returns false if the frame is too short to hold the fixed fields.
+    public boolean wrap(byte[] frame, int offset, int length) {
+        if(length < minimumLength())
+            return false;
+
+        this.frame = frame;
+        this.offset = offset;
+        this.length = length;
+        return true;
+    }
+
+    protected abstract int minimumLength();
+
+    public int getFrameType() {
+        return frame[offset] & 0xff;
+    }
+
+    //Frame data length, frame type included.
+    public int length() {
+        return length;
+    }
+
+/******************************************************************************************/
+
+    protected int u8(int index) {
+        return frame[offset + index] & 0xff;
+    }
+
+    protected int u16(int index) {
+        return (frame[offset + index] & 0xff) << 8 | (frame[offset + index + 1] & 0xff);
+    }
+
+    protected long u64(int index) {
+        return XBee.getLong(frame, offset + index);
+    }
+
+    //Copy count bytes from index on into out, returns count.
+    protected int copy(int index, int count, byte[] out, int outOffset) {
+        System.arraycopy(frame, offset + index, out, outOffset, count);
+        return count;
+    }
+
+    protected String command(int index) {
+        return new String(new char[] {(char)u8(index), (char)u8(index + 1)});
+    }
+}
@@ -0,0 +1,313 @@
+package zigbee;
+
+import gnu.io.SerialPort;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.util.function.BiConsumer;
+
+/*
+ * Headless front end for the ZigBee engine.  Loads no AWT or Swing classes.
+ *
+ * Usage: java -cp ZigBee.jar zigbee.Gateway <port>[,<port>...] [baud] [api2] [events]
+ *        [reconnect] [trace] [capture=<file>] [history=<minutes>] [metrics=<seconds>]
+ *        [maxrate=<samples/s>] [deadband=<counts>[:<hysteresis>]] [serve=[<host>:]<port>]
+ *        [journal=<file>]
+ *
+ * The port may be a serial port name or any name understood by Transports,
+ * such as tcp:localhost:2000 for a ser2net server or replay:<file>@0 to run
+ * a capture through the engine as fast as possible.  Several comma separated
+ * ports share one engine, each limited to maxrate samples a second, by
+ * default CoordinatorPort.DEFAULT_MAX_SAMPLE_RATE.  Maxrate=0 lifts the
+ * limit, which a replay as fast as possible needs.
+ * Events runs the ports from the shared IoReactor instead of their own
+ * threads.  Reconnect opens lost ports again with backoff, at once when a
+ * PortWatcher sees the serial device come back.
+ *
+ * Deadband counts the samples that change a DIO line or move an ADC channel
+ * more than the given counts, see ChangeDetector, and adds the rate to the
+ * status line.
+ *
+ * Serve streams the engine's events to TCP clients and takes their dio
+ * commands, see StreamServer.  It listens on loopback unless a host is
+ * given.
+ *
+ * Journal writes dio commands to the file before sending them and sends
+ * those a node has not answered again after a reconnect or a restart, see
+ * CommandJournal.
+ *
+ * History keeps the samples of the last minutes in memory, up to
+ * HISTORY_BYTES.
+ *
+ * Metrics prints a full link and decoder snapshot at that interval.  The
+ * same values are published over JMX.
+ *
+ * Prints a status line every second.  Commands read from standard input:
+ *   dio <node> <line> <0|1>   drive a DIO line of a node low or high, the
+ *                             result is printed when the node answers
+ *   outputs <node|all> <mask> <values>
+ *                             drive the DIO lines in the hex mask of a node,
+ *                             or of every node by broadcast, to the bits of
+ *                             the hex values, with the time saved
+ *   nodes                     list known nodes
+ *   stats <1s|1m|15m>         window statistics of every node
+ *   metrics                   link and decoder metrics
+ *   quit                      close the port and exit
+ */
+public class Gateway {
+
+    private static final String TRACE_FILE = "frametrace.log";
+    private static final long STATUS_INTERVAL_MS = 1000;
+    private static final long HISTORY_BYTES = 256L << 20;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            System.err.println("Usage: Gateway <port>[,<port>...] [baud] [api2] [events]"
+                    + " [reconnect] [trace]"
+                    + " [capture=<file>] [history=<minutes>] [metrics=<seconds>]"
+                    + " [maxrate=<samples/s per port>] [deadband=<counts>[:<hysteresis>]]"
+                    + " [serve=[<host>:]<port>] [journal=<file>]");
+            System.exit(1);
+        }
+
+        int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600;
+        boolean escaped = false;
+        boolean trace = false;
+        boolean events = false;
+        boolean reconnect = false;
+        String captureFile = null;
+        int historyMinutes = 0;
+        int metricsSeconds = 0;
+        int maxSampleRate = CoordinatorPort.DEFAULT_MAX_SAMPLE_RATE;
+        ChangeDetector detector = null;
+        InetSocketAddress serveAddress = null;
+        String journalFile = null;
+        for(int i = 2; i < args.length; i++) {
+            if(args[i].equalsIgnoreCase("api2"))
+                escaped = true;
+            else if(args[i].equalsIgnoreCase("events"))
+                events = true;
+            else if(args[i].equalsIgnoreCase("reconnect"))
+                reconnect = true;
+            else if(args[i].equalsIgnoreCase("trace"))
+                trace = true;
+            else if(args[i].startsWith("capture="))
+                captureFile = args[i].substring(8);
+            else if(args[i].startsWith("history="))
+                historyMinutes = Integer.parseInt(args[i].substring(8));
+            else if(args[i].startsWith("metrics="))
+                metricsSeconds = Integer.parseInt(args[i].substring(8));
+            else if(args[i].startsWith("maxrate="))
+                maxSampleRate = Integer.parseInt(args[i].substring(8));
+            else if(args[i].startsWith("deadband=")) {
+                String[] band = args[i].substring(9).split(":");
+                detector = new ChangeDetector();
+                detector.setDeadband(Integer.parseInt(band[0]),
+                        band.length > 1 ? Integer.parseInt(band[1]) : 0);
+            }
+            else if(args[i].startsWith("journal="))
+                journalFile = args[i].substring(8);
+            else if(args[i].startsWith("serve=")) {
+                String address = args[i].substring(6);
+                int colon = address.lastIndexOf(':');
+                serveAddress = colon < 0
+                        ? new InetSocketAddress("127.0.0.1", Integer.parseInt(address))
+                        : new InetSocketAddress(address.substring(0, colon),
+                                Integer.parseInt(address.substring(colon + 1)));
+            }
+        }
+
+        final ZigBeeEngine engine = new ZigBeeEngine(TRACE_FILE);
+        engine.setAggregates(new WindowAggregates());
+        engine.setEventDriven(events);
+        engine.setReconnect(reconnect);
+        if(reconnect)
+            new PortWatcher().addListener(engine);
+        if(detector != null)
+            engine.addListener(detector);
+        engine.getTrace().setEnabled(trace);
+        if(captureFile != null)
+            engine.startCapture(captureFile);
+        if(journalFile != null) {
+            engine.setJournal(new CommandJournal(journalFile));
+            System.out.println(engine.getJournal().getPending() + " journaled commands pending");
+        }
+        if(historyMinutes > 0)
+            engine.setStore(new SampleStore(historyMinutes * 60000L, HISTORY_BYTES));
+        engine.addListener(
+            new EngineListener() {
+                public void nodeDiscovered(int node, long serial) {
+                    System.out.println("Node " + node + ": " + NodeRegistry.formatSerial(serial));
+                }
+
+                public void sampleReceived(int node, IoSample sample) {
+                }
+            }
+        );
+
+        engine.addFrameListener(
+            new FrameAdapter() {
+                public void modemStatus(ModemStatus status) {
+                    System.out.println("Modem status " + status.getStatus());
+                }
+
+                public void nodeIdentified(NodeIdentification node) {
+                    System.out.println("Node identified: "
+                            + NodeRegistry.formatSerial(node.getSerial()) + " \""
+                            + node.getIdentifier() + "\"");
+                }
+            }
+        );
+
+        engine.getMetrics().register(args[0]);
+        engine.getMetrics().start(System.out, metricsSeconds);
+
+        StreamServer server = null;
+        if(serveAddress != null) {
+            EventBus bus = new EventBus();
+            bus.attach(engine);
+            server = new StreamServer(engine, bus, serveAddress);
+            System.out.println("Streaming on " + serveAddress.getHostString() + ":"
+                    + server.getPort());
+        }
+        final StreamServer streams = server;
+
+        //One coordinator per comma separated port name.
+        for(String portName : args[0].split(",")) {
+            CoordinatorPort port = engine.open(portName, baudRate, SerialPort.DATABITS_8,
+                    SerialPort.STOPBITS_1, SerialPort.PARITY_NONE, escaped);
+            port.setMaxSampleRate(maxSampleRate);
+        }
+
+        final ChangeDetector changes = detector;
+        Thread status = new Thread(new Runnable() {
+            public void run() {
+                EngineMetrics metrics = engine.getMetrics();
+                long lastFrames = 0;
+                long lastChanges = 0;
+
+                while(engine.isOpen() || engine.isReconnecting()) {
+                    try {
+                        Thread.sleep(STATUS_INTERVAL_MS);
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+
+                    long frames = metrics.getFramesReceived();
+                    System.out.println("frames/s " + (frames - lastFrames) + ", nodes "
+                            + engine.getRegistry().size() + ", checksum errors "
+                            + metrics.getChecksumErrors() + ", queued commands "
+                            + metrics.getQueueDepth() + ", ports open "
+                            + metrics.getPortsOpen()
+                            + (engine.isReconnecting() ? " (reconnecting)" : "")
+                            + (engine.getJournal() == null ? "" : ", journaled "
+                            + engine.getJournal().getPending())
+                            + (changes == null ? "" : ", changes/s "
+                            + (changes.getChanges() - lastChanges))
+                            + (streams == null ? "" : ", clients " + streams.getClients()
+                            + " (" + streams.getSlowDisconnects() + " too slow)"));
+                    lastFrames = frames;
+                    if(changes != null)
+                        lastChanges = changes.getChanges();
+                }
+            }
+        }, "Status");
+        status.setDaemon(true);
+        status.start();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while((line = in.readLine()) != null) {
+            String[] words = line.trim().split("\\s+");
+
+            try {
+                if(words[0].equals("quit"))
+                    break;
+                else if(words[0].equals("nodes")) {
+                    NodeRegistry registry = engine.getRegistry();
+                    for(int node = 0; node < registry.size(); node++)
+                        System.out.println(node + ": "
+                                + NodeRegistry.formatSerial(registry.getSerial(node))
+                                + " on port " + registry.getPort(node));
+                }
+                else if(words[0].equals("metrics"))
+                    System.out.println(engine.getMetrics().getSnapshot());
+                else if(words[0].equals("stats") && words.length == 2) {
+                    printStats(engine, words[1].equals("15m") ? WindowAggregates.QUARTER_HOUR
+                            : words[1].equals("1m") ? WindowAggregates.MINUTE
+                            : WindowAggregates.SECOND);
+                }
+                else if(words[0].equals("dio") && words.length == 4) {
+                    final String command = line.trim();
+                    engine.setDigitalOutputAsync(Integer.parseInt(words[1]),
+                            Integer.parseInt(words[2]), words[3].equals("1")).whenComplete(
+                        new BiConsumer<byte[], Throwable>() {
+                            public void accept(byte[] response, Throwable failure) {
+                                System.out.println(command + ": " + (failure == null ? "OK"
+                                        : failure.getMessage()));
+                            }
+                        }
+                    );
+                }
+                else if(words[0].equals("outputs") && words.length == 4)
+                    setOutputs(engine, words[1], Integer.decode(words[2]),
+                            Integer.decode(words[3]), baudRate);
+                else if(words[0].length() > 0)
+                    System.out.println("Unknown command: " + line);
+            }
+            catch(IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        if(server != null)
+            server.close();
+        engine.close();
+        engine.stopCapture();
+        if(engine.getJournal() != null)
+            engine.getJournal().close();
+    }
+
+    private static void setOutputs(ZigBeeEngine engine, String node, int mask, int values,
+            int baudRate) {
+        if(node.equals("all")) {
+            OutputEstimate estimate = new OutputEstimate(engine.getRegistry().size(),
+                    Integer.bitCount(mask), true, baudRate);
+            System.out.println("outputs all: " + (engine.broadcastDigitalOutputs(mask, values)
+                    ? "sent, " + estimate : "not sent"));
+            return;
+        }
+
+        final String command = "outputs " + node;
+        engine.setDigitalOutputsAsync(Integer.parseInt(node), mask, values).whenComplete(
+            new BiConsumer<Void, Throwable>() {
+                public void accept(Void done, Throwable failure) {
+                    System.out.println(command + ": " + (failure == null ? "OK"
+                            : failure.getMessage()));
+                }
+            }
+        );
+    }
+
+    private static void printStats(ZigBeeEngine engine, int window) {
+        WindowAggregates.Snapshot stats = new WindowAggregates.Snapshot();
+        engine.getAggregates().query(window, System.currentTimeMillis(), stats);
+
+        for(int node = 0; node < stats.getNodes(); node++) {
+            StringBuilder line = new StringBuilder();
+            line.append(node).append(':');
+            for(int ch = 0; ch < WindowAggregates.ADC_CHANNELS; ch++)
+                if(stats.getCount(node, ch) > 0)
+                    line.append(String.format(" AD%d n=%d min=%d max=%d mean=%.1f sd=%.1f", ch,
+                            stats.getCount(node, ch), stats.getMin(node, ch),
+                            stats.getMax(node, ch), stats.getMean(node, ch),
+                            stats.getStdDev(node, ch)));
+            for(int dio = 0; dio < WindowAggregates.DIO_LINES; dio++)
+                if(stats.getTransitions(node, dio) > 0)
+                    line.append(" DIO").append(dio).append(" transitions=")
+                            .append(stats.getTransitions(node, dio));
+            System.out.println(line);
+        }
+    }
+}
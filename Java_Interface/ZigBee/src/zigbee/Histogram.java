@@ -0,0 +1,120 @@
+package zigbee;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Log-linear histogram of non-negative long values such as latencies in
+ * nanoseconds.  Values below SUB_BUCKETS are counted exactly, above that
+ * every power of two is split into SUB_BUCKETS linear buckets, which keeps
+ * the error of a percentile under 1 / SUB_BUCKETS.  All buckets are
+ * allocated up front and recording is a couple of shifts and one atomic
+ * increment, so any thread may record without locking.
+ */
+public class Histogram implements HistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private volatile long max;
+
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+/******************************************************************************************/
+
+    public void record(long value) {
+        if(value < 0)
+            value = 0;
+
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        if(value > max)
+            max = value; //A racing larger value may be lost, good enough for a gauge.
+    }
+
+    static int bucket(long value) {
+        if(value < SUB_BUCKETS)
+            return (int)value;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value); //Position of the top bit.
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    //Largest value counted in a bucket.
+    static long bucketLimit(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long low = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+/******************************************************************************************/
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double)sum.sum() / n;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    //Upper bound of the bucket holding the given fraction of values, 0 when empty.
+    public long getPercentile(double fraction) {
+        long n = 0;
+        for(int i = 0; i < BUCKETS; i++)
+            n += counts.get(i);
+        if(n == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(fraction * n);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank)
+                return Math.min(bucketLimit(i), max);
+        }
+        return max;
+    }
+
+    public long get50thPercentile() {
+        return getPercentile(0.50);
+    }
+
+    public long get90thPercentile() {
+        return getPercentile(0.90);
+    }
+
+    public long get99thPercentile() {
+        return getPercentile(0.99);
+    }
+
+    public long get999thPercentile() {
+        return getPercentile(0.999);
+    }
+
+    public String toString() {
+        return name + " n=" + getCount() + " mean=" + Math.round(getMean()) + " p50="
+                + get50thPercentile() + " p99=" + get99thPercentile() + " max=" + max;
+    }
+}
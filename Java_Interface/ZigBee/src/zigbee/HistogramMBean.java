@@ -0,0 +1,21 @@
+package zigbee;
+
+/*
+ * JMX view of a Histogram.
+ */
+public interface HistogramMBean {
+
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long get50thPercentile();
+
+    long get90thPercentile();
+
+    long get99thPercentile();
+
+    long get999thPercentile();
+}
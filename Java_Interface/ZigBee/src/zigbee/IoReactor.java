@@ -0,0 +1,167 @@
+package zigbee;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * One event loop thread shared by every event driven port of a JVM.  It
+ * waits on a selector for socket channels to become readable, and runs
+ * short tasks handed to it by other threads, which is how queued commands
+ * are written out.  An idle port costs a registered key and nothing else,
+ * and the thread sleeps in select() while every port is idle.
+ *
+ * Callbacks run on the reactor thread and must not block for long, a slow
+ * one delays every other port.  A channel that cannot take all its output
+ * keeps the rest and asks for write interest, see setWriteInterest().
+ *
+ * If select() itself fails the reactor closes every channel registered with
+ * it, which their ports see as a lost connection, and a new shared reactor
+ * is started for the ports that reconnect.
+ */
+public final class IoReactor {
+
+    private static IoReactor shared; //Started on first use.
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread thread;
+
+    private IoReactor() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(new Loop(), "IoReactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized IoReactor getShared() throws IOException {
+        if(shared == null)
+            shared = new IoReactor();
+        return shared;
+    }
+
+/******************************************************************************************/
+
+    //Run a task on the reactor thread.
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if(Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    //Call ready on the reactor thread whenever the channel has data, until the
+    //channel is closed.  The channel is switched to non-blocking mode.
+    public void register(final SelectableChannel channel, final Runnable ready)
+            throws IOException {
+        channel.configureBlocking(false);
+
+        //Register on the loop, a select() in progress would hold up the caller.
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, ready);
+                }
+                catch(ClosedChannelException e) {
+                    //Closed before it was registered, nothing to watch.
+                }
+            }
+        });
+    }
+
+    //Also call a registered channel's ready when it can take more output, or stop.
+    public void setWriteInterest(final SelectableChannel channel, final boolean write) {
+        Runnable task = new Runnable() {
+            public void run() {
+                SelectionKey key = channel.keyFor(selector);
+                if(key != null && key.isValid())
+                    key.interestOps(write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                            : SelectionKey.OP_READ);
+            }
+        };
+        if(Thread.currentThread() == thread)
+            task.run();
+        else
+            execute(task);
+    }
+
+    public int getRegisteredChannels() {
+        return selector.keys().size();
+    }
+
+/****************************************Event Loop****************************************/
+
+    class Loop implements Runnable {
+
+        public void run() {
+            while(true) {
+                Runnable task;
+                while((task = tasks.poll()) != null)
+                    run(task);
+
+                try {
+                    //Tasks queued since the poll have woken the selector already.
+                    selector.select();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                    fail();
+                    return;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(key.isValid())
+                        run((Runnable)key.attachment());
+                }
+            }
+        }
+
+        //The selector is broken.  Retire this reactor, so the next getShared() starts
+        //a new one, then close every channel and call its ready, so each port reads
+        //the failure and reconnects on the new reactor, or closes.
+        private void fail() {
+            synchronized(IoReactor.class) {
+                if(shared == IoReactor.this)
+                    shared = null;
+            }
+
+            Runnable task;
+            while((task = tasks.poll()) != null)
+                run(task); //Registrations among them are failed below.
+
+            for(SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                try {
+                    key.channel().close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+                run((Runnable)key.attachment());
+            }
+
+            try {
+                selector.close();
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //A failing port must not take the loop down with it.
+        private void run(Runnable task) {
+            try {
+                task.run();
+            }
+            catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
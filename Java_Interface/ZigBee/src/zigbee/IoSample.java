@@ -0,0 +1,101 @@
+package zigbee;
+
+import static zigbee.XBee.*;
+
+/*
+ * Reusable view of a 0x92 IO data sample RX indicator frame.  wrap() decodes
+ * the addresses, masks and samples of one frame into this object, which is
+ * then handed to listeners.  Listeners must copy anything they want to keep,
+ * the same object is filled again for the next frame.
+ */
+public class IoSample {
+
+    private long serial;
+    private int netAddress;
+    private int digitalMask;
+    private int digitalSamples;
+    private int analogMask;
+    private final int[] adc = new int[4];
+
+    //Returns false if the frame is too short for what its masks claim.
+    public boolean wrap(byte[] frame, int offset, int length) {
+        int digitalSampleIndex;
+        int analogSampleIndex;
+        int i;
+
+        if(length <= IO_PAYLOAD_AN_MASK) //Too short to hold the sample masks.
+            return false;
+
+        //Get digital mask.
+        digitalMask = (frame[offset + IO_PAYLOAD_DIG_MASK] & 0xff) << 8;
+        digitalMask |= frame[offset + IO_PAYLOAD_DIG_MASK + 1] & 0xff;
+
+        //Get analog mask.
+        analogMask = frame[offset + IO_PAYLOAD_AN_MASK] & 0xff;
+
+        //Calculate index for digital and analog values.
+        if(digitalMask != 0) {
+            digitalSampleIndex = IO_PAYLOAD_AN_MASK + 1;
+            analogSampleIndex = digitalSampleIndex + 2;
+        }
+        else {
+            digitalSampleIndex = 0;
+            analogSampleIndex = IO_PAYLOAD_AN_MASK + 1;
+        }
+
+        //Drop frames whose masks claim more samples than were sent.
+        if(analogSampleIndex + 2 * Integer.bitCount(analogMask & 0x0F) > length)
+            return false;
+
+        //Get source addresses.
+        serial = getLong(frame, offset + IO_PAYLOAD_SRC_SER_HI);
+        netAddress = (frame[offset + IO_PAYLOAD_SRC_NET_ADR] & 0xff) << 8;
+        netAddress |= frame[offset + IO_PAYLOAD_SRC_NET_ADR + 1] & 0xff;
+
+        //Extract digital samples (if any).
+        digitalSamples = 0;
+        if(digitalSampleIndex != 0) {
+            digitalSamples = (frame[offset + digitalSampleIndex] & 0xff) << 8;
+            digitalSamples |= frame[offset + digitalSampleIndex + 1] & 0xff;
+        }
+
+        //Extract analog samples, AD0-AD3 in mask order.
+        i = offset + analogSampleIndex;
+        for(int channel = 0; channel < 4; channel++) {
+            if((analogMask & (1 << channel)) != 0) {
+                adc[channel] = (frame[i] & 0xff) << 8 | (frame[i + 1] & 0xff);
+                i += 2;
+            }
+            else
+                adc[channel] = 0;
+        }
+
+        return true;
+    }
+
+/******************************************************************************************/
+
+    public long getSerial() {
+        return serial;
+    }
+
+    public int getNetAddress() {
+        return netAddress;
+    }
+
+    public int getDigitalMask() {
+        return digitalMask;
+    }
+
+    public int getDigitalSamples() {
+        return digitalSamples;
+    }
+
+    public int getAnalogMask() {
+        return analogMask;
+    }
+
+    public int getAdc(int channel) {
+        return adc[channel];
+    }
+}
@@ -0,0 +1,166 @@
+package zigbee;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/*
+ * Runs the engine against a CoordinatorSimulator to find the throughput
+ * ceiling of the receive and command paths, or to soak it for hours.
+ *
+ * Usage: java -cp ZigBee.jar zigbee.LoadTest <nodes> <rate> [seconds] [options]
+ *
+ * The rate is in samples per second per node, 0 sends as fast as the engine
+ * reads.  Seconds of 0 runs until killed.  Options:
+ *   api2            escaped framing
+ *   mixed           mix of digital only, analog only and full masks
+ *   noise=<n>       largest ADC step per sample, default 4
+ *   corrupt=<f>     fraction of frames with a damaged byte
+ *   commands=<n>    DIO commands per second sent to random nodes
+ *   ports=<n>       coordinators on the engine, each with its own simulator
+ *                   and its own nodes, default 1
+ *   shared          keep history, window statistics and a ChangeDetector,
+ *                   so every sample goes through all the shared structures
+ *   maxrate=<n>     sample budget of each port, default none so the test
+ *                   finds the ceiling
+ */
+public class LoadTest {
+
+    private static final long STATUS_INTERVAL_MS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.err.println("Usage: LoadTest <nodes> <rate> [seconds] [api2] [mixed]"
+                    + " [noise=<n>] [corrupt=<f>] [commands=<n>] [ports=<n>] [shared]"
+                    + " [maxrate=<n>]");
+            System.exit(1);
+        }
+
+        int nodes = Integer.parseInt(args[0]);
+        double rate = Double.parseDouble(args[1]);
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        boolean escaped = false;
+        int commandRate = 0;
+        int portCount = 1;
+        boolean shared = false;
+        int maxSampleRate = 0;
+
+        int noise = 4;
+        double corruption = 0;
+        boolean mixed = false;
+        for(int i = 3; i < args.length; i++) {
+            if(args[i].equalsIgnoreCase("api2"))
+                escaped = true;
+            else if(args[i].equalsIgnoreCase("mixed"))
+                mixed = true;
+            else if(args[i].startsWith("noise="))
+                noise = Integer.parseInt(args[i].substring(6));
+            else if(args[i].startsWith("corrupt="))
+                corruption = Double.parseDouble(args[i].substring(8));
+            else if(args[i].startsWith("commands="))
+                commandRate = Integer.parseInt(args[i].substring(9));
+            else if(args[i].startsWith("ports="))
+                portCount = Integer.parseInt(args[i].substring(6));
+            else if(args[i].equalsIgnoreCase("shared"))
+                shared = true;
+            else if(args[i].startsWith("maxrate="))
+                maxSampleRate = Integer.parseInt(args[i].substring(8));
+        }
+
+        ZigBeeEngine engine = new ZigBeeEngine("frametrace.log");
+        ChangeDetector detector = new ChangeDetector();
+        if(shared) {
+            engine.setStore(new SampleStore(60000, 64L << 20));
+            engine.setAggregates(new WindowAggregates());
+            detector.setDeadband(8, 2);
+            engine.addListener(detector);
+        }
+
+        CoordinatorSimulator[] simulators = new CoordinatorSimulator[portCount];
+        FrameDecoder[] decoders = new FrameDecoder[portCount];
+        for(int p = 0; p < portCount; p++) {
+            simulators[p] = new CoordinatorSimulator(nodes, rate, escaped);
+            simulators[p].setFirstSerial(CoordinatorSimulator.FIRST_SERIAL + (long)p * nodes);
+            simulators[p].setNoise(noise);
+            simulators[p].setCorruptionRate(corruption);
+            if(mixed)
+                simulators[p].setProfiles(CoordinatorSimulator.MIXED_PROFILES);
+
+            CoordinatorPort port = engine.open(simulators[p], escaped);
+            port.setMaxSampleRate(maxSampleRate);
+            decoders[p] = port.getDecoder();
+        }
+        Random random = new Random();
+        long startNanos = System.nanoTime();
+        long lastFrames = 0;
+        long commandsSent = 0;
+        final AtomicLong confirmed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        BiConsumer<byte[], Throwable> result = new BiConsumer<byte[], Throwable>() {
+            public void accept(byte[] response, Throwable failure) {
+                (failure == null ? confirmed : failed).incrementAndGet();
+            }
+        };
+
+        for(int second = 1; seconds == 0 || second <= seconds; second++) {
+            //Spread the commands over the interval.
+            long intervalEnd = System.currentTimeMillis() + STATUS_INTERVAL_MS;
+            for(int i = 0; i < commandRate; i++) {
+                int known = engine.getRegistry().size();
+                if(known > 0) {
+                    engine.setDigitalOutputAsync(random.nextInt(known), 4 + random.nextInt(4),
+                            random.nextBoolean()).whenComplete(result);
+                    commandsSent++;
+                }
+                long wait = (intervalEnd - System.currentTimeMillis()) / (commandRate - i);
+                if(wait > 0)
+                    Thread.sleep(wait);
+            }
+            long wait = intervalEnd - System.currentTimeMillis();
+            if(wait > 0)
+                Thread.sleep(wait);
+
+            long frames = framesDecoded(decoders);
+            long checksumErrors = 0;
+            for(FrameDecoder decoder : decoders)
+                checksumErrors += decoder.getChecksumErrors();
+            System.out.println(second + "s: frames/s " + (frames - lastFrames) + ", nodes "
+                    + engine.getRegistry().size() + ", checksum errors "
+                    + checksumErrors + ", commands " + commandsSent
+                    + " sent " + confirmed.get() + " confirmed " + failed.get() + " failed "
+                    + engine.getCommandsInFlight() + " in flight, round trip p99 "
+                    + (engine.getMetrics().getCommandRoundTrip().get99thPercentile() / 1000)
+                    + " us");
+            lastFrames = frames;
+
+            if(!engine.isOpen())
+                break;
+        }
+
+        long shed = engine.getMetrics().getShedSamples(); //Closed ports are dropped.
+        engine.close();
+
+        double elapsed = (System.nanoTime() - startNanos) * 1e-9;
+        long generated = 0, applied = 0;
+        for(CoordinatorSimulator simulator : simulators) {
+            generated += simulator.getFramesSent();
+            applied += simulator.getCommandsReceived();
+        }
+        long decoded = framesDecoded(decoders);
+        System.out.printf("%d frames generated, %d decoded in %.1f s, %.0f frames/s,"
+                + " %d commands applied by the simulators%n", generated, decoded, elapsed,
+                decoded / elapsed, applied);
+        if(shared)
+            System.out.println(detector.getChanges() + " of " + detector.getSamples()
+                    + " samples changed something");
+        if(maxSampleRate > 0)
+            System.out.println(shed + " samples over budget");
+    }
+
+    private static long framesDecoded(FrameDecoder[] decoders) {
+        long n = 0;
+        for(FrameDecoder decoder : decoders)
+            n += decoder.getFramesDecoded();
+        return n;
+    }
+}
@@ -0,0 +1,95 @@
+package zigbee;
+
+/*
+ * Open addressing hash map from primitive long keys to non-negative int
+ * values.  Linear probing, no boxing and no allocation except when the
+ * table grows.  Not thread safe, callers provide their own locking.
+ */
+public class LongIntHashMap {
+
+    public static final int NO_VALUE = -1;
+
+    private long[] keys;
+    private int[] values; //NO_VALUE marks an empty slot.
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while(capacity < expectedSize * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+/******************************************************************************************/
+
+    public int get(long key) {
+        int index = hash(key) & mask;
+
+        while(true) {
+            int value = values[index];
+            if(value == NO_VALUE || keys[index] == key)
+                return value;
+            index = (index + 1) & mask;
+        }
+    }
+
+    //Returns the previous value or NO_VALUE.
+    public int put(long key, int value) {
+        int index = hash(key) & mask;
+
+        while(values[index] != NO_VALUE) {
+            if(keys[index] == key) {
+                int old = values[index];
+                values[index] = value;
+                return old;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        if(++size >= resizeAt)
+            grow();
+
+        return NO_VALUE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(values, NO_VALUE);
+        size = 0;
+    }
+
+/******************************************************************************************/
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        java.util.Arrays.fill(values, NO_VALUE);
+        mask = capacity - 1;
+        resizeAt = capacity / 2;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        allocate(keys.length * 2);
+        size = 0;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldValues[i] != NO_VALUE)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    //Spread the bits, XBee serials share their upper 32 bits.
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -1,48 +1,42 @@
 package zigbee;
 
+import static zigbee.XBee.*;
+
+import javax.management.JMException;
 import javax.swing.*;
 import java.awt.*;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.function.BiConsumer;
 
-import gnu.io.CommPort;
-import gnu.io.CommPortIdentifier;
 import gnu.io.SerialPort;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 public class Main extends JFrame{
-    //Index values into IO data sample RX indicator frame payload array.
-    private static final int IO_PAYLOAD_FRAME_TYPE = 0, IO_PAYLOAD_SRC_SER_HI = 1,
-            IO_PAYLOAD_SRC_SER_LO = 5, IO_PAYLOAD_SRC_NET_ADR = 9,
-            IO_PAYLOAD_OPTIONS = 11, IO_PAYLOAD_NUM_SAMPLES = 12,
-            IO_PAYLOAD_DIG_MASK = 13, IO_PAYLOAD_AN_MASK = 15;
-
-    //Analog mask values.
-    private static final int ADC_0 = 0x01, ADC_1  = 0x02, ADC_2 = 0x04,
-            ADC_3 = 0x08, ADC_VCC = 0x80;
+    //Frame trace log file.
+    private static final String TRACE_FILE = "frametrace.log";
 
-    //Digital mask values.
-    private static final int DIO_0 = 0x0001,  DIO_1 = 0x0002,  DIO_2 = 0x0004,
-            DIO_3 = 0x0008,  DIO_4 = 0x0010,  DIO_5 = 0x0020,  DIO_6 = 0x0040,
-            DIO_7 = 0x0080,  DIO_10 = 0x0400, DIO_11 = 0x0800, DIO_12 = 0x1000;
+    //Rate at which the device panel is redrawn.
+    private static final int RENDER_RATE_HZ = 30;
 
-    //Zigbee frame types.
-    private static final byte IO_DATA_SAMPLE_RX_INDICATOR_FRAME = (byte)0x92;
+    //ADC counts a reading must move before the panel follows it, about a tenth
+    //of a degree on the temperature sensor, and the extra counts to turn back.
+    private static final int ADC_DEADBAND = 1, ADC_HYSTERESIS = 1;
 
     private static final int APP_WIDTH = 750, APP_HEIGHT = 450,
             COMPANEL_START_X = 0, COMPANEL_START_Y = 0, COMPANEL_WIDTH = 744, COMPANEL_HEIGHT = 85,
             DEVPANEL_START_X = 0, DEVPANEL_START_Y = 85, DEVPANEL_WIDTH = 744, DEVPANEL_HEIGHT = 335;
 
-    private boolean finished = true;
-
-    private CommPort commPort;
+    //Protocol engine, this window is one of its clients.
+    private ZigBeeEngine engine = new ZigBeeEngine(TRACE_FILE);
+    private NodeRegistry registry = engine.getRegistry(); //Every node heard from.
+    private volatile int selectedNode = NodeRegistry.NO_NODE; //Node shown and controlled.
+    private ChangeDetector changes = new ChangeDetector(); //Samples that move the panel.
+    private PortWatcher portWatcher = new PortWatcher(); //Serial ports, enumerated off the EDT.
 
-    private ZFrame zFrame = new ZFrame(); //Stores Zigbee frame data.
-    private RX rx = new RX(); //Keep track of frame assembly data.
-    private TX tx = new TX(); //Create buffer to transmit Zigbee frames.
+    //Latest sample of the selected node and the sample currently on screen.
+    private volatile long displaySample = PackedSample.NONE;
+    private long renderedSample = PackedSample.NONE; //Event dispatch thread only.
 
     private JPanel comPanel, devicePanel;
     private JLabel comPortsLabel, baudLabel, dataBitsLabel, parityLabel, stopBitsLabel,
@@ -54,21 +48,13 @@ public class Main extends JFrame{
     private JButton comPortsBtn, connectBtn, disconnectBtn, led1Btn, led2Btn,
             led3Btn, led4Btn, devicesBtn;
     private JComboBox comPortsBox, baudBox, dataBitsBox, parityBox, stopBitsBox,
-            flowControlBox, devicesBox;
+            flowControlBox, devicesBox, apiModeBox;
+    private JCheckBox traceBox;
     private JTextField cField, fField;
     private JSlider adcXSlider, adcYSlider;
     private JProgressBar adcBar;
     private ImageIcon ledOff, ledOn, switchOff, switchOn, btnUnpushed, btnPushed;
 
-    //Rx states.
-    enum RXStates {
-        READY,
-        LENGTH,
-        DATABLOCK,
-        PROCESS,
-        INVALID
-    };
-
     public Main() {
         super("AvidCore Systems - ZigBee Expansion Board Monitor");
 
@@ -98,7 +84,8 @@ public class Main extends JFrame{
 
         comPortsBox = new JComboBox();
         comPortsBox.setBounds(120, 20, 100, 20);
-        GetComPorts(); //Populate combo box with available com ports.
+        comPortsBox.setEditable(true); //Allows tcp:, pty: and fifo: port names.
+        GetComPorts(); //Populate combo box with the com ports found so far.
         comPanel.add(comPortsBox);
 
         comPortsBtn = new JButton("Refresh Com Ports");
@@ -114,6 +101,12 @@ public class Main extends JFrame{
         disconnectBtn.setEnabled(false);
         comPanel.add(disconnectBtn);
 
+        apiModeBox = new JComboBox();
+        apiModeBox.setBounds(630, 20, 99, 20);
+        apiModeBox.addItem("API MODE 1");
+        apiModeBox.addItem("API MODE 2");
+        comPanel.add(apiModeBox);
+
         baudLabel = new JLabel("Baud Rate:");
         baudLabel.setBounds(58, 50, 70, 20);
         comPanel.add(baudLabel);
@@ -341,13 +334,59 @@ public class Main extends JFrame{
         btn1GFXLabel.setBounds(620, 110, 100, 100);
         devicePanel.add(btn1GFXLabel);
 
+        traceBox = new JCheckBox("Trace Frames");
+        traceBox.setBounds(150, 20, 110, 20);
+        devicePanel.add(traceBox);
+
+        devicesLabel = new JLabel("Device:");
+        devicesLabel.setBounds(440, 25, 50, 20);
+        devicePanel.add(devicesLabel);
+
+        devicesBox = new JComboBox();
+        devicesBox.setBounds(490, 25, 140, 20);
+        devicePanel.add(devicesBox);
+
+        devicesBtn = new JButton("Refresh");
+        devicesBtn.setBounds(645, 25, 85, 20);
+        devicePanel.add(devicesBtn);
+
 /*************************************Action Listeners*************************************/
 
         comPortsBtn.addActionListener(
             new ActionListener() {
                 public void actionPerformed (ActionEvent e) {
-                    comPortsBox.removeAllItems();
-                    GetComPorts(); //Re-enumerate the com ports.
+                    portWatcher.rescan(); //Re-enumerate the com ports in the background.
+                }
+            }
+        );
+
+        devicesBox.addActionListener(
+            new ActionListener() {
+                public void actionPerformed (ActionEvent e) {
+                    //Combo box entries are in node number order.
+                    selectedNode = devicesBox.getSelectedIndex();
+                    showNode(selectedNode);
+                }
+            }
+        );
+
+        traceBox.addActionListener(
+            new ActionListener() {
+                public void actionPerformed (ActionEvent e) {
+                    engine.getTrace().setEnabled(traceBox.isSelected());
+                }
+            }
+        );
+
+        devicesBtn.addActionListener(
+            new ActionListener() {
+                public void actionPerformed (ActionEvent e) {
+                    int selected = devicesBox.getSelectedIndex();
+                    devicesBox.removeAllItems();
+                    for(int i = 0; i < registry.size(); i++)
+                        addDevice(i);
+                    if(selected >= 0)
+                        devicesBox.setSelectedIndex(selected);
                 }
             }
         );
@@ -356,7 +395,6 @@ public class Main extends JFrame{
             new ActionListener() {
                 public void actionPerformed (ActionEvent e) {    
                     try {
-                        finished = false;
                         connect();
                         disconnectBtn.setEnabled(true);
                         connectBtn.setEnabled(false);
@@ -367,6 +405,7 @@ public class Main extends JFrame{
                         parityBox.setEnabled(false);
                         stopBitsBox.setEnabled(false);
                         flowControlBox.setEnabled(false);
+                        apiModeBox.setEnabled(false);
                         led1Btn.setEnabled(true);
                         led2Btn.setEnabled(true);
                         led3Btn.setEnabled(true);
@@ -384,8 +423,7 @@ public class Main extends JFrame{
             new ActionListener() {
                 public void actionPerformed (ActionEvent e) {
                     try {
-                        finished = true;
-                        commPort.close();
+                        engine.close();
                         disconnectBtn.setEnabled(false);
                         connectBtn.setEnabled(true);
                         comPortsBtn.setEnabled(true);
@@ -395,6 +433,7 @@ public class Main extends JFrame{
                         parityBox.setEnabled(true);
                         stopBitsBox.setEnabled(true);
                         flowControlBox.setEnabled(true);
+                        apiModeBox.setEnabled(true);
                         led1Btn.setEnabled(false);
                         led2Btn.setEnabled(false);
                         led3Btn.setEnabled(false);
@@ -411,6 +450,8 @@ public class Main extends JFrame{
                         switch3GFXLabel.setIcon(switchOff);
                         switch4GFXLabel.setIcon(switchOff);
                         btn1GFXLabel.setIcon(btnUnpushed);
+                        displaySample = PackedSample.NONE;
+                        renderedSample = PackedSample.NONE;
                     }
                     catch(Exception err) {
                         JOptionPane.showMessageDialog(comPanel.getParent(), err,
@@ -423,31 +464,7 @@ public class Main extends JFrame{
         led1Btn.addActionListener(
             new ActionListener() {
                 public void actionPerformed (ActionEvent e) {
-                   tx.data[0]  = 0x7E; //Start of frame.
-                   
-                   tx.data[1]  = 0x00; //Frame length.
-                   tx.data[2]  = 0x10;
-                   
-                   tx.data[3]  = 0x17; //Frame type.
-
-                   tx.data[4]  = 0x00; //Frame ID.
-
-                   //Addresses set up in rx method.
-
-                   tx.data[15] = 0x02; //Apply changes.
-
-                   tx.data[16] = 0x44; //D
-                   tx.data[17] = 0x34; //4
-
-                   if(led1GFXLabel.getIcon() == ledOn)
-                       tx.data[18] = 0x04; //Digital output, low.
-                   else
-                       tx.data[18] = 0x05; //Digital output, high.
-
-                   setChecksum(20);
-                   
-                   tx.txLength = 20;
-                   tx.dataToSend = true;
+                    toggleLed(4, led1GFXLabel);
                 }
             }
         );
@@ -455,31 +472,7 @@ public class Main extends JFrame{
         led2Btn.addActionListener(
             new ActionListener() {
                 public void actionPerformed (ActionEvent e) {
-                    tx.data[0]  = 0x7E; //Start of frame.
-
-                   tx.data[1]  = 0x00; //Frame length.
-                   tx.data[2]  = 0x10;
-
-                   tx.data[3]  = 0x17; //Frame type.
-
-                   tx.data[4]  = 0x00; //Frame ID.
-
-                   //Addresses set up in rx method.
-
-                   tx.data[15] = 0x02; //Apply changes.
-
-                   tx.data[16] = 0x44; //D
-                   tx.data[17] = 0x35; //5
-
-                   if(led2GFXLabel.getIcon() == ledOn)
-                       tx.data[18] = 0x04; //Digital output, low.
-                   else
-                       tx.data[18] = 0x05; //Digital output, high.
-
-                   setChecksum(20);
-
-                   tx.txLength = 20;
-                   tx.dataToSend = true;
+                    toggleLed(5, led2GFXLabel);
                 }
             }
         );
@@ -487,31 +480,7 @@ public class Main extends JFrame{
         led3Btn.addActionListener(
             new ActionListener() {
                 public void actionPerformed (ActionEvent e) {
-                    tx.data[0]  = 0x7E; //Start of frame.
-
-                   tx.data[1]  = 0x00; //Frame length.
-                   tx.data[2]  = 0x10;
-
-                   tx.data[3]  = 0x17; //Frame type.
-
-                   tx.data[4]  = 0x00; //Frame ID.
-
-                   //Addresses set up in rx method.
-
-                   tx.data[15] = 0x02; //Apply changes.
-
-                   tx.data[16] = 0x44; //D
-                   tx.data[17] = 0x36; //6
-
-                   if(led3GFXLabel.getIcon() == ledOn)
-                       tx.data[18] = 0x04; //Digital output, low.
-                   else
-                       tx.data[18] = 0x05; //Digital output, high.
-
-                   setChecksum(20);
-
-                   tx.txLength = 20;
-                   tx.dataToSend = true;
+                    toggleLed(6, led3GFXLabel);
                 }
             }
         );
@@ -519,53 +488,81 @@ public class Main extends JFrame{
         led4Btn.addActionListener(
             new ActionListener() {
                 public void actionPerformed (ActionEvent e) {
-                    tx.data[0]  = 0x7E; //Start of frame.
-
-                   tx.data[1]  = 0x00; //Frame length.
-                   tx.data[2]  = 0x10;
-
-                   tx.data[3]  = 0x17; //Frame type.
-
-                   tx.data[4]  = 0x00; //Frame ID.
-
-                   //Addresses set up in rx method.
-
-                   tx.data[15] = 0x02; //Apply changes.
+                    toggleLed(7, led4GFXLabel);
+                }
+            }
+        );
 
-                   tx.data[16] = 0x44; //D
-                   tx.data[17] = 0x37; //7
+/****************************************Add Panels****************************************/
 
-                   if(led4GFXLabel.getIcon() == ledOn)
-                       tx.data[18] = 0x04; //Digital output, low.
-                   else
-                       tx.data[18] = 0x05; //Digital output, high.
+        add(comPanel);
+        add(devicePanel);
 
-                   setChecksum(20);
+        EngineClient client = new EngineClient();
+        changes.setDeadband(ADC_DEADBAND, ADC_HYSTERESIS);
+        changes.addListener(client);
+        engine.addListener(client);
+        engine.addListener(changes);
+
+        //Keep the com port list current and reconnect a coordinator that is unplugged
+        //and plugged back in.
+        engine.setReconnect(true);
+        portWatcher.addListener(engine);
+        portWatcher.addListener(
+            new PortWatcher.Listener() {
+                public void portAdded(String name) {
+                    comPortsChanged();
+                }
 
-                   tx.txLength = 20;
-                   tx.dataToSend = true;
+                public void portRemoved(String name) {
+                    comPortsChanged();
                 }
             }
         );
+        GetComPorts(); //Anything found before the listener was added.
 
-/****************************************Add Panels****************************************/
+        //Link metrics for jconsole or any other JMX client.
+        try {
+            engine.getMetrics().register("Main");
+            engine.getMetrics().start(null, 0);
+        }
+        catch(JMException e) {
+            e.printStackTrace();
+        }
 
-        add(comPanel);
-        add(devicePanel);
+        //Redraw the device panel at a fixed rate from the latest published sample.
+        new Timer(1000 / RENDER_RATE_HZ,
+            new ActionListener() {
+                public void actionPerformed (ActionEvent e) {
+                    renderSample();
+                }
+            }
+        ).start();
     }
 
 /************************************Enumerate Com Ports***********************************/
 
+    //Fill the combo box from the watcher's list, keeping the port shown.
     private void GetComPorts() {
+        Object selected = comPortsBox.getSelectedItem();
 
-        java.util.Enumeration<CommPortIdentifier> portEnum = CommPortIdentifier.getPortIdentifiers();
+        comPortsBox.removeAllItems();
+        for(String name : portWatcher.getPorts())
+            comPortsBox.addItem(name);
+
+        if(selected != null)
+            comPortsBox.setSelectedItem(selected);
+    }
 
-        while (portEnum.hasMoreElements()) {
-            CommPortIdentifier portIdentifier = portEnum.nextElement();
-            if(portIdentifier.getPortType() == CommPortIdentifier.PORT_SERIAL) {
-                comPortsBox.addItem(portIdentifier.getName());
+    //Called by the port watcher on its own thread.
+    private void comPortsChanged() {
+        SwingUtilities.invokeLater(
+            new Runnable() {
+                public void run() {
+                    GetComPorts();
+                }
             }
-        }
+        );
     }
 
 /********************************Connect To The Serial Port********************************/
@@ -573,20 +570,6 @@ public class Main extends JFrame{
     private void connect() throws Exception {
         int baudRate, dataBits, stopBits, parityBits;
 
-        //Get string name of serial port.
-        CommPortIdentifier portIdentifier = CommPortIdentifier.getPortIdentifier(
-                comPortsBox.getSelectedItem().toString());
-
-        //Check if port is already in use.  If so, display a message and exit.
-        if(portIdentifier.isCurrentlyOwned()) {
-            JOptionPane.showMessageDialog(comPanel.getParent(), "Com Port Is Already In Use",
-                                "Com Port Is Already In Use", JOptionPane.WARNING_MESSAGE);
-            return;
-        }
-             
-        commPort = portIdentifier.open(this.getClass().getName(),2000);
-        SerialPort serialPort = (SerialPort) commPort;
-
         baudRate = (Integer) baudBox.getSelectedItem();
 
         if(dataBitsBox.getSelectedIndex() == 0)
@@ -616,367 +599,159 @@ public class Main extends JFrame{
         else
             parityBits = SerialPort.PARITY_NONE;
 
-        serialPort.setSerialPortParams(baudRate, dataBits, stopBits, parityBits);
-
-        InputStream in = serialPort.getInputStream();
-        OutputStream out = serialPort.getOutputStream();
-
-        (new Thread(new SerialReader(in))).start();
-        (new Thread(new SerialWriter(out))).start();   
+        engine.open(comPortsBox.getSelectedItem().toString(), baudRate, dataBits, stopBits,
+                parityBits, apiModeBox.getSelectedIndex() == 1);
     }
 
-/************************************Serial Reader Class***********************************/
-
-    class SerialReader implements Runnable {
+/******************************************************************************************/
 
-        InputStream in;
+    //Called by the engine and the change detector on the reader thread.
+    class EngineClient implements EngineListener, ChangeListener {
 
-        public SerialReader (InputStream in) {
-            this.in = in;
+        public void nodeDiscovered(final int node, long serial) {
+            SwingUtilities.invokeLater(
+                new Runnable() {
+                    public void run() {
+                        addDevice(node);
+                    }
+                }
+            );
         }
 
-        public void run() {
-            byte[] buffer = new byte[1024];
-            int len = -1;
+        public void sampleReceived(int node, IoSample sample) {
+        }
 
-            try {
-                while ( ( len = this.in.read(buffer)) > -1) {
-                    if(finished) //Exit if disconnect has been clicked.
-                        return;
-                    
-                    assembleFrame(buffer, len);
-                }
-            }
-            catch ( IOException e ) {
-                e.printStackTrace();
-            }
+        //Publish the selected node for the renderer, only when something moved.
+        public void sampleChanged(int node, int changed, long sample) {
+            if(node == selectedNode)
+                displaySample = sample;
         }
     }
 
-/************************************Serial Writer Class***********************************/
+/******************************************************************************************/
 
-    class SerialWriter implements Runnable {
+    //Update only the widgets whose values changed since the last render.  Runs on
+    //the event dispatch thread.
+    void renderSample() {
+        long sample = displaySample;
 
-        OutputStream out;
+        if(sample == renderedSample || !PackedSample.isValid(sample))
+            return;
 
-        public SerialWriter(OutputStream out) {
-            this.out = out;
-        }
+        //Everything is redrawn when coming from the disconnected state.
+        long changed = PackedSample.isValid(renderedSample) ? sample ^ renderedSample : -1L;
+        int digital = PackedSample.digital(sample);
+        int analogMask = PackedSample.analogMask(sample);
+        renderedSample = sample;
 
-        public void run() {
-            try {
-                while (tx.txLength > -1) {
-                    if(finished) //Exit if disconnect has been clicked.
-                        return;
+        //Update digital I/Os!
+        if((changed & DIO_4) != 0)
+            led1GFXLabel.setIcon((digital & DIO_4) != 0 ? ledOn : ledOff);
 
-                    try{
-                        Thread.currentThread().sleep(100);//sleep for 100 ms
-                    }
-                    catch(Exception e){
-                        e.printStackTrace();
-                    }
-                    
-                    if(tx.dataToSend) { //Send any data in tx buffer.
-                        this.out.write(tx.data, 0, tx.txLength);
-                        tx.dataToSend = false;
-                    }
-                }
-            }
-            catch ( IOException e ) {
-                e.printStackTrace();
-            }
-        }
-    }
+        if((changed & DIO_5) != 0)
+            led2GFXLabel.setIcon((digital & DIO_5) != 0 ? ledOn : ledOff);
 
-/******************************************************************************************/
-    class ZFrame {
+        if((changed & DIO_6) != 0)
+            led3GFXLabel.setIcon((digital & DIO_6) != 0 ? ledOn : ledOff);
 
-        int length;
-        byte checksum;
-        byte[] payload;
+        if((changed & DIO_7) != 0)
+            led4GFXLabel.setIcon((digital & DIO_7) != 0 ? ledOn : ledOff);
 
-        public ZFrame() {
-            length = 0; //Number of bytes in the payload array.
-            checksum = 0;
-            payload = new byte[64];
-        }
-    }
+        if((changed & DIO_10) != 0)
+            switch3GFXLabel.setIcon((digital & DIO_10) != 0 ? switchOn : switchOff);
 
-/******************************************************************************************/
+        if((changed & DIO_11) != 0)
+            switch4GFXLabel.setIcon((digital & DIO_11) != 0 ? switchOn : switchOff);
 
-    class RX {
-        RXStates rxState;
-        byte data[];
-        int stateCount;
-        int dataIndex;
-        int rxLength;
-        
-        public RX() {
-            rxState = RXStates.READY;
-            data = new byte[64];
+        if((changed & DIO_12) != 0)
+            btn1GFXLabel.setIcon((digital & DIO_12) != 0 ? btnPushed : btnUnpushed);
+
+        //Update analog IOs!
+        if((changed & (PackedSample.adcField(0) | ADC_0 << 16)) != 0) {
+            if((analogMask & ADC_0) != 0)
+                adcXSlider.setValue((PackedSample.adc(sample, 0) * 120)/1200);
+            else
+                adcXSlider.setValue(0);
         }
-    }
 
-/******************************************************************************************/
+        if((changed & (PackedSample.adcField(1) | ADC_1 << 16)) != 0) {
+            if((analogMask & ADC_1) != 0)
+                adcYSlider.setValue((PackedSample.adc(sample, 1) * 120)/1200);
+            else
+                adcYSlider.setValue(0);
+        }
 
-    class TX {
-        byte data[];
-        int txLength;
-        boolean dataToSend;
-        
-        public TX() {
-            data = new byte[64];
-            txLength = 0;
-            dataToSend = false;
+        if((changed & (PackedSample.adcField(2) | ADC_2 << 16)) != 0) {
+            if((analogMask & ADC_2) != 0)
+                adcBar.setValue((PackedSample.adc(sample, 2) * 120)/1200);
+            else
+                adcBar.setValue(0);
         }
-    }
 
-/******************************************************************************************/
+        if((changed & (PackedSample.adcField(3) | ADC_3 << 16)) != 0) {
+            if((analogMask & ADC_3) != 0) {
+                int mv = (PackedSample.adc(sample, 3) * 1200) / 1024;
+                float degC = mv / 10.0f;
+                float degF = degC * 1.8f + 32;
 
-    void assembleFrame(byte[] buffer, int length) {
-        int thisIndex = 0;
+                int degFInt = (int)(degF *= 10);
+                degF = degFInt / 10.0f;
 
-        try {
-            while(thisIndex < length) {
-                //Move from READY state to LENGTH state.
-                if(rx.rxState == RXStates.READY && buffer[thisIndex] == 0x7E) {
-                    rx.rxState = RXStates.LENGTH;
-                    rx.stateCount = 2;
-                    rx.rxLength = 0;
-                    thisIndex++;
-                }
-                else if(rx.rxState == RXStates.LENGTH) {
-                    if(rx.stateCount == 2) { //Get upper byte of packet length.
-                        rx.rxLength = buffer[thisIndex];
-                        rx.rxLength <<= 8; //Save into upper byte of word.
-                        rx.stateCount--;
-                        thisIndex++;
-                    }
-                    else if(rx.stateCount == 1) { //Get lower byte of packet length.
-                        rx.rxLength |= buffer[thisIndex] & 0xff; //Save into lower byte of word.
-                        rx.stateCount = rx.rxLength;
-                        rx.rxState = RXStates.DATABLOCK;
-                        thisIndex++;
-                    }
-                }
-                else if(rx.rxState == RXStates.DATABLOCK) {
-                    rx.data[rx.dataIndex] = buffer[thisIndex];
-                    rx.dataIndex++;
-                    rx.stateCount--;
-                    thisIndex++;
-                    if(rx.stateCount == 0)
-                        rx.rxState = RXStates.PROCESS;
-                }
-                else if(rx.rxState == RXStates.PROCESS) {
-                    zFrame.checksum = buffer[thisIndex]; //Get checksum.
-                    //Fill zFrame data members.
-                    zFrame.length = rx.rxLength;
-                    for(int i = 0; i < rx.rxLength; i++)
-                        zFrame.payload[i] = rx.data[i];
-
-                    //Do something with zFrame data.
-                    processZFrame();
-
-                    //Clear variables for next packet.
-                    rx.rxState = RXStates.READY;
-                    rx.dataIndex = 0;
-                    rx.stateCount = 0;
-                    for(int i = 0; i < rx.rxLength; i++)
-                        rx.data[i] = 0; //Reset data array.
-                }
-                else { //Invalid state.
-                    rx.rxState = RXStates.READY;
-                    rx.dataIndex = 0;
-                    rx.stateCount = 0;
-                    thisIndex++;
-                }
+                cField.setText(Float.toString(degC));
+                fField.setText(Float.toString(degF));
+            }
+            else {
+                cField.setText("N/A");
+                fField.setText("N/A");
             }
-        }
-        //Just in case the algorithm goes off the rails (which it will),
-        //This will catch it and start over.
-        catch (Exception e) {
-            rx.rxState = RXStates.READY;
-            rx.dataIndex = 0;
-            rx.stateCount = 0;
-            System.out.println("Invalid state");
         }
     }
 
-/******************************************************************************************/
-
-    void processZFrame() {
-        int digitalMask = 0;
-        int analogMask = 0;
-        int digitalSampleIndex;
-        int analogSampleIndex;
-        int digitalSamples = 0;
-        int adc0 = 0;
-        int adc1 = 0;
-        int adc2 = 0;
-        int adc3 = 0;
-        int i;
-
-        switch(zFrame.payload[0]) {
-            case IO_DATA_SAMPLE_RX_INDICATOR_FRAME:
-                //Get digital mask.
-                digitalMask = zFrame.payload[IO_PAYLOAD_DIG_MASK];
-                digitalMask <<= 8;
-                digitalMask |= zFrame.payload[IO_PAYLOAD_DIG_MASK + 1] & 0xff;
-                
-                //Get analog mask.
-                analogMask = zFrame.payload[IO_PAYLOAD_AN_MASK];
-
-                //Calculate index for digital values.
-                if(digitalMask != 0)
-                    digitalSampleIndex = IO_PAYLOAD_AN_MASK + 1;
-                else
-                    digitalSampleIndex = 0;
-
-                //Calculate index for analog values.
-                if(digitalMask != 0)
-                    analogSampleIndex = digitalSampleIndex + 2;
-                else
-                    analogSampleIndex = IO_PAYLOAD_AN_MASK + 1;
-
-                //Extract digital samples (if any).
-                if(digitalSampleIndex != 0) {
-                    digitalSamples = zFrame.payload[digitalSampleIndex];
-                    digitalSamples <<= 8;
-                    digitalSamples |= zFrame.payload[digitalSampleIndex + 1] & 0xff;
-                }
-
-                i = 0;
-                //Extract analog samples.
-                if((analogMask & ADC_0) != 0) {
-                    adc0 = zFrame.payload[analogSampleIndex + i];
-                    adc0 <<= 8;
-                    adc0 |= zFrame.payload[analogSampleIndex + i + 1] & 0xff;
-                    i += 2;
-                }
-                if((analogMask & ADC_1) != 0) {
-                    adc1 = zFrame.payload[analogSampleIndex + i];
-                    adc1 <<= 8;
-                    adc1 |= zFrame.payload[analogSampleIndex + i + 1] & 0xff;
-                    i += 2;
-                }
-                if((analogMask & ADC_2) != 0) {
-                    adc2 = zFrame.payload[analogSampleIndex + i];
-                    adc2 <<= 8;
-                    adc2 |= zFrame.payload[analogSampleIndex + i + 1] & 0xff;
-                    i += 2;
-                }
-                if((analogMask & ADC_3) != 0) {
-                    adc3 = zFrame.payload[analogSampleIndex + i];
-                    adc3 <<= 8;
-                    adc3 |= zFrame.payload[analogSampleIndex + i + 1] & 0xff;
-                    i += 2;
-                }
-                
-                //Update digital I/Os!
-                if((digitalSamples & DIO_4 & digitalMask) != 0)
-                    led1GFXLabel.setIcon(ledOn);
-                else
-                    led1GFXLabel.setIcon(ledOff);
-
-                if((digitalSamples & DIO_5 & digitalMask) != 0)
-                    led2GFXLabel.setIcon(ledOn);
-                else
-                    led2GFXLabel.setIcon(ledOff);
-
-                if((digitalSamples & DIO_6 & digitalMask) != 0)
-                    led3GFXLabel.setIcon(ledOn);
-                else
-                    led3GFXLabel.setIcon(ledOff);
-
-                if((digitalSamples & DIO_7 & digitalMask) != 0)
-                    led4GFXLabel.setIcon(ledOn);
-                else
-                    led4GFXLabel.setIcon(ledOff);
-
-                if((digitalSamples & DIO_10 & digitalMask) != 0)
-                    switch3GFXLabel.setIcon(switchOn);
-                else
-                    switch3GFXLabel.setIcon(switchOff);
-
-                 if((digitalSamples & DIO_11 & digitalMask) != 0)
-                    switch4GFXLabel.setIcon(switchOn);
-                else
-                    switch4GFXLabel.setIcon(switchOff);
-
-                 if((digitalSamples & DIO_12 & digitalMask) != 0)
-                    btn1GFXLabel.setIcon(btnPushed);
-                else
-                    btn1GFXLabel.setIcon(btnUnpushed);
-
-                //Update analog IOs!
-                if((analogMask & ADC_0) != 0) {
-                    adcXSlider.setValue((adc0 * 120)/1200);
-                }
-                else
-                    adcXSlider.setValue(0);
+    //Publish a node's last known state so the renderer shows it straight away.
+    void showNode(int node) {
+        if(node == NodeRegistry.NO_NODE || node >= registry.size())
+            return;
 
-                if((analogMask & ADC_1) != 0) {
-                    adcYSlider.setValue((adc1 * 120)/1200);
-                }
-                else
-                    adcYSlider.setValue(0);
+        displaySample = PackedSample.pack(registry.getDigitalMask(node),
+                registry.getDigitalSamples(node), registry.getAnalogMask(node),
+                registry.getAdc(node, 0), registry.getAdc(node, 1),
+                registry.getAdc(node, 2), registry.getAdc(node, 3));
+    }
 
-                if((analogMask & ADC_2) != 0) {
-                    adcBar.setValue((adc2 * 120)/1200);
-                }
-                else
-                    adcBar.setValue(0);
+/******************************************************************************************/
 
-                if((analogMask & ADC_3) != 0) {
-                    int mv = (adc3 * 1200) / 1024;
-                    float degC = mv / 10.0f;
-                    float degF = degC * 1.8f + 32;
+    //Drive an LED on the selected node to the opposite of its displayed state.
+    void toggleLed(int dio, JLabel ledLabel) {
+        if(selectedNode == NodeRegistry.NO_NODE)
+            return;
 
-                    int degFInt = (int)(degF *= 10);                   
-                    degF = degFInt / 10.0f;
+        //The node's next sample shows the new state, only failures are reported.
+        engine.setDigitalOutputAsync(selectedNode, dio, ledLabel.getIcon() != ledOn)
+                .whenComplete(
+            new BiConsumer<byte[], Throwable>() {
+                public void accept(byte[] response, final Throwable failure) {
+                    if(failure == null)
+                        return;
 
-                    cField.setText(Float.toString(degC));
-                    fField.setText(Float.toString(degF));
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            JOptionPane.showMessageDialog(comPanel.getParent(),
+                                    failure.getMessage(), "Command Failed",
+                                    JOptionPane.WARNING_MESSAGE);
+                        }
+                    });
                 }
-                else {
-                    cField.setText("N/A");
-                    fField.setText("N/A");
-                }
-
-                //Setup tx destination addresses and networks.
-                tx.data[5]  = zFrame.payload[1];
-                tx.data[6]  = zFrame.payload[2];
-                tx.data[7]  = zFrame.payload[3];
-                tx.data[8]  = zFrame.payload[4];
-                tx.data[9]  = zFrame.payload[5];
-                tx.data[10] = zFrame.payload[6];
-                tx.data[11] = zFrame.payload[7];
-                tx.data[12] = zFrame.payload[8];
-
-                tx.data[13] = zFrame.payload[9];
-                tx.data[14] = zFrame.payload[10];
-
-                break;
-
-            default:
-                break;
-        }
-
-        for(int j = 0; j < rx.rxLength; j++) {
-            System.out.printf("%02x ", rx.data[j]);
-        }
-        System.out.println();
+            }
+        );
     }
 
-/******************************************************************************************/
-
-    void setChecksum(int length) {
-        byte checksum = (byte)0xFF;
-
-        for(int i = 3; i < length - 1; i++)
-            checksum -= tx.data[i];
-
-        tx.data[length - 1] = checksum;
+    //Add a node to the devices box, along with any lower numbered node not in it
+    //yet, since nodes first heard on different ports may be announced out of
+    //order.  Nodes already added by a refresh are skipped.  Must run on the event
+    //dispatch thread.
+    void addDevice(int node) {
+        for(int i = devicesBox.getItemCount(); i <= node; i++)
+            devicesBox.addItem(NodeRegistry.formatSerial(registry.getSerial(i)));
     }
 
 /******************************************************************************************/
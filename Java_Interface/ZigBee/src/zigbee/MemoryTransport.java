@@ -0,0 +1,94 @@
+package zigbee;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * In-memory transport for tests and tools.  Bytes passed to inject() are
+ * returned by read(), and everything the engine writes can be collected
+ * with takeWritten().
+ */
+public class MemoryTransport implements Transport {
+
+    private static final byte[] CLOSED = new byte[0];
+
+    private final LinkedBlockingQueue<byte[]> inbound = new LinkedBlockingQueue<byte[]>();
+    private final ByteArrayOutputStream outbound = new ByteArrayOutputStream();
+
+    private byte[] current; //Chunk being read.
+    private int currentIndex;
+    private volatile boolean closed;
+
+    //Reopen after close().  Chunks injected but not yet read are kept, the
+    //sentinels left by close() and the chunk being read are dropped.
+    public void open() throws IOException {
+        inbound.removeAll(Collections.singleton(CLOSED));
+        current = null;
+        currentIndex = 0;
+        closed = false;
+    }
+
+    //Queue bytes for the engine to read.
+    public void inject(byte[] data, int offset, int length) {
+        byte[] chunk = new byte[length];
+        System.arraycopy(data, offset, chunk, 0, length);
+        inbound.add(chunk);
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        try {
+            while(current == null || currentIndex == current.length) {
+                if(closed)
+                    return -1;
+                current = inbound.take();
+                currentIndex = 0;
+                if(current == CLOSED)
+                    return -1;
+            }
+        }
+        catch(InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+
+        int count = Math.min(dst.remaining(), current.length - currentIndex);
+        dst.put(current, currentIndex, count);
+        currentIndex += count;
+
+        return count;
+    }
+
+    public void write(ByteBuffer src) throws IOException {
+        if(closed)
+            throw new IOException("Closed");
+
+        synchronized(outbound) {
+            while(src.hasRemaining())
+                outbound.write(src.get());
+        }
+    }
+
+    //Everything written since the last call.
+    public byte[] takeWritten() {
+        synchronized(outbound) {
+            byte[] data = outbound.toByteArray();
+            outbound.reset();
+            return data;
+        }
+    }
+
+    public void close() {
+        closed = true;
+        inbound.add(CLOSED);
+    }
+
+    public boolean isDirect() {
+        return false;
+    }
+
+    public String getName() {
+        return "memory";
+    }
+}
@@ -0,0 +1,22 @@
+package zigbee;
+
+/*
+ * View of a 0x8A modem status.
+ */
+public class ModemStatus extends FrameView {
+
+    private static final int STATUS = 1;
+
+    //Status values.
+    public static final int HARDWARE_RESET = 0x00, WATCHDOG_RESET = 0x01, JOINED = 0x02,
+            DISASSOCIATED = 0x03, COORDINATOR_STARTED = 0x06, SECURITY_KEY_UPDATED = 0x07,
+            VOLTAGE_EXCEEDED = 0x0D, CONFIGURATION_CHANGED = 0x11;
+
+    protected int minimumLength() {
+        return STATUS + 1;
+    }
+
+    public int getStatus() {
+        return u8(STATUS);
+    }
+}
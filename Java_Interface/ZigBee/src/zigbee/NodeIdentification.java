@@ -0,0 +1,86 @@
+package zigbee;
+
+/*
+ * View of a 0x95 node identification indicator, sent when a node's
+ * commissioning button is pressed or it joins.  The node identifier string
+ * has a variable length, the fields after it are found by scanning for its
+ * terminating zero when the view is wrapped.
+ */
+public class NodeIdentification extends FrameView {
+
+    private static final int SOURCE_SERIAL = 1, SOURCE_NET_ADDRESS = 9, OPTIONS = 11,
+            NET_ADDRESS = 12, SERIAL = 14, IDENTIFIER = 22;
+
+    //Fields after the identifier, relative to its terminating zero.
+    private static final int PARENT_NET_ADDRESS = 1, DEVICE_TYPE = 3, SOURCE_EVENT = 4,
+            PROFILE_ID = 5, MANUFACTURER_ID = 7, TAIL_LENGTH = 9;
+
+    //Device types.
+    public static final int COORDINATOR = 0, ROUTER = 1, END_DEVICE = 2;
+
+    private int terminator; //Index of the identifier's zero byte.
+
+    protected int minimumLength() {
+        return IDENTIFIER + TAIL_LENGTH;
+    }
+
+    public boolean wrap(byte[] frame, int offset, int length) {
+        if(!super.wrap(frame, offset, length))
+            return false;
+
+        terminator = IDENTIFIER;
+        while(terminator < length && frame[offset + terminator] != 0)
+            terminator++;
+
+        return terminator + TAIL_LENGTH <= length;
+    }
+
+    //Address of the node that sent the frame, normally the identified node.
+    public long getSourceSerial() {
+        return u64(SOURCE_SERIAL);
+    }
+
+    public int getSourceNetAddress() {
+        return u16(SOURCE_NET_ADDRESS);
+    }
+
+    public int getOptions() {
+        return u8(OPTIONS);
+    }
+
+    public long getSerial() {
+        return u64(SERIAL);
+    }
+
+    public int getNetAddress() {
+        return u16(NET_ADDRESS);
+    }
+
+    //Builds a string, for logging rather than the receive path.
+    public String getIdentifier() {
+        char[] text = new char[terminator - IDENTIFIER];
+        for(int i = 0; i < text.length; i++)
+            text[i] = (char)u8(IDENTIFIER + i);
+        return new String(text);
+    }
+
+    public int getParentNetAddress() {
+        return u16(terminator + PARENT_NET_ADDRESS);
+    }
+
+    public int getDeviceType() {
+        return u8(terminator + DEVICE_TYPE);
+    }
+
+    public int getSourceEvent() {
+        return u8(terminator + SOURCE_EVENT);
+    }
+
+    public int getProfileId() {
+        return u16(terminator + PROFILE_ID);
+    }
+
+    public int getManufacturerId() {
+        return u16(terminator + MANUFACTURER_ID);
+    }
+}
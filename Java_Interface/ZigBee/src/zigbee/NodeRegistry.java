@@ -0,0 +1,209 @@
+package zigbee;
+
+/*
+ * Registry of remote nodes keyed by their 64-bit serial number.  Node state
+ * is held in parallel primitive arrays indexed by a node number that never
+ * changes once assigned, so updates on the receive path do not allocate.
+ *
+ * The arrays are cut into pages of PAGE_SIZE nodes that never move once
+ * allocated, and each node's state is guarded by its own lock, so ports
+ * updating different nodes do not wait for each other and a new page never
+ * holds up an update.  The registry's
+ * own lock only guards the serial index and is taken to number a new node.
+ * Receive threads look serials up in their own single-writer map first,
+ * see node(), so they only take it for a serial they have not seen before.
+ */
+public class NodeRegistry {
+
+    public static final int NO_NODE = LongIntHashMap.NO_VALUE;
+
+    public static final int ADC_CHANNELS = 4;
+
+    private static final int PAGE_SHIFT = 8, PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    //Guarded by this.
+    private final LongIntHashMap index;
+
+    private volatile int count; //Written after the node's page and serial.
+    private volatile Page[] pages; //Replaced, not changed, under this.
+
+    public NodeRegistry() {
+        this(64);
+    }
+
+    public NodeRegistry(int expectedNodes) {
+        index = new LongIntHashMap(expectedNodes);
+        pages = new Page[Math.max(1, (expectedNodes + PAGE_SIZE - 1) >> PAGE_SHIFT)];
+    }
+
+/******************************************************************************************/
+
+    //Node number of a serial, numbering it if it is new.  Seen maps serials to node
+    //numbers for one receive thread, which must be its only user.
+    public int node(long serial, LongIntHashMap seen) {
+        int node = seen.get(serial);
+        if(node == NO_NODE) {
+            node = add(serial);
+            seen.put(serial, node);
+        }
+        return node;
+    }
+
+    //Node number of a serial, numbering it if it is new.
+    public synchronized int add(long serial) {
+        int node = index.get(serial);
+        if(node != NO_NODE)
+            return node;
+
+        node = count;
+        Page[] all = pages;
+        int p = node >> PAGE_SHIFT;
+        if(p == all.length) {
+            Page[] larger = new Page[all.length * 2];
+            System.arraycopy(all, 0, larger, 0, all.length);
+            all = larger;
+        }
+        if(all[p] == null)
+            all[p] = new Page();
+        pages = all;
+
+        int i = node & (PAGE_SIZE - 1);
+        synchronized(all[p].locks[i]) {
+            all[p].serials[i] = serial;
+        }
+        index.put(serial, node);
+        count = node + 1;
+
+        return node;
+    }
+
+    //Record an IO sample of a node.
+    public void update(int node, int netAddress, int digitalMask, int digitalSample,
+            int analogMask, int adc0, int adc1, int adc2, int adc3, long time, int port) {
+        Page page = pages[node >> PAGE_SHIFT];
+        int i = node & (PAGE_SIZE - 1);
+
+        synchronized(page.locks[i]) {
+            page.netAddresses[i] = netAddress;
+            page.digitalMasks[i] = digitalMask;
+            page.digitalSamples[i] = digitalSample;
+            page.analogMasks[i] = analogMask;
+            int a = i * ADC_CHANNELS;
+            page.adc[a] = (short)adc0;
+            page.adc[a + 1] = (short)adc1;
+            page.adc[a + 2] = (short)adc2;
+            page.adc[a + 3] = (short)adc3;
+            page.lastSeen[i] = time;
+            page.ports[i] = port;
+        }
+    }
+
+    public synchronized int find(long serial) {
+        return index.get(serial);
+    }
+
+    public int size() {
+        return count;
+    }
+
+/******************************************************************************************/
+
+    public long getSerial(int node) {
+        Page page = page(node);
+        int i = node & (PAGE_SIZE - 1);
+        synchronized(page.locks[i]) {
+            return page.serials[i];
+        }
+    }
+
+    public int getNetAddress(int node) {
+        Page page = page(node);
+        int i = node & (PAGE_SIZE - 1);
+        synchronized(page.locks[i]) {
+            return page.netAddresses[i];
+        }
+    }
+
+    public int getDigitalMask(int node) {
+        Page page = page(node);
+        int i = node & (PAGE_SIZE - 1);
+        synchronized(page.locks[i]) {
+            return page.digitalMasks[i];
+        }
+    }
+
+    public int getDigitalSamples(int node) {
+        Page page = page(node);
+        int i = node & (PAGE_SIZE - 1);
+        synchronized(page.locks[i]) {
+            return page.digitalSamples[i];
+        }
+    }
+
+    public int getAnalogMask(int node) {
+        Page page = page(node);
+        int i = node & (PAGE_SIZE - 1);
+        synchronized(page.locks[i]) {
+            return page.analogMasks[i];
+        }
+    }
+
+    public int getAdc(int node, int channel) {
+        Page page = page(node);
+        int i = node & (PAGE_SIZE - 1);
+        synchronized(page.locks[i]) {
+            return page.adc[i * ADC_CHANNELS + channel];
+        }
+    }
+
+    public long getLastSeen(int node) {
+        Page page = page(node);
+        int i = node & (PAGE_SIZE - 1);
+        synchronized(page.locks[i]) {
+            return page.lastSeen[i];
+        }
+    }
+
+    public int getPort(int node) {
+        Page page = page(node);
+        int i = node & (PAGE_SIZE - 1);
+        synchronized(page.locks[i]) {
+            return page.ports[i];
+        }
+    }
+
+/******************************************************************************************/
+
+    //Page of a numbered node, throws for a node that does not exist.
+    private Page page(int node) {
+        if(node < 0 || node >= count)
+            throw new IndexOutOfBoundsException("Node " + node);
+        return pages[node >> PAGE_SHIFT];
+    }
+
+    //Formats a serial the way it is printed on the radio label.
+    public static String formatSerial(long serial) {
+        return String.format("%08X %08X", (int)(serial >>> 32), (int)serial);
+    }
+
+/******************************************************************************************/
+
+    //State of PAGE_SIZE consecutive nodes.
+    static class Page {
+
+        final Object[] locks = new Object[PAGE_SIZE]; //One per node.
+        final long[] serials = new long[PAGE_SIZE];
+        final int[] netAddresses = new int[PAGE_SIZE];
+        final int[] digitalMasks = new int[PAGE_SIZE];
+        final int[] digitalSamples = new int[PAGE_SIZE];
+        final int[] analogMasks = new int[PAGE_SIZE];
+        final short[] adc = new short[PAGE_SIZE * ADC_CHANNELS];
+        final long[] lastSeen = new long[PAGE_SIZE]; //currentTimeMillis() of the last sample.
+        final int[] ports = new int[PAGE_SIZE]; //Engine port the last sample arrived on.
+
+        Page() {
+            for(int i = 0; i < PAGE_SIZE; i++)
+                locks[i] = new Object();
+        }
+    }
+}
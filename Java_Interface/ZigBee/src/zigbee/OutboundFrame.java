@@ -0,0 +1,32 @@
+package zigbee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * An encoded frame waiting to go out on the wire.  The bytes are copied on
+ * construction so the caller's buffer can be reused straight away.
+ */
+public final class OutboundFrame {
+
+    private final byte[] data;
+    private final long createdNanos; //Used for enqueue to wire latency.
+
+    public OutboundFrame(byte[] buffer, int offset, int length) {
+        data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+        createdNanos = System.nanoTime();
+    }
+
+    public int length() {
+        return data.length;
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    public void writeTo(Transport out) throws IOException {
+        out.write(ByteBuffer.wrap(data));
+    }
+}
@@ -0,0 +1,78 @@
+package zigbee;
+
+/*
+ * Rough cost of driving DIO lines on a set of nodes, against one remote AT
+ * frame per line per node.  ZigBee firmware has no command that sets
+ * several lines at once, so a unicast update still takes one frame per
+ * line, with only the last applying them.  The saving comes from a
+ * broadcast, which takes one frame per line for the whole network.
+ *
+ * UART time counts the 0x17 frames at 10 bits a byte.  Air time takes
+ * AIR_UNICAST_MICROS for a unicast with its backoff and MAC ack, and
+ * AIR_BROADCAST_MICROS for a broadcast, which every router repeats after a
+ * random delay.  Both are estimates, and responses are left out.
+ */
+public final class OutputEstimate {
+
+    //Remote AT command with a one byte parameter on the wire, unescaped: start
+    //delimiter, two length bytes, frame data and checksum.
+    public static final int FRAME_BYTES = 3 + XBee.RAT_PARAMETER + 1 + 1;
+
+    public static final long AIR_UNICAST_MICROS = 3000, AIR_BROADCAST_MICROS = 100000;
+
+    private final int nodes, lines;
+    private final boolean broadcast;
+    private final int baudRate;
+
+    //Drive lines DIO lines on each of nodes nodes, through a port at baudRate.
+    public OutputEstimate(int nodes, int lines, boolean broadcast, int baudRate) {
+        this.nodes = nodes;
+        this.lines = lines;
+        this.broadcast = broadcast;
+        this.baudRate = baudRate;
+    }
+
+/******************************************************************************************/
+
+    public int getFrames() {
+        return broadcast ? lines : nodes * lines;
+    }
+
+    //One frame per line and node, each applied on its own.
+    public int getSingleFrames() {
+        return nodes * lines;
+    }
+
+    public long getUartMicros() {
+        return uartMicros(getFrames());
+    }
+
+    public long getSingleUartMicros() {
+        return uartMicros(getSingleFrames());
+    }
+
+    public long getAirMicros() {
+        return broadcast ? lines * AIR_BROADCAST_MICROS : nodes * lines * AIR_UNICAST_MICROS;
+    }
+
+    public long getSingleAirMicros() {
+        return getSingleFrames() * AIR_UNICAST_MICROS;
+    }
+
+    //UART and air time saved, negative when a broadcast costs more than it saves.
+    public long getSavedMicros() {
+        return getSingleUartMicros() - getUartMicros() + getSingleAirMicros() - getAirMicros();
+    }
+
+    private long uartMicros(int frames) {
+        return frames * FRAME_BYTES * 10L * 1000000L / baudRate;
+    }
+
+    public String toString() {
+        return String.format("%d frames instead of %d, UART %.0f ms instead of %.0f ms at %d"
+                + " baud, air %.0f ms instead of %.0f ms, saves about %.0f ms", getFrames(),
+                getSingleFrames(), getUartMicros() / 1000.0, getSingleUartMicros() / 1000.0,
+                baudRate, getAirMicros() / 1000.0, getSingleAirMicros() / 1000.0,
+                getSavedMicros() / 1000.0);
+    }
+}
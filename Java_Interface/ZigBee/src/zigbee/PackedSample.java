@@ -0,0 +1,56 @@
+package zigbee;
+
+/*
+ * Packs one decoded IO sample into a single long so it can be published
+ * from the receive thread and read on the event dispatch thread without
+ * locking or allocation.  Layout, low bit first:
+ *
+ *   0-15   digital samples already masked by the digital channel mask
+ *   16-19  analog channel mask (AD0-AD3)
+ *   20-59  AD0-AD3, 10 bits each
+ *   63     valid flag, NONE has it clear
+ */
+public final class PackedSample {
+
+    public static final long NONE = 0;
+
+    public static final long DIGITAL_FIELD = 0xFFFFL, ANALOG_MASK_FIELD = 0xFL << 16;
+
+    private static final int ADC_SHIFT = 20, ADC_BITS = 10, ADC_MAX = (1 << ADC_BITS) - 1;
+    private static final long VALID = 1L << 63;
+
+    private PackedSample() {
+    }
+
+    public static long pack(int digitalMask, int digitalSamples, int analogMask,
+            int adc0, int adc1, int adc2, int adc3) {
+        return VALID
+                | (digitalSamples & digitalMask & DIGITAL_FIELD)
+                | (long)(analogMask & 0xF) << 16
+                | (long)(adc0 & ADC_MAX) << ADC_SHIFT
+                | (long)(adc1 & ADC_MAX) << (ADC_SHIFT + ADC_BITS)
+                | (long)(adc2 & ADC_MAX) << (ADC_SHIFT + 2 * ADC_BITS)
+                | (long)(adc3 & ADC_MAX) << (ADC_SHIFT + 3 * ADC_BITS);
+    }
+
+    public static boolean isValid(long sample) {
+        return (sample & VALID) != 0;
+    }
+
+    public static int digital(long sample) {
+        return (int)(sample & DIGITAL_FIELD);
+    }
+
+    public static int analogMask(long sample) {
+        return (int)(sample >>> 16) & 0xF;
+    }
+
+    public static int adc(long sample, int channel) {
+        return (int)(sample >>> (ADC_SHIFT + channel * ADC_BITS)) & ADC_MAX;
+    }
+
+    //Bits covering one ADC channel, for change detection.
+    public static long adcField(int channel) {
+        return (long)ADC_MAX << (ADC_SHIFT + channel * ADC_BITS);
+    }
+}
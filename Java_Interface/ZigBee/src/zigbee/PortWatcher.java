@@ -0,0 +1,236 @@
+package zigbee;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import gnu.io.CommPortIdentifier;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/*
+ * Keeps the list of serial ports up to date off the caller's thread.  The
+ * RXTX enumeration, which can take seconds on a machine with many ttys,
+ * runs once on the watcher thread, and after that serial devices appearing
+ * and disappearing in /dev update the list one name at a time.  Where there
+ * is no /dev to watch the enumeration is repeated every RESCAN_MILLIS.
+ *
+ * Listeners hear of every name added or removed on the watcher thread, so
+ * a USB coordinator that resets shows up as a removal followed by an add
+ * as soon as the kernel has the device node back.  A ZigBeeEngine is such
+ * a listener, see ZigBeeEngine.setReconnect().
+ */
+public class PortWatcher {
+
+    public interface Listener {
+        void portAdded(String name);
+
+        void portRemoved(String name);
+    }
+
+    public static final long RESCAN_MILLIS = 2000;
+
+    private static final Path DEV = Paths.get("/dev");
+    private static final long POLL_MILLIS = 250; //How soon a rescan request is seen.
+
+    //Device nodes RXTX lists as serial ports on Linux.
+    private static final Pattern SERIAL_DEVICE =
+            Pattern.compile("tty(S|USB|ACM|AMA|XRUSB)\\d+|rfcomm\\d+");
+
+    private final TreeSet<String> ports = new TreeSet<String>(); //Guarded by this.
+    private final CopyOnWriteArrayList<Listener> listeners =
+            new CopyOnWriteArrayList<Listener>();
+    private final Thread thread;
+
+    private volatile boolean scanned, rescanRequested, closed;
+    private volatile WatchService watchService;
+
+    //Start watching, the first enumeration runs in the background.
+    public PortWatcher() {
+        thread = new Thread(new Watcher(), "PortWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+/******************************************************************************************/
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    //Serial port names known now, sorted.  Empty until the first enumeration ends.
+    public synchronized String[] getPorts() {
+        return ports.toArray(new String[ports.size()]);
+    }
+
+    //True once the first enumeration has finished.
+    public boolean isScanned() {
+        return scanned;
+    }
+
+    //Run the full enumeration again soon, on the watcher thread.
+    public void rescan() {
+        rescanRequested = true;
+        synchronized(thread) {
+            thread.notifyAll();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        WatchService w = watchService;
+        try {
+            if(w != null)
+                w.close(); //Wakes the watcher.
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+        synchronized(thread) {
+            thread.notifyAll();
+        }
+    }
+
+/******************************************************************************************/
+
+    //Replace the list with a full RXTX enumeration, telling listeners the difference.
+    private void enumerate() {
+        TreeSet<String> found = new TreeSet<String>();
+        Enumeration<?> portEnum = CommPortIdentifier.getPortIdentifiers();
+        while(portEnum.hasMoreElements()) {
+            CommPortIdentifier portIdentifier = (CommPortIdentifier)portEnum.nextElement();
+            if(portIdentifier.getPortType() == CommPortIdentifier.PORT_SERIAL)
+                found.add(portIdentifier.getName());
+        }
+
+        TreeSet<String> removed;
+        synchronized(this) {
+            removed = new TreeSet<String>(ports);
+            removed.removeAll(found);
+            found.removeAll(ports);
+            ports.removeAll(removed);
+            ports.addAll(found);
+        }
+        scanned = true;
+
+        for(String name : removed)
+            removed(name);
+        for(String name : found)
+            added(name);
+    }
+
+    private void added(String name) {
+        for(Listener listener : listeners)
+            listener.portAdded(name);
+    }
+
+    private void removed(String name) {
+        for(Listener listener : listeners)
+            listener.portRemoved(name);
+    }
+
+    //A serial device node was created or deleted in /dev.
+    private void devChanged(WatchEvent.Kind<?> kind, Path file) {
+        if(!SERIAL_DEVICE.matcher(file.toString()).matches())
+            return;
+
+        String name = DEV.resolve(file).toString();
+        boolean changed;
+        synchronized(this) {
+            changed = kind == ENTRY_CREATE ? ports.add(name) : ports.remove(name);
+        }
+        if(changed && kind == ENTRY_CREATE)
+            added(name);
+        else if(changed)
+            removed(name);
+    }
+
+/*************************************Watcher Thread**************************************/
+
+    class Watcher implements Runnable {
+
+        public void run() {
+            enumerate();
+
+            try {
+                if(Files.isDirectory(DEV)) {
+                    watchService = DEV.getFileSystem().newWatchService();
+                    DEV.register(watchService, ENTRY_CREATE, ENTRY_DELETE);
+                    if(closed)
+                        watchService.close();
+                }
+            }
+            catch(IOException e) {
+                e.printStackTrace(); //Fall back to enumerating.
+                watchService = null;
+            }
+
+            while(!closed) {
+                if(rescanRequested) {
+                    rescanRequested = false;
+                    enumerate();
+                }
+
+                if(watchService == null)
+                    pause();
+                else if(!watch())
+                    return;
+            }
+        }
+
+        //Handle the /dev events of up to POLL_MILLIS.  False once the service is closed.
+        private boolean watch() {
+            try {
+                WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if(key == null)
+                    return true;
+
+                Iterator<WatchEvent<?>> events = key.pollEvents().iterator();
+                while(events.hasNext()) {
+                    WatchEvent<?> event = events.next();
+                    if(event.kind() == OVERFLOW)
+                        rescanRequested = true; //Events were lost, start over.
+                    else
+                        devChanged(event.kind(), (Path)event.context());
+                }
+                key.reset();
+                return true;
+            }
+            catch(ClosedWatchServiceException e) {
+                return false;
+            }
+            catch(InterruptedException e) {
+                return false;
+            }
+        }
+
+        //Wait RESCAN_MILLIS, or less if a rescan is requested, then enumerate again.
+        private void pause() {
+            synchronized(thread) {
+                try {
+                    if(!closed && !rescanRequested)
+                        thread.wait(RESCAN_MILLIS);
+                }
+                catch(InterruptedException e) {
+                    closed = true;
+                    return;
+                }
+            }
+            rescanRequested = true;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package zigbee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Transport over Linux character devices and FIFOs through FileChannels,
+ * for pseudo-terminals (socat, tty0tty) and named pipe pairs.  A pty uses
+ * the same path for both directions, a FIFO pair uses one path each way.
+ * Line settings of a pty are left to stty.
+ */
+public class PtyTransport implements Transport {
+
+    private final String inputPath, outputPath;
+
+    private FileChannel input, output;
+
+    public PtyTransport(String path) {
+        this(path, path);
+    }
+
+    public PtyTransport(String inputPath, String outputPath) {
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+    }
+
+    public void open() throws IOException {
+        if(inputPath.equals(outputPath)) {
+            input = FileChannel.open(Paths.get(inputPath),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            output = input;
+        }
+        else {
+            input = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ);
+            output = FileChannel.open(Paths.get(outputPath), StandardOpenOption.WRITE);
+        }
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        return input.read(dst);
+    }
+
+    public void write(ByteBuffer src) throws IOException {
+        while(src.hasRemaining())
+            output.write(src);
+    }
+
+    public void close() {
+        try {
+            if(input != null)
+                input.close();
+            if(output != null && output != input)
+                output.close();
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean isDirect() {
+        return true;
+    }
+
+    public String getName() {
+        return inputPath.equals(outputPath) ? "pty:" + inputPath
+                : "fifo:" + inputPath + "," + outputPath;
+    }
+}
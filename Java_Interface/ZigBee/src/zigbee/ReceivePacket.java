@@ -0,0 +1,41 @@
+package zigbee;
+
+/*
+ * View of a 0x90 ZigBee receive packet.
+ */
+public class ReceivePacket extends FrameView {
+
+    private static final int SERIAL = 1, NET_ADDRESS = 9, OPTIONS = 11, DATA = 12;
+
+    //Receive options.
+    public static final int ACKNOWLEDGED = 0x01, BROADCAST = 0x02, ENCRYPTED = 0x20,
+            FROM_END_DEVICE = 0x40;
+
+    protected int minimumLength() {
+        return DATA;
+    }
+
+    public long getSerial() {
+        return u64(SERIAL);
+    }
+
+    public int getNetAddress() {
+        return u16(NET_ADDRESS);
+    }
+
+    public int getOptions() {
+        return u8(OPTIONS);
+    }
+
+    public int getDataLength() {
+        return length - DATA;
+    }
+
+    public int getData(int index) {
+        return u8(DATA + index);
+    }
+
+    public int copyData(byte[] out, int outOffset) {
+        return copy(DATA, length - DATA, out, outOffset);
+    }
+}
@@ -0,0 +1,29 @@
+package zigbee;
+
+import java.io.IOException;
+
+/*
+ * A remote AT command that was answered with an error status, or never
+ * answered at all.
+ */
+public class RemoteAtException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    //Remote AT command response status values, the negative ones are local.
+    public static final int OK = 0, ERROR = 1, INVALID_COMMAND = 2, INVALID_PARAMETER = 3,
+            TRANSMISSION_FAILED = 4, TIMEOUT = -1, NOT_SENT = -2;
+
+    private final int status;
+
+    public RemoteAtException(String command, int status) {
+        super(command + (status == TIMEOUT ? " timed out"
+                : status == NOT_SENT ? " not sent, too many commands in flight or queued"
+                : " failed with status " + status));
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
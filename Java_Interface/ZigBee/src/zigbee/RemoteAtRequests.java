@@ -0,0 +1,190 @@
+package zigbee;
+
+import static zigbee.XBee.*;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Remote AT commands waiting for their 0x97 response, indexed by frame ID.
+ * IDs 1 to 255 are handed out in rotation so up to 255 commands can be in
+ * flight at once.  A command that is not answered in time is sent again
+ * with the same ID, and fails with a TIMEOUT RemoteAtException once its
+ * retries are used up.
+ *
+ * Each port has its own set of IDs.  Responses complete the futures on
+ * the port's reader thread, so work chained on with thenAccept() and the
+ * like should be short or use the Async variants.  One timer thread serves
+ * every port.
+ */
+class RemoteAtRequests {
+
+    static final int MAX_IN_FLIGHT = 255;
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RemoteAt timeouts");
+                t.setDaemon(true);
+                return t;
+            }
+        }
+    );
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final CoordinatorPort port;
+    private final AtomicReferenceArray<Request> slots =
+            new AtomicReferenceArray<Request>(MAX_IN_FLIGHT + 1); //Slot 0 is never used.
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private volatile long timeoutMillis = 1000;
+    private volatile int retries = 2;
+
+    RemoteAtRequests(CoordinatorPort port) {
+        this.port = port;
+    }
+
+    void setTimeout(long timeoutMillis, int retries) {
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+    }
+
+    int getInFlight() {
+        int n = 0;
+        for(int id = 1; id <= MAX_IN_FLIGHT; id++)
+            if(slots.get(id) != null)
+                n++;
+        return n;
+    }
+
+/******************************************************************************************/
+
+    //Reserve a frame ID for a request, 0 when all 255 are in use.
+    int claim(Request request) {
+        for(int i = 0; i < MAX_IN_FLIGHT; i++) {
+            int id = (nextId.getAndIncrement() & 0x7fffffff) % MAX_IN_FLIGHT + 1;
+            if(slots.compareAndSet(id, null, request)) {
+                request.id = id;
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    //Fail a request that could not be queued and give back its ID, if it had one.
+    void notSent(Request request) {
+        if(request.id != 0)
+            slots.compareAndSet(request.id, request, null);
+        if(request.timeout != null)
+            request.timeout.cancel(false);
+        request.future.completeExceptionally(
+                new RemoteAtException(request.command(), RemoteAtException.NOT_SENT));
+    }
+
+    //Start the response timer, before the frame is queued so a quick answer
+    //always finds it.
+    void sending(Request request) {
+        request.sentNanos = System.nanoTime();
+        schedule(request);
+    }
+
+    private void schedule(final Request request) {
+        request.timeout = timer.schedule(
+            new Runnable() {
+                public void run() {
+                    timedOut(request);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void timedOut(Request request) {
+        if(slots.get(request.id) != request)
+            return; //Answered in the meantime.
+
+        if(request.attempts < retries) {
+            request.attempts++;
+            port.resend(request);
+            schedule(request);
+        }
+        else if(slots.compareAndSet(request.id, request, null))
+            request.future.completeExceptionally(
+                    new RemoteAtException(request.command(), RemoteAtException.TIMEOUT));
+    }
+
+/******************************************************************************************/
+
+    //Match a 0x97 frame to its request, called on the reader thread.  Only the
+    //first answer to a broadcast completes it.
+    void response(RemoteAtResponse response, Histogram roundTrip) {
+        int id = response.getFrameId();
+        Request request = slots.get(id);
+        if(request == null
+                || response.getCommand1() != request.c1
+                || response.getCommand2() != request.c2
+                || (request.serial != BROADCAST_SERIAL && response.getSerial() != request.serial)
+                || !slots.compareAndSet(id, request, null))
+            return;
+
+        request.timeout.cancel(false);
+        roundTrip.record(System.nanoTime() - request.sentNanos);
+
+        int status = response.getStatus();
+        if(status == RemoteAtException.OK) {
+            byte[] data = new byte[response.getDataLength()];
+            response.copyData(data, 0);
+            request.future.complete(data);
+        }
+        else
+            request.future.completeExceptionally(
+                    new RemoteAtException(request.command(), status));
+    }
+
+    //Fail everything in flight, the connection is gone.
+    void closed() {
+        for(int id = 1; id <= MAX_IN_FLIGHT; id++) {
+            Request request = slots.getAndSet(id, null);
+            if(request != null) {
+                if(request.timeout != null)
+                    request.timeout.cancel(false);
+                request.future.completeExceptionally(new IOException("Connection closed"));
+            }
+        }
+    }
+
+/******************************************************************************************/
+
+    static class Request {
+
+        final long serial;
+        final int netAddress, options;
+        final char c1, c2;
+        final int parameter;
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        int id;
+        int attempts;
+        volatile long sentNanos; //Last sent, reset by every retry.
+        volatile ScheduledFuture<?> timeout;
+
+        Request(long serial, int netAddress, int options, char c1, char c2, int parameter) {
+            this.serial = serial;
+            this.netAddress = netAddress;
+            this.options = options;
+            this.c1 = c1;
+            this.c2 = c2;
+            this.parameter = parameter;
+        }
+
+        String command() {
+            return "" + c1 + c2 + " to " + NodeRegistry.formatSerial(serial);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package zigbee;
+
+import static zigbee.XBee.*;
+
+/*
+ * View of a 0x97 remote AT command response.
+ */
+public class RemoteAtResponse extends FrameView {
+
+    protected int minimumLength() {
+        return RAT_RESPONSE_DATA;
+    }
+
+    public int getFrameId() {
+        return u8(RAT_RESPONSE_FRAME_ID);
+    }
+
+    public long getSerial() {
+        return u64(RAT_RESPONSE_SER);
+    }
+
+    public int getNetAddress() {
+        return u16(RAT_RESPONSE_NET_ADR);
+    }
+
+    public char getCommand1() {
+        return (char)u8(RAT_RESPONSE_COMMAND);
+    }
+
+    public char getCommand2() {
+        return (char)u8(RAT_RESPONSE_COMMAND + 1);
+    }
+
+    //Builds a string, for logging rather than the receive path.
+    public String getCommand() {
+        return command(RAT_RESPONSE_COMMAND);
+    }
+
+    //Same values as RemoteAtException.
+    public int getStatus() {
+        return u8(RAT_RESPONSE_STATUS);
+    }
+
+    public int getDataLength() {
+        return length - RAT_RESPONSE_DATA;
+    }
+
+    public int getData(int index) {
+        return u8(RAT_RESPONSE_DATA + index);
+    }
+
+    public int copyData(byte[] out, int outOffset) {
+        return copy(RAT_RESPONSE_DATA, length - RAT_RESPONSE_DATA, out, outOffset);
+    }
+}
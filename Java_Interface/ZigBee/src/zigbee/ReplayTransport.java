@@ -0,0 +1,114 @@
+package zigbee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Feeds the received frames of a capture file back through the engine as
+ * if they came from a radio.  A speed of 1 replays in real time, N replays
+ * N times faster and 0 replays as fast as the engine can decode, packing
+ * as many frames into each read as fit.  Transmitted records and anything
+ * the engine writes are ignored.  The read returns end of stream once the
+ * capture is exhausted.
+ */
+public class ReplayTransport implements Transport {
+
+    private final String fileName;
+    private final double speed;
+    private final boolean escaped;
+
+    private CaptureReader reader;
+    private final byte[] wire = new byte[FrameEncoder.maxEncodedLength(0xFFFF)];
+    private int wireLength; //Encoded frame that did not fit in the last read.
+    private long firstNanos, replayStart;
+    private volatile boolean closed;
+    private volatile long framesReplayed;
+
+    public ReplayTransport(String fileName, double speed, boolean escaped) {
+        this.fileName = fileName;
+        this.speed = speed;
+        this.escaped = escaped;
+    }
+
+    public void open() throws IOException {
+        reader = new CaptureReader(fileName);
+        firstNanos = -1;
+        wireLength = 0;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+
+        while(!closed) {
+            if(wireLength == 0 && !nextFrame())
+                break;
+
+            if(dst.remaining() < wireLength) {
+                if(dst.position() == start) //Frame larger than the whole buffer.
+                    throw new IOException("Read Buffer Too Small");
+                break;
+            }
+            dst.put(wire, 0, wireLength);
+            wireLength = 0;
+            framesReplayed++;
+
+            if(speed > 0)
+                break; //Timed replay hands over one frame at a time.
+        }
+
+        int count = dst.position() - start;
+        return count == 0 ? -1 : count;
+    }
+
+    //Encode the next received frame, waiting for its time slot if timed.
+    private boolean nextFrame() throws IOException {
+        do {
+            if(!reader.next())
+                return false;
+        } while(reader.getDirection() != CaptureRecorder.RX);
+
+        if(firstNanos < 0) {
+            firstNanos = reader.getNanos();
+            replayStart = System.nanoTime();
+        }
+
+        if(speed > 0) {
+            long due = replayStart + (long)((reader.getNanos() - firstNanos) / speed);
+            long wait;
+            while(!closed && (wait = due - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+        }
+
+        wireLength = FrameEncoder.encode(reader.getData(), 0, reader.getLength(), escaped,
+                wire, 0);
+        return true;
+    }
+
+    public void write(ByteBuffer src) throws IOException {
+        src.position(src.limit()); //Nothing is listening.
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            if(reader != null)
+                reader.close();
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getFramesReplayed() {
+        return framesReplayed;
+    }
+
+    public boolean isDirect() {
+        return false;
+    }
+
+    public String getName() {
+        return "replay:" + fileName;
+    }
+}
@@ -0,0 +1,84 @@
+package zigbee;
+
+/*
+ * A run of decoded IO samples held column by column: node index, time in
+ * milliseconds, the DIO word and the four ADC channels each in their own
+ * primitive array, so analytics can sweep one column at a time.  Rows
+ * 0 to size() - 1 are valid, channels a frame did not carry read as 0.
+ * Filled by BatchDecoder and reused with clear().
+ */
+public class SampleBatch {
+
+    private final int[] nodes;
+    private final long[] times;
+    private final int[] digital;
+    private final short[][] adc = new short[NodeRegistry.ADC_CHANNELS][];
+    private int size;
+
+    public SampleBatch(int capacity) {
+        nodes = new int[capacity];
+        times = new long[capacity];
+        digital = new int[capacity];
+        for(int channel = 0; channel < adc.length; channel++)
+            adc[channel] = new short[capacity];
+    }
+
+/******************************************************************************************/
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return nodes.length;
+    }
+
+    public boolean isFull() {
+        return size == nodes.length;
+    }
+
+    //Add a row, the caller checks isFull() first.
+    void add(int node, long time, int digitalSamples, int adc0, int adc1, int adc2, int adc3) {
+        int i = size++;
+        nodes[i] = node;
+        times[i] = time;
+        digital[i] = digitalSamples;
+        adc[0][i] = (short)adc0;
+        adc[1][i] = (short)adc1;
+        adc[2][i] = (short)adc2;
+        adc[3][i] = (short)adc3;
+    }
+
+/******************************************************************************************/
+
+    //Columns, valid up to size().
+
+    public int[] getNodes() {
+        return nodes;
+    }
+
+    public long[] getTimes() {
+        return times;
+    }
+
+    public int[] getDigital() {
+        return digital;
+    }
+
+    public short[] getAdc(int channel) {
+        return adc[channel];
+    }
+
+    //Convert a whole ADC column through one of the AdcTables.
+    public void convert(int channel, int[] table, int[] out) {
+        AdcTables.convert(table, adc[channel], size, out);
+    }
+
+    public void convert(int channel, float[] table, float[] out) {
+        AdcTables.convert(table, adc[channel], size, out);
+    }
+}
@@ -0,0 +1,267 @@
+package zigbee;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Columnar history of decoded IO samples.  Each node has a list of
+ * fixed-size chunks holding one primitive column per channel: an int
+ * millisecond offset from the chunk's base time, the digital samples and
+ * the four ADC values, 14 bytes per sample row.
+ *
+ * A receive thread appends a row under its node's own series lock, so
+ * ports only meet on the store's lock when a node starts a new chunk, once
+ * every CHUNK_SAMPLES samples.  Chunks change hands under the store's lock
+ * and then the series lock, never the other way round, and a chunk is
+ * only taken from a series while holding that series' lock, so no row is
+ * ever written into a chunk after it was taken.  Readers never lock.  They
+ * copy out of the chunks and check each chunk's generation afterwards, a
+ * seqlock with fences on both sides, dropping the rows of any chunk that
+ * was recycled under them.  Chunks older than the retention window, or the
+ * oldest chunks once the memory budget is used up, are evicted whole and
+ * reused, so memory stays bounded and the only allocation on the receive
+ * path is a short chunk list every CHUNK_SAMPLES samples.
+ */
+public class SampleStore {
+
+    public static final int CHUNK_SAMPLES = 1024;
+    public static final int CHUNK_BYTES = CHUNK_SAMPLES * (4 + 2 + 2 * NodeRegistry.ADC_CHANNELS);
+
+    //Channel numbers for read, ADC channels are 0 to 3.
+    public static final int DIGITAL = NodeRegistry.ADC_CHANNELS;
+
+    private static final Chunk[] NO_CHUNKS = new Chunk[0];
+
+    private final long retentionMillis;
+    private final int maxChunks;
+
+    //Chunk lists and free chunks, guarded by this.  Rows are guarded by their series.
+    private Series[] series = new Series[0];
+    private volatile Series[] published = series; //Readers' view of the series array.
+    private Chunk[] free = new Chunk[16];
+    private int freeCount;
+    private int allocated;
+    private int sweep;
+    private volatile long evicted;
+
+    public SampleStore(long retentionMillis, long maxBytes) {
+        this.retentionMillis = retentionMillis;
+        maxChunks = (int)Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / CHUNK_BYTES));
+    }
+
+/******************************************************************************************/
+
+    //Called from the receive threads.
+    public void append(int node, long time, int digitalSamples, int adc0, int adc1,
+            int adc2, int adc3) {
+        Series[] all = published;
+        if(node >= all.length)
+            all = grow(node + 1);
+
+        Series s = all[node];
+        while(true) {
+            synchronized(s) {
+                Chunk chunk = s.current;
+                if(hasRoom(chunk, time)) {
+                    int i = chunk.count.get();
+                    chunk.times[i] = (int)(time - chunk.baseTime);
+                    chunk.digital[i] = (short)digitalSamples;
+                    chunk.adc[0][i] = (short)adc0;
+                    chunk.adc[1][i] = (short)adc1;
+                    chunk.adc[2][i] = (short)adc2;
+                    chunk.adc[3][i] = (short)adc3;
+                    chunk.count.lazySet(i + 1); //Publishes the row without a full fence.
+                    return;
+                }
+            }
+            rollOver(s, time);
+        }
+    }
+
+    //Copy the samples of one channel with from <= time < to.  Returns the number of
+    //samples copied, at most times.length.
+    public int read(int node, int channel, long from, long to, long[] times, int[] values) {
+        Series[] all = published;
+        if(node >= all.length || all[node] == null)
+            return 0;
+
+        int n = 0;
+        for(Chunk chunk : all[node].chunks) {
+            int generation = chunk.generation;
+            if((generation & 1) != 0)
+                continue; //Being recycled.
+
+            int count = chunk.count.get();
+            long base = chunk.baseTime;
+            int copied = n;
+            for(int i = 0; i < count && copied < times.length; i++) {
+                long t = base + chunk.times[i];
+                if(t < from || t >= to)
+                    continue;
+                times[copied] = t;
+                values[copied++] = channel == DIGITAL ? chunk.digital[i] & 0xffff
+                        : chunk.adc[channel][i];
+            }
+
+            //Rows of a chunk recycled during the copy were evicted, drop them.  The
+            //fence keeps the plain reads of the copy ahead of the check.
+            VarHandle.acquireFence();
+            if(chunk.generation == generation)
+                n = copied;
+        }
+
+        return n;
+    }
+
+    public long getEvictedChunks() {
+        return evicted;
+    }
+
+    public int getAllocatedChunks() {
+        return allocated;
+    }
+
+    public long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+/******************************************************************************************/
+
+    private synchronized Series[] grow(int nodes) {
+        if(nodes > series.length) {
+            Series[] larger = new Series[Math.max(nodes, series.length * 2)];
+            System.arraycopy(series, 0, larger, 0, series.length);
+            for(int i = series.length; i < larger.length; i++)
+                larger[i] = new Series();
+            series = larger;
+            published = larger;
+        }
+        return series;
+    }
+
+    private static boolean hasRoom(Chunk chunk, long time) {
+        return chunk != null && chunk.count.get() < CHUNK_SAMPLES
+                && time - chunk.baseTime <= Integer.MAX_VALUE;
+    }
+
+    //Start a new chunk for a series, expiring old chunks first, unless another
+    //port did meanwhile.  Each roll over also checks one other series in turn so
+    //silent nodes expire too.
+    private synchronized void rollOver(Series s, long time) {
+        synchronized(s) {
+            if(hasRoom(s.current, time))
+                return;
+        }
+
+        expire(s, time);
+        if(++sweep >= series.length)
+            sweep = 0;
+        expire(series[sweep], time);
+
+        Chunk chunk;
+        if(freeCount > 0)
+            chunk = free[--freeCount];
+        else if(allocated < maxChunks) {
+            chunk = new Chunk();
+            allocated++;
+        }
+        else
+            chunk = steal(s);
+
+        chunk.reset(time);
+        synchronized(s) {
+            s.add(chunk);
+        }
+    }
+
+    private void expire(Series s, long time) {
+        while(s.length > 1 && s.oldest().lastTime() < time - retentionMillis)
+            release(removeOldest(s));
+    }
+
+    private static Chunk removeOldest(Series s) {
+        synchronized(s) {
+            return s.removeOldest();
+        }
+    }
+
+    //Take the oldest chunk in the store when the budget is used up.
+    private Chunk steal(Series s) {
+        Series victim = s.length > 0 ? s : null;
+        for(Series other : series)
+            if(other.length > 0 && (victim == null
+                    || other.oldest().baseTime < victim.oldest().baseTime))
+                victim = other;
+
+        evicted++;
+        return removeOldest(victim);
+    }
+
+    private void release(Chunk chunk) {
+        evicted++;
+        if(freeCount == free.length) {
+            Chunk[] larger = new Chunk[free.length * 2];
+            System.arraycopy(free, 0, larger, 0, freeCount);
+            free = larger;
+        }
+        free[freeCount++] = chunk;
+    }
+
+/******************************************************************************************/
+
+    //Chunks of one node, oldest first.  The array is replaced rather than
+    //changed so readers always see a consistent list.  Changed under the
+    //store's lock and then this, current is also read under this alone.
+    static class Series {
+
+        volatile Chunk[] chunks = NO_CHUNKS;
+        Chunk current;
+        int length;
+
+        Chunk oldest() {
+            return chunks[0];
+        }
+
+        void add(Chunk chunk) {
+            Chunk[] larger = new Chunk[length + 1];
+            System.arraycopy(chunks, 0, larger, 0, length);
+            larger[length++] = chunk;
+            chunks = larger;
+            current = chunk;
+        }
+
+        Chunk removeOldest() {
+            Chunk[] smaller = new Chunk[length - 1];
+            System.arraycopy(chunks, 1, smaller, 0, length - 1);
+            Chunk oldest = chunks[0];
+            chunks = smaller;
+            if(--length == 0)
+                current = null;
+            return oldest;
+        }
+    }
+
+    //Generation is odd while a chunk is being reset.
+    static class Chunk {
+
+        final int[] times = new int[CHUNK_SAMPLES];
+        final short[] digital = new short[CHUNK_SAMPLES];
+        final short[][] adc = new short[NodeRegistry.ADC_CHANNELS][CHUNK_SAMPLES];
+        volatile int generation;
+        volatile long baseTime;
+        final AtomicInteger count = new AtomicInteger();
+
+        void reset(long time) {
+            generation++;
+            count.set(0);
+            baseTime = time;
+            generation++;
+            VarHandle.releaseFence(); //Rows of the new generation are stored after it.
+        }
+
+        long lastTime() {
+            int n = count.get();
+            return n == 0 ? baseTime : baseTime + times[n - 1];
+        }
+    }
+}
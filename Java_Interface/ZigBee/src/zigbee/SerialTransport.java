@@ -0,0 +1,116 @@
+package zigbee;
+
+import gnu.io.CommPort;
+import gnu.io.CommPortIdentifier;
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.TooManyListenersException;
+
+/*
+ * Serial port transport through RXTX.  Reads go straight into the array of
+ * a heap buffer.  Data bits, stop bits and parity are RXTX SerialPort
+ * constants.
+ *
+ * Event driven ports are read from RXTX's data available events, which
+ * arrive on the monitor thread RXTX keeps for every open port anyway.
+ */
+public class SerialTransport implements EventTransport {
+
+    private static final int OPEN_TIMEOUT_MS = 2000;
+
+    private final String portName;
+    private final int baudRate, dataBits, stopBits, parity;
+
+    private CommPort commPort;
+    private InputStream in;
+    private OutputStream out;
+    private volatile boolean events; //Reads return 0 rather than block.
+
+    public SerialTransport(String portName, int baudRate, int dataBits, int stopBits, int parity) {
+        this.portName = portName;
+        this.baudRate = baudRate;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+    }
+
+    public void open() throws IOException {
+        try {
+            CommPortIdentifier portIdentifier = CommPortIdentifier.getPortIdentifier(portName);
+
+            //Check if port is already in use.
+            if(portIdentifier.isCurrentlyOwned())
+                throw new IOException("Com Port Is Already In Use");
+
+            commPort = portIdentifier.open(getClass().getName(), OPEN_TIMEOUT_MS);
+            SerialPort serialPort = (SerialPort) commPort;
+            serialPort.setSerialPortParams(baudRate, dataBits, stopBits, parity);
+
+            in = serialPort.getInputStream();
+            out = serialPort.getOutputStream();
+        }
+        catch(IOException e) {
+            throw e;
+        }
+        catch(Exception e) {
+            if(commPort != null)
+                commPort.close();
+            throw new IOException(portName + ": " + e);
+        }
+    }
+
+    public void startEvents(IoReactor reactor, final Runnable ready) throws IOException {
+        SerialPort serialPort = (SerialPort) commPort;
+        events = true;
+        try {
+            serialPort.addEventListener(new SerialPortEventListener() {
+                public void serialEvent(SerialPortEvent event) {
+                    if(event.getEventType() == SerialPortEvent.DATA_AVAILABLE)
+                        ready.run();
+                }
+            });
+        }
+        catch(TooManyListenersException e) {
+            throw new IOException(portName + ": " + e);
+        }
+        serialPort.notifyOnDataAvailable(true);
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if(events && in.available() == 0)
+            return 0;
+
+        int len = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+
+        if(len > 0)
+            dst.position(dst.position() + len);
+
+        return len;
+    }
+
+    public void write(ByteBuffer src) throws IOException {
+        out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+        src.position(src.limit());
+    }
+
+    public void close() {
+        if(commPort != null) {
+            if(events)
+                ((SerialPort) commPort).removeEventListener(); //Stop events at once.
+            commPort.close();
+        }
+    }
+
+    public boolean isDirect() {
+        return false;
+    }
+
+    public String getName() {
+        return portName;
+    }
+}
@@ -0,0 +1,116 @@
+package zigbee;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * TCP transport for ser2net style serial servers.  The channel reads
+ * straight into the engine's direct buffer.  Event driven ports register
+ * the channel with the reactor's selector and use it non-blocking.  What a
+ * full socket does not take is kept and written when the selector says the
+ * socket is writable again, so a slow peer never holds up the reactor.
+ */
+public class SocketTransport implements EventTransport {
+
+    //Most output kept for a peer that is not reading before the write fails.
+    private static final int MAX_PENDING_BYTES = 64 * 1024;
+
+    private final String host;
+    private final int port;
+
+    private SocketChannel channel;
+
+    //Event driven output waiting for the socket, reactor thread only.
+    private IoReactor reactor;
+    private ByteBuffer pending = ByteBuffer.allocate(1024);
+
+    public SocketTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void open() throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        reactor = null;
+        pending.clear();
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    public void startEvents(IoReactor reactor, final Runnable ready) throws IOException {
+        this.reactor = reactor;
+        reactor.register(channel, new Runnable() {
+            public void run() {
+                if(pending.position() > 0)
+                    drain();
+                ready.run();
+            }
+        });
+    }
+
+    public void write(ByteBuffer src) throws IOException {
+        if(reactor == null) {
+            while(src.hasRemaining())
+                channel.write(src); //Blocking.
+            return;
+        }
+
+        if(pending.position() == 0) {
+            channel.write(src);
+            if(!src.hasRemaining())
+                return;
+        }
+
+        //Socket full, keep the rest behind anything already kept.
+        if(pending.position() + src.remaining() > MAX_PENDING_BYTES)
+            throw new IOException(getName() + ": peer is not reading");
+        if(pending.remaining() < src.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_PENDING_BYTES,
+                    Math.max(pending.capacity() * 2, pending.position() + src.remaining())));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.put(src);
+        reactor.setWriteInterest(channel, true);
+    }
+
+    //Write what was kept once the socket is writable.  A failure closes the
+    //channel, and the port's next read reports it.
+    private void drain() {
+        try {
+            pending.flip();
+            channel.write(pending);
+            pending.compact();
+            if(pending.position() == 0)
+                reactor.setWriteInterest(channel, false);
+        }
+        catch(IOException e) {
+            pending.clear();
+            close();
+        }
+    }
+
+    public void close() {
+        try {
+            if(channel != null)
+                channel.close();
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean isDirect() {
+        return true;
+    }
+
+    public String getName() {
+        return "tcp:" + host + ":" + port;
+    }
+}
@@ -0,0 +1,460 @@
+package zigbee;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
+
+/*
+ * TCP server that streams an engine's events to any number of local
+ * clients, so dashboards and loggers can share the one process that holds
+ * the port.  Line protocol, ASCII, fields separated by single spaces:
+ *
+ *   server to client
+ *     N <node> <serial>                                        node discovered
+ *     S <node> <millis> <dmask> <dio> <amask> <a0> <a1> <a2> <a3>   IO sample
+ *     M <status>                                               modem status
+ *     R <serial> <command> <status>                            remote AT response
+ *     OK <request> / ERR <request>: <reason>                   answer to a command
+ *   client to server
+ *     dio <node> <line> <0|1>       drive a DIO line, answered once the node confirms
+ *
+ * Serials and masks are hex, everything else decimal.
+ *
+ * Events come from an EventBus subscription and are encoded once into
+ * shared chunks that every client is sent a read-only view of, so adding a
+ * client costs a write, not an encoding.  Chunks go out when full or
+ * FLUSH_MILLIS after their first event.  One selector thread accepts,
+ * reads and writes for every client.  A client with more than
+ * MAX_QUEUED_BYTES waiting is disconnected rather than buffered for.
+ */
+public class StreamServer implements Flow.Subscriber<EngineEvent> {
+
+    public static final int CHUNK_SIZE = 16384;
+    public static final int MAX_QUEUED_BYTES = 256 * 1024;
+    public static final long FLUSH_MILLIS = 10;
+
+    private static final int MAX_EVENT_LENGTH = 128; //Longest encoded event line.
+    private static final int MAX_COMMAND_LENGTH = 256;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final ZigBeeEngine engine;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ArrayList<Client> clients = new ArrayList<Client>(); //Selector thread only.
+    private volatile int clientCount;
+    private volatile boolean closed;
+    private Flow.Subscription subscription;
+
+    //Chunk being encoded into, guarded by chunkLock, and chunks ready to send.
+    private final Object chunkLock = new Object();
+    private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    private long chunkStarted; //currentTimeMillis() of the chunk's first event.
+    private final ConcurrentLinkedQueue<ByteBuffer> ready = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private volatile long accepted, slowDisconnects, bytesSent;
+
+    //Listen on address and stream the events of bus, commands go to engine.
+    public StreamServer(ZigBeeEngine engine, EventBus bus, InetSocketAddress address)
+            throws IOException {
+        this.engine = engine;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(new Loop(), "StreamServer " + getPort());
+        thread.setDaemon(true);
+        thread.start();
+
+        bus.subscribe(this, 8192, EventBus.DROP_OLDEST);
+    }
+
+/******************************************************************************************/
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getClients() {
+        return clientCount;
+    }
+
+    public long getAccepted() {
+        return accepted;
+    }
+
+    //Clients dropped for falling MAX_QUEUED_BYTES behind.
+    public long getSlowDisconnects() {
+        return slowDisconnects;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    //Stop listening and disconnect every client.
+    public void close() {
+        closed = true;
+        Flow.Subscription s = subscription;
+        if(s != null)
+            s.cancel();
+        selector.wakeup();
+    }
+
+/******************************************************************************************/
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE); //The bus ring drops the oldest on overflow.
+    }
+
+    //Encode an event into the current chunk, on the bus delivery thread.
+    public void onNext(EngineEvent event) {
+        if(clientCount == 0)
+            return;
+
+        boolean wake;
+        synchronized(chunkLock) {
+            wake = chunk.position() == 0; //Start the flush timer.
+            if(wake)
+                chunkStarted = System.currentTimeMillis();
+
+            if(!encode(event, chunk))
+                return;
+
+            if(chunk.remaining() < MAX_EVENT_LENGTH) {
+                chunk.flip();
+                ready.add(chunk.asReadOnlyBuffer());
+                chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                wake = true;
+            }
+        }
+
+        if(wake)
+            selector.wakeup();
+    }
+
+    public void onError(Throwable failure) {
+        failure.printStackTrace();
+    }
+
+    public void onComplete() {
+        close();
+    }
+
+    //Returns false for events that are not streamed.
+    private static boolean encode(EngineEvent event, ByteBuffer out) {
+        switch(event.getType()) {
+            case EngineEvent.NODE_DISCOVERED:
+                out.put((byte)'N');
+                putDecimal(out, event.getNode());
+                putHex(out, event.getSerial(), 16);
+                break;
+
+            case EngineEvent.SAMPLE:
+                out.put((byte)'S');
+                putDecimal(out, event.getNode());
+                putDecimal(out, event.getTime());
+                putHex(out, event.getDigitalMask(), 4);
+                putHex(out, event.getDigitalSamples() & event.getDigitalMask(), 4);
+                putHex(out, event.getAnalogMask(), 2);
+                for(int channel = 0; channel < NodeRegistry.ADC_CHANNELS; channel++)
+                    putDecimal(out, event.getAdc(channel));
+                break;
+
+            case EngineEvent.MODEM_STATUS:
+                out.put((byte)'M');
+                putDecimal(out, event.getStatus());
+                break;
+
+            case EngineEvent.REMOTE_AT_RESPONSE:
+                out.put((byte)'R');
+                putHex(out, event.getSerial(), 16);
+                out.put((byte)' ').put((byte)event.getCommand1()).put((byte)event.getCommand2());
+                putDecimal(out, event.getStatus());
+                break;
+
+            default:
+                return false;
+        }
+
+        out.put((byte)'\n');
+        return true;
+    }
+
+    private static void putDecimal(ByteBuffer out, long value) {
+        out.put((byte)' ');
+        if(value < 0) {
+            out.put((byte)'-');
+            value = -value;
+        }
+
+        long divisor = 1;
+        while(divisor <= value / 10)
+            divisor *= 10;
+        for(; divisor > 0; divisor /= 10)
+            out.put((byte)('0' + value / divisor % 10));
+    }
+
+    private static void putHex(ByteBuffer out, long value, int digits) {
+        out.put((byte)' ');
+        for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+            out.put(HEX[(int)(value >>> shift) & 0xF]);
+    }
+
+/******************************************************************************************/
+
+    //Run a task on the selector thread.
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    //Hand every finished chunk to every client, plus the current one once it is
+    //FLUSH_MILLIS old.  Returns the milliseconds until the current one is due, 0 for
+    //none pending.
+    private long fanOut() {
+        long due = 0;
+        synchronized(chunkLock) {
+            if(chunk.position() > 0) {
+                long age = System.currentTimeMillis() - chunkStarted;
+                if(age >= FLUSH_MILLIS) {
+                    chunk.flip();
+                    ready.add(chunk.asReadOnlyBuffer());
+                    chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                }
+                else
+                    due = FLUSH_MILLIS - age;
+            }
+        }
+
+        ByteBuffer data;
+        while((data = ready.poll()) != null) {
+            for(int i = clients.size() - 1; i >= 0; i--) //Sending may drop the client.
+                clients.get(i).send(data.duplicate());
+        }
+
+        return due;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+            clientCount = clients.size();
+            accepted++;
+        }
+    }
+
+/***************************************Selector Loop**************************************/
+
+    class Loop implements Runnable {
+
+        public void run() {
+            long due = 0;
+
+            try {
+                while(!closed) {
+                    selector.select(due);
+
+                    Runnable task;
+                    while((task = tasks.poll()) != null)
+                        task.run();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if(!key.isValid())
+                            continue;
+
+                        if(key.isAcceptable())
+                            accept();
+                        else {
+                            Client client = (Client)key.attachment();
+                            if(key.isReadable())
+                                client.read();
+                            if(key.isValid() && key.isWritable())
+                                client.flush();
+                        }
+                    }
+
+                    due = fanOut();
+                }
+            }
+            catch(IOException e) {
+                if(!closed)
+                    e.printStackTrace();
+            }
+
+            for(int i = clients.size() - 1; i >= 0; i--)
+                clients.get(i).close();
+            try {
+                server.close();
+                selector.close();
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+/****************************************Client Class**************************************/
+
+    class Client {
+
+        private final SocketChannel channel;
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_COMMAND_LENGTH);
+        private int queued; //Bytes waiting in queue.
+        private boolean closed;
+        SelectionKey key;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        //Write what the socket takes now and queue the rest.
+        void send(ByteBuffer data) {
+            if(closed)
+                return;
+
+            if(queue.isEmpty()) {
+                write(data);
+                if(closed || !data.hasRemaining())
+                    return;
+            }
+
+            queue.add(data);
+            queued += data.remaining();
+            if(queued > MAX_QUEUED_BYTES) {
+                slowDisconnects++;
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void flush() {
+            ByteBuffer data;
+            while((data = queue.peek()) != null) {
+                int before = data.remaining();
+                write(data);
+                queued -= before - data.remaining();
+                if(closed || data.hasRemaining())
+                    return; //Socket full, wait for the next OP_WRITE.
+                queue.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void write(ByteBuffer data) {
+            try {
+                bytesSent += channel.write(data);
+            }
+            catch(IOException e) {
+                close();
+            }
+        }
+
+        void read() {
+            int count;
+            try {
+                count = channel.read(in);
+            }
+            catch(IOException e) {
+                count = -1;
+            }
+            if(count < 0) {
+                close();
+                return;
+            }
+
+            //Run every complete line, keep a partial one for the next read.
+            in.flip();
+            int start = 0;
+            for(int i = 0; i < in.limit(); i++) {
+                if(in.get(i) == '\n') {
+                    command(new String(in.array(), start, i - start,
+                            StandardCharsets.US_ASCII).trim());
+                    start = i + 1;
+                }
+            }
+            in.position(start);
+            in.compact();
+
+            if(!in.hasRemaining()) //A line longer than any command.
+                close();
+        }
+
+        private void command(final String line) {
+            String[] words = line.split("\\s+");
+            if(words[0].isEmpty())
+                return;
+
+            try {
+                if(words[0].equals("dio") && words.length == 4) {
+                    CompletableFuture<byte[]> result = engine.setDigitalOutputAsync(
+                            Integer.parseInt(words[1]), Integer.parseInt(words[2]),
+                            words[3].equals("1"));
+                    result.whenComplete(new BiConsumer<byte[], Throwable>() {
+                        public void accept(byte[] response, final Throwable failure) {
+                            execute(new Runnable() {
+                                public void run() {
+                                    reply(failure == null ? "OK " + line
+                                            : "ERR " + line + ": " + failure.getMessage());
+                                }
+                            });
+                        }
+                    });
+                }
+                else
+                    reply("ERR " + line + ": unknown command");
+            }
+            catch(IllegalArgumentException e) {
+                reply("ERR " + line + ": " + e.getMessage());
+            }
+        }
+
+        //Answer this client only, on the selector thread.
+        private void reply(String text) {
+            send(ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.US_ASCII)));
+        }
+
+        void close() {
+            if(closed)
+                return;
+
+            closed = true;
+            queue.clear();
+            key.cancel();
+            try {
+                channel.close();
+            }
+            catch(IOException e) {
+                //Already gone.
+            }
+            clients.remove(this);
+            clientCount = clients.size();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package zigbee;
+
+/*
+ * View of a 0x8B transmit status.
+ */
+public class TransmitStatus extends FrameView {
+
+    private static final int FRAME_ID = 1, NET_ADDRESS = 2, RETRIES = 4, DELIVERY_STATUS = 5,
+            DISCOVERY_STATUS = 6;
+
+    //Delivery status values, not all of them.
+    public static final int SUCCESS = 0x00, MAC_ACK_FAILURE = 0x01, CCA_FAILURE = 0x02,
+            NETWORK_ACK_FAILURE = 0x21, NOT_JOINED = 0x22, ADDRESS_NOT_FOUND = 0x24,
+            ROUTE_NOT_FOUND = 0x25;
+
+    protected int minimumLength() {
+        return DISCOVERY_STATUS + 1;
+    }
+
+    public int getFrameId() {
+        return u8(FRAME_ID);
+    }
+
+    public int getNetAddress() {
+        return u16(NET_ADDRESS);
+    }
+
+    public int getRetries() {
+        return u8(RETRIES);
+    }
+
+    public int getDeliveryStatus() {
+        return u8(DELIVERY_STATUS);
+    }
+
+    public int getDiscoveryStatus() {
+        return u8(DISCOVERY_STATUS);
+    }
+}
@@ -0,0 +1,28 @@
+package zigbee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Byte stream between the engine and a coordinator radio.  read() and
+ * write() are called from the engine's reader and writer threads, or from
+ * the reactor for an EventTransport.  close() may be called from any
+ * thread and must unblock a pending read.
+ */
+public interface Transport {
+
+    void open() throws IOException;
+
+    //Blocks until at least one byte is read into dst.  Returns -1 at end of stream.
+    int read(ByteBuffer dst) throws IOException;
+
+    //Writes all remaining bytes of src.
+    void write(ByteBuffer src) throws IOException;
+
+    void close();
+
+    //True if reads should go into direct buffers.
+    boolean isDirect();
+
+    String getName();
+}
@@ -0,0 +1,62 @@
+package zigbee;
+
+/*
+ * Builds a transport from a port name:
+ *
+ *   tcp:<host>:<port>      ser2net style serial server
+ *   pty:<path>             pseudo-terminal or other character device
+ *   fifo:<input>,<output>  pair of named pipes
+ *   replay:<file>[@speed]  replay of a capture file, speed 0 is as fast as possible
+ *   sim:<nodes>[@rate]     simulated coordinator, rate in samples per second per node
+ *   memory                 in-memory transport
+ *   anything else          RXTX serial port name
+ */
+public final class Transports {
+
+    private Transports() {
+    }
+
+    //Escaped selects the framing a replay or simulator is encoded with.
+    public static Transport forName(String name, int baudRate, int dataBits, int stopBits,
+            int parity, boolean escaped) {
+        if(name.startsWith("tcp:")) {
+            int colon = name.lastIndexOf(':');
+            if(colon <= 4)
+                throw new IllegalArgumentException("Expected tcp:<host>:<port>");
+            return new SocketTransport(name.substring(4, colon),
+                    Integer.parseInt(name.substring(colon + 1)));
+        }
+        if(name.startsWith("pty:"))
+            return new PtyTransport(name.substring(4));
+        if(name.startsWith("fifo:")) {
+            String[] paths = name.substring(5).split(",");
+            if(paths.length != 2)
+                throw new IllegalArgumentException("Expected fifo:<input>,<output>");
+            return new PtyTransport(paths[0], paths[1]);
+        }
+        if(name.startsWith("replay:")) {
+            String file = name.substring(7);
+            double speed = 1;
+            int at = file.lastIndexOf('@');
+            if(at >= 0) {
+                speed = Double.parseDouble(file.substring(at + 1));
+                file = file.substring(0, at);
+            }
+            return new ReplayTransport(file, speed, escaped);
+        }
+        if(name.startsWith("sim:")) {
+            String nodes = name.substring(4);
+            double rate = 1;
+            int at = nodes.lastIndexOf('@');
+            if(at >= 0) {
+                rate = Double.parseDouble(nodes.substring(at + 1));
+                nodes = nodes.substring(0, at);
+            }
+            return new CoordinatorSimulator(Integer.parseInt(nodes), rate, escaped);
+        }
+        if(name.equals("memory"))
+            return new MemoryTransport();
+
+        return new SerialTransport(name, baudRate, dataBits, stopBits, parity);
+    }
+}
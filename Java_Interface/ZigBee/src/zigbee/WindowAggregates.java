@@ -0,0 +1,282 @@
+package zigbee;
+
+import java.util.Arrays;
+
+/*
+ * Rolling per-node statistics over 1 second, 1 minute and 15 minute
+ * windows: count, min, max, mean and standard deviation of each ADC channel
+ * and the number of transitions on each DIO line.
+ *
+ * Each window is a ring of time buckets per node.  A sample updates the
+ * current bucket of every window, clearing it first if it still holds an
+ * older period, so updates are O(1) and allocate nothing after a node's
+ * first sample.  A query merges the buckets of one window for all nodes in
+ * a single pass, the window moves forward a bucket at a time.
+ *
+ * Every node has its own rings and lock, so ports updating different nodes
+ * never wait for each other.  The lock of the aggregates is only taken to
+ * add a node.
+ */
+public class WindowAggregates {
+
+    //Windows.
+    public static final int SECOND = 0, MINUTE = 1, QUARTER_HOUR = 2;
+
+    public static final int ADC_CHANNELS = NodeRegistry.ADC_CHANNELS;
+    public static final int DIO_LINES = 13; //DIO0 to DIO12.
+
+    //Buckets per window and bucket length.
+    private static final int[] BUCKETS = {10, 60, 90};
+    private static final long[] BUCKET_MILLIS = {100, 1000, 10000};
+
+    //Replaced, not changed, under this.  Null for a node not yet sampled.
+    private volatile Node[] all = new Node[16];
+    private volatile int nodes; //Highest node sampled plus one, written after all.
+
+    public static long getWindowMillis(int window) {
+        return BUCKETS[window] * BUCKET_MILLIS[window];
+    }
+
+/******************************************************************************************/
+
+    //Called from the receive threads for every IO sample.
+    public void update(int node, long time, IoSample sample) {
+        Node[] a = all;
+        Node n = node < a.length ? a[node] : null;
+        if(n == null)
+            n = add(node);
+
+        synchronized(n) {
+            update(n, time, sample);
+        }
+    }
+
+    private void update(Node n, long time, IoSample sample) {
+        int analogMask = sample.getAnalogMask();
+        int digitalMask = sample.getDigitalMask();
+        int digital = sample.getDigitalSamples();
+
+        //Lines sampled now and last time whose level changed.
+        int changed = (digital ^ n.lastDigital) & digitalMask & n.lastDigitalMask;
+        n.lastDigital = digital;
+        n.lastDigitalMask = digitalMask;
+
+        for(Window w : n.windows) {
+            int k = w.bucket(time);
+
+            for(int ch = 0; ch < ADC_CHANNELS; ch++) {
+                if((analogMask & (1 << ch)) == 0)
+                    continue;
+
+                int i = k * ADC_CHANNELS + ch;
+                int value = sample.getAdc(ch);
+                if(w.count[i]++ == 0) {
+                    w.min[i] = (short)value;
+                    w.max[i] = (short)value;
+                }
+                else if(value < w.min[i])
+                    w.min[i] = (short)value;
+                else if(value > w.max[i])
+                    w.max[i] = (short)value;
+                w.sum[i] += value;
+                w.sumSquares[i] += value * value;
+            }
+
+            for(int bits = changed; bits != 0; bits &= bits - 1)
+                w.transitions[k * DIO_LINES + Integer.numberOfTrailingZeros(bits)]++;
+        }
+    }
+
+    //Fill out with the current values of one window for every node.
+    public void query(int window, long now, Snapshot out) {
+        int count = nodes;
+        Node[] a = all;
+        long oldest = now / BUCKET_MILLIS[window] - BUCKETS[window] + 1;
+
+        out.reset(count);
+        for(int node = 0; node < count; node++) {
+            if(a[node] != null) {
+                synchronized(a[node]) {
+                    merge(a[node].windows[window], oldest, node, out);
+                }
+            }
+        }
+    }
+
+    //Add the buckets of one node's window from the oldest period on to out.
+    private static void merge(Window w, long oldest, int node, Snapshot out) {
+        int a = node * ADC_CHANNELS;
+        int d = node * DIO_LINES;
+
+        for(int k = 0; k < w.buckets; k++) {
+            if(w.epochs[k] < oldest)
+                continue; //Empty or outside the window.
+
+            for(int ch = 0; ch < ADC_CHANNELS; ch++) {
+                int i = k * ADC_CHANNELS + ch;
+                int n = w.count[i];
+                if(n == 0)
+                    continue;
+                if(out.count[a + ch] == 0 || w.min[i] < out.min[a + ch])
+                    out.min[a + ch] = w.min[i];
+                if(out.count[a + ch] == 0 || w.max[i] > out.max[a + ch])
+                    out.max[a + ch] = w.max[i];
+                out.count[a + ch] += n;
+                out.sum[a + ch] += w.sum[i];
+                out.sumSquares[a + ch] += w.sumSquares[i];
+            }
+
+            for(int line = 0; line < DIO_LINES; line++)
+                out.transitions[d + line] += w.transitions[k * DIO_LINES + line];
+        }
+    }
+
+    //Rings of a node seen for the first time, unless another port added them.
+    private synchronized Node add(int node) {
+        Node[] a = all;
+        if(node >= a.length) {
+            Node[] larger = new Node[Math.max(node + 1, a.length * 2)];
+            System.arraycopy(a, 0, larger, 0, a.length);
+            a = larger;
+        }
+        if(a[node] == null)
+            a[node] = new Node();
+        all = a;
+        if(node >= nodes)
+            nodes = node + 1;
+        return a[node];
+    }
+
+/******************************************************************************************/
+
+    //Bucket rings of one node and its last digital sample, guarded by itself.
+    static class Node {
+
+        final Window[] windows = new Window[BUCKETS.length];
+        int lastDigital; //Digital samples and mask of the last sample.
+        int lastDigitalMask;
+
+        Node() {
+            for(int w = 0; w < windows.length; w++)
+                windows[w] = new Window(BUCKETS[w], BUCKET_MILLIS[w]);
+        }
+    }
+
+    //Bucket ring of one window, struct of arrays indexed by slot.
+    static class Window {
+
+        final int buckets;
+        final long bucketMillis;
+        final long[] epochs; //Bucket period held, time / bucketMillis.
+        final int[] count; //ADC_CHANNELS entries per bucket from here on.
+        final long[] sum;
+        final long[] sumSquares;
+        final short[] min;
+        final short[] max;
+        final int[] transitions; //DIO_LINES entries per bucket.
+
+        Window(int buckets, long bucketMillis) {
+            this.buckets = buckets;
+            this.bucketMillis = bucketMillis;
+            epochs = new long[buckets];
+            Arrays.fill(epochs, Long.MIN_VALUE);
+            count = new int[buckets * ADC_CHANNELS];
+            sum = new long[buckets * ADC_CHANNELS];
+            sumSquares = new long[buckets * ADC_CHANNELS];
+            min = new short[buckets * ADC_CHANNELS];
+            max = new short[buckets * ADC_CHANNELS];
+            transitions = new int[buckets * DIO_LINES];
+        }
+
+        //Index of the bucket for a sample time, cleared when it held an older period.
+        int bucket(long time) {
+            long epoch = time / bucketMillis;
+            int k = (int)(epoch % buckets);
+
+            if(epochs[k] != epoch) {
+                epochs[k] = epoch;
+                int a = k * ADC_CHANNELS;
+                for(int ch = 0; ch < ADC_CHANNELS; ch++) {
+                    count[a + ch] = 0;
+                    sum[a + ch] = 0;
+                    sumSquares[a + ch] = 0;
+                }
+                int d = k * DIO_LINES;
+                for(int line = 0; line < DIO_LINES; line++)
+                    transitions[d + line] = 0;
+            }
+
+            return k;
+        }
+    }
+
+/******************************************************************************************/
+
+    //Window values for every node, reused from one query to the next.
+    public static class Snapshot {
+
+        private int nodes;
+        private int[] count = new int[0];
+        private long[] sum = new long[0];
+        private long[] sumSquares = new long[0];
+        private int[] min = new int[0];
+        private int[] max = new int[0];
+        private int[] transitions = new int[0];
+
+        void reset(int nodes) {
+            this.nodes = nodes;
+            if(count.length < nodes * ADC_CHANNELS) {
+                count = new int[nodes * ADC_CHANNELS];
+                sum = new long[nodes * ADC_CHANNELS];
+                sumSquares = new long[nodes * ADC_CHANNELS];
+                min = new int[nodes * ADC_CHANNELS];
+                max = new int[nodes * ADC_CHANNELS];
+                transitions = new int[nodes * DIO_LINES];
+            }
+            else {
+                for(int i = 0; i < nodes * ADC_CHANNELS; i++) {
+                    count[i] = 0;
+                    sum[i] = 0;
+                    sumSquares[i] = 0;
+                }
+                for(int i = 0; i < nodes * DIO_LINES; i++)
+                    transitions[i] = 0;
+            }
+        }
+
+        public int getNodes() {
+            return nodes;
+        }
+
+        //Number of samples of a channel in the window, the other values are
+        //meaningless when it is 0.
+        public int getCount(int node, int channel) {
+            return count[node * ADC_CHANNELS + channel];
+        }
+
+        public int getMin(int node, int channel) {
+            return min[node * ADC_CHANNELS + channel];
+        }
+
+        public int getMax(int node, int channel) {
+            return max[node * ADC_CHANNELS + channel];
+        }
+
+        public double getMean(int node, int channel) {
+            int i = node * ADC_CHANNELS + channel;
+            return count[i] == 0 ? 0 : (double)sum[i] / count[i];
+        }
+
+        public double getStdDev(int node, int channel) {
+            int i = node * ADC_CHANNELS + channel;
+            if(count[i] == 0)
+                return 0;
+            double mean = (double)sum[i] / count[i];
+            return Math.sqrt(Math.max(0, (double)sumSquares[i] / count[i] - mean * mean));
+        }
+
+        public int getTransitions(int node, int line) {
+            return transitions[node * DIO_LINES + line];
+        }
+    }
+}
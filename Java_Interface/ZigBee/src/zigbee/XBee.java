@@ -0,0 +1,76 @@
+package zigbee;
+
+/*
+ * XBee API constants shared by the engine and its clients.
+ */
+public final class XBee {
+
+    //Zigbee frame types.
+    public static final int REMOTE_AT_COMMAND_REQUEST_FRAME = 0x17,
+            AT_COMMAND_RESPONSE_FRAME = 0x88, MODEM_STATUS_FRAME = 0x8A,
+            TRANSMIT_STATUS_FRAME = 0x8B, RECEIVE_PACKET_FRAME = 0x90,
+            IO_DATA_SAMPLE_RX_INDICATOR_FRAME = 0x92, NODE_IDENTIFICATION_FRAME = 0x95,
+            REMOTE_AT_COMMAND_RESPONSE_FRAME = 0x97;
+
+    //Index values into IO data sample RX indicator frame payload array.
+    public static final int IO_PAYLOAD_FRAME_TYPE = 0, IO_PAYLOAD_SRC_SER_HI = 1,
+            IO_PAYLOAD_SRC_SER_LO = 5, IO_PAYLOAD_SRC_NET_ADR = 9,
+            IO_PAYLOAD_OPTIONS = 11, IO_PAYLOAD_NUM_SAMPLES = 12,
+            IO_PAYLOAD_DIG_MASK = 13, IO_PAYLOAD_AN_MASK = 15;
+
+    //Index values into remote AT command request frame data.
+    public static final int RAT_FRAME_TYPE = 0, RAT_FRAME_ID = 1, RAT_DEST_SER = 2,
+            RAT_DEST_NET_ADR = 10, RAT_OPTIONS = 12, RAT_COMMAND = 13, RAT_PARAMETER = 15;
+
+    //Index values into remote AT command response frame data.
+    public static final int RAT_RESPONSE_FRAME_ID = 1, RAT_RESPONSE_SER = 2,
+            RAT_RESPONSE_NET_ADR = 10, RAT_RESPONSE_COMMAND = 12, RAT_RESPONSE_STATUS = 14,
+            RAT_RESPONSE_DATA = 15;
+
+    //Remote AT command options.
+    public static final int RAT_OPTION_NONE = 0x00, RAT_OPTION_APPLY_CHANGES = 0x02;
+
+    //Analog mask values.
+    public static final int ADC_0 = 0x01, ADC_1  = 0x02, ADC_2 = 0x04,
+            ADC_3 = 0x08, ADC_VCC = 0x80;
+
+    //Digital mask values.
+    public static final int DIO_0 = 0x0001,  DIO_1 = 0x0002,  DIO_2 = 0x0004,
+            DIO_3 = 0x0008,  DIO_4 = 0x0010,  DIO_5 = 0x0020,  DIO_6 = 0x0040,
+            DIO_7 = 0x0080,  DIO_10 = 0x0400, DIO_11 = 0x0800, DIO_12 = 0x1000;
+
+    //DIO pin configuration values.
+    public static final int DIO_OUTPUT_LOW = 0x04, DIO_OUTPUT_HIGH = 0x05;
+
+    //Address used before a node's 16-bit network address is known.
+    public static final int UNKNOWN_NET_ADDRESS = 0xFFFE;
+
+    //64-bit destination address that reaches every node in the network.
+    public static final long BROADCAST_SERIAL = 0x000000000000FFFFL;
+
+    private XBee() {
+    }
+
+    //AT command that configures a DIO line, D0-D7 and P0-P2 for DIO10-DIO12.
+    public static String dioCommand(int dio) {
+        if(dio >= 0 && dio <= 7)
+            return "D" + dio;
+        if(dio >= 10 && dio <= 12)
+            return "P" + (dio - 10);
+        throw new IllegalArgumentException("No DIO" + dio);
+    }
+
+    static long getLong(byte[] data, int offset) {
+        long value = 0;
+
+        for(int i = 0; i < 8; i++)
+            value = (value << 8) | (data[offset + i] & 0xff);
+
+        return value;
+    }
+
+    static void putLong(byte[] data, int offset, long value) {
+        for(int i = 0; i < 8; i++)
+            data[offset + i] = (byte)(value >>> (56 - 8 * i));
+    }
+}
@@ -0,0 +1,517 @@
+package zigbee;
+
+import static zigbee.XBee.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/*
+ * GUI-free protocol engine.  Serves any number of coordinator ports, each
+ * with its own decoder, command queue and threads, which all feed one
+ * thread-safe node registry, sample history, statistics and set of
+ * listeners.  Decoded samples are delivered to EngineListeners and remote
+ * pins are driven through the command methods, which may be called from
+ * any thread and go out on the port a node was last heard on.
+ *
+ * With reconnect set, a port whose transport fails keeps trying to open it
+ * again, see CoordinatorPort.  As a PortWatcher listener the engine also
+ * drops a port as soon as its device disappears and retries it at once
+ * when the device comes back.
+ */
+public class ZigBeeEngine implements PortWatcher.Listener {
+
+    //Maximum number of commands waiting for a port's serial writer.
+    public static final int COMMAND_QUEUE_SIZE = 256;
+
+    //Frame trace ring buffer size.
+    public static final int TRACE_BUFFER_SIZE = 1 << 20;
+
+    //DIO lines that can be driven, D0-D7 and P0-P2.
+    public static final int OUTPUT_LINES = DIO_0 | DIO_1 | DIO_2 | DIO_3 | DIO_4 | DIO_5
+            | DIO_6 | DIO_7 | DIO_10 | DIO_11 | DIO_12;
+
+    private final NodeRegistry registry = new NodeRegistry();
+    private final FrameTrace trace;
+    private final EngineMetrics metrics = new EngineMetrics(this);
+    private final CopyOnWriteArrayList<EngineListener> listeners =
+            new CopyOnWriteArrayList<EngineListener>();
+    final CopyOnWriteArrayList<FrameListener> frameListeners =
+            new CopyOnWriteArrayList<FrameListener>();
+
+    //Ports by index, closed ports stay until the engine is closed.
+    private final CopyOnWriteArrayList<CoordinatorPort> ports =
+            new CopyOnWriteArrayList<CoordinatorPort>();
+
+    //Nodes below announced have had nodeDiscovered, the rest are marked in
+    //discovered.  Guarded by discoveries.
+    private final Object discoveries = new Object();
+    private volatile int announced;
+    private boolean[] discovered = new boolean[64];
+
+    private volatile CaptureRecorder recorder; //Null when not capturing.
+    private volatile SampleStore store; //Null when no history is kept.
+    private volatile WindowAggregates aggregates; //Null when no statistics are kept.
+    private volatile long commandTimeoutMillis = 1000;
+    private volatile int commandRetries = 2;
+    private volatile boolean eventDriven;
+    private volatile boolean reconnect;
+    private volatile CommandJournal journal; //Null when commands are not journaled.
+
+    public ZigBeeEngine(String traceFile) {
+        trace = new FrameTrace(traceFile, TRACE_BUFFER_SIZE);
+    }
+
+/******************************************************************************************/
+
+    public void addListener(EngineListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(EngineListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addFrameListener(FrameListener listener) {
+        frameListeners.add(listener);
+    }
+
+    public void removeFrameListener(FrameListener listener) {
+        frameListeners.remove(listener);
+    }
+
+    public NodeRegistry getRegistry() {
+        return registry;
+    }
+
+    public FrameTrace getTrace() {
+        return trace;
+    }
+
+    public EngineMetrics getMetrics() {
+        return metrics;
+    }
+
+    //Every port opened since the engine was last closed, by index.
+    public List<CoordinatorPort> getPorts() {
+        return ports;
+    }
+
+    //Start writing every received and transmitted frame to a capture file.
+    public synchronized void startCapture(String fileName) throws IOException {
+        stopCapture();
+        recorder = new CaptureRecorder(fileName);
+    }
+
+    public synchronized void stopCapture() throws IOException {
+        CaptureRecorder r = recorder;
+        recorder = null;
+        if(r != null)
+            r.close();
+    }
+
+    public CaptureRecorder getRecorder() {
+        return recorder;
+    }
+
+    //Keep a history of every sample, or none when store is null.
+    public void setStore(SampleStore store) {
+        this.store = store;
+    }
+
+    public SampleStore getStore() {
+        return store;
+    }
+
+    //Keep rolling window statistics, or none when aggregates is null.
+    public void setAggregates(WindowAggregates aggregates) {
+        this.aggregates = aggregates;
+    }
+
+    public WindowAggregates getAggregates() {
+        return aggregates;
+    }
+
+    //True while any port is open.
+    public boolean isOpen() {
+        for(CoordinatorPort port : ports)
+            if(port.isOpen())
+                return true;
+        return false;
+    }
+
+    //True while any lost port is waiting to open again.
+    public boolean isReconnecting() {
+        for(CoordinatorPort port : ports)
+            if(port.isReconnecting())
+                return true;
+        return false;
+    }
+
+/******************************************************************************************/
+
+    //Open a port by name, see Transports.  Data bits, stop bits and parity are RXTX
+    //SerialPort constants and only apply to serial ports.
+    public CoordinatorPort open(String portName, int baudRate, int dataBits, int stopBits,
+            int parity, boolean escaped) throws IOException {
+        return open(Transports.forName(portName, baudRate, dataBits, stopBits, parity,
+                escaped), escaped);
+    }
+
+    //Add a coordinator.  Escaped selects API mode 2 framing.
+    public synchronized CoordinatorPort open(Transport transport, boolean escaped)
+            throws IOException {
+        for(CoordinatorPort port : ports)
+            if((port.isOpen() || port.isReconnecting())
+                    && port.getName().equals(transport.getName()))
+                throw new IOException(transport.getName() + " Already Connected");
+
+        CoordinatorPort port = new CoordinatorPort(this, ports.size(), transport, escaped);
+        port.setCommandTimeout(commandTimeoutMillis, commandRetries);
+        port.start(eventDriven);
+        ports.add(port);
+
+        CommandJournal j = journal;
+        if(j != null)
+            j.replay(); //Commands that missed the last connection.
+        return port;
+    }
+
+    //Journal remote AT commands sent with sendRemoteAtAsync, or stop when null.
+    public void setJournal(CommandJournal journal) {
+        this.journal = journal;
+        if(journal != null)
+            journal.attach(this);
+    }
+
+    public CommandJournal getJournal() {
+        return journal;
+    }
+
+    //Run ports opened from now on from the shared IoReactor rather than their own
+    //threads, where the transport supports it.
+    public void setEventDriven(boolean eventDriven) {
+        this.eventDriven = eventDriven;
+    }
+
+    public boolean isEventDriven() {
+        return eventDriven;
+    }
+
+    //Open lost ports again rather than closing them, for ports lost from now on.
+    public void setReconnect(boolean reconnect) {
+        this.reconnect = reconnect;
+    }
+
+    public boolean isReconnect() {
+        return reconnect;
+    }
+
+    //Close every port.
+    public synchronized void close() {
+        for(CoordinatorPort port : ports)
+            port.close();
+        ports.clear();
+    }
+
+    //A port's device has come back, retry it now rather than at its next attempt.
+    public void portAdded(String name) {
+        for(CoordinatorPort port : ports)
+            if(port.getName().equals(name))
+                port.reconnectNow();
+    }
+
+    //A port's device is gone, lose the port now rather than at its next read.
+    public void portRemoved(String name) {
+        for(CoordinatorPort port : ports)
+            if(port.isOpen() && port.getName().equals(name))
+                port.lost(false);
+    }
+
+    //Called by a port once its transport is open again.
+    void portReopened(CoordinatorPort port) {
+        CommandJournal j = journal;
+        if(j != null)
+            j.replay(); //Commands lost with the connection.
+    }
+
+    //Called by a port once it has closed.
+    void portClosed(CoordinatorPort port) {
+        CaptureRecorder r = recorder;
+        try {
+            if(r != null)
+                r.flush();
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+/******************************************************************************************/
+
+    //Drive a DIO line of a known node high or low.  Returns false if the node
+    //is unknown or the command queue is full.
+    public boolean setDigitalOutput(int node, int dio, boolean high) {
+        if(node < 0 || node >= registry.size())
+            return false;
+
+        String command = dioCommand(dio);
+        return sendRemoteAt(registry.getSerial(node), registry.getNetAddress(node),
+                RAT_OPTION_APPLY_CHANGES, command.charAt(0), command.charAt(1),
+                high ? DIO_OUTPUT_HIGH : DIO_OUTPUT_LOW);
+    }
+
+    //Drive a DIO line of a known node high or low.  The future completes when the
+    //node confirms the change.
+    public CompletableFuture<byte[]> setDigitalOutputAsync(int node, int dio, boolean high) {
+        if(node < 0 || node >= registry.size())
+            throw new IllegalArgumentException("No node " + node);
+
+        String command = dioCommand(dio);
+        return sendRemoteAtAsync(registry.getSerial(node), registry.getNetAddress(node),
+                RAT_OPTION_APPLY_CHANGES, command.charAt(0), command.charAt(1),
+                high ? DIO_OUTPUT_HIGH : DIO_OUTPUT_LOW);
+    }
+
+    //Drive the DIO lines set in mask of a known node to the matching bits of values,
+    //bit n for DIOn.  Every line but the last is sent without the apply option and
+    //the last one applies them all, so the lines change together.  Returns false,
+    //with nothing queued, if the node is unknown or the commands do not all fit.
+    public boolean setDigitalOutputs(int node, int mask, int values) {
+        checkOutputs(mask);
+        if(node < 0 || node >= registry.size())
+            return false;
+
+        long serial = registry.getSerial(node);
+        CoordinatorPort port = portFor(serial);
+        return port != null && port.sendDigitalOutputs(serial, registry.getNetAddress(node),
+                mask, values);
+    }
+
+    //As setDigitalOutputs(), completing when the node confirms every line.  The
+    //last line, which applies the rest, goes once the others are confirmed, so
+    //a retried command can never arrive after the apply and be left pending.
+    public CompletableFuture<Void> setDigitalOutputsAsync(int node, int mask, int values) {
+        checkOutputs(mask);
+        if(node < 0 || node >= registry.size())
+            throw new IllegalArgumentException("No node " + node);
+
+        final long serial = registry.getSerial(node);
+        final int netAddress = registry.getNetAddress(node);
+        final int last = 31 - Integer.numberOfLeadingZeros(mask);
+        final int lastValue = values;
+
+        CompletableFuture<?>[] deferred = new CompletableFuture<?>[Integer.bitCount(mask) - 1];
+        int count = 0;
+        for(int dio = 0; dio < last; dio++)
+            if((mask & 1 << dio) != 0)
+                deferred[count++] = sendOutputAsync(serial, netAddress, RAT_OPTION_NONE, dio,
+                        values);
+
+        return CompletableFuture.allOf(deferred).handle(
+            new BiFunction<Void, Throwable, Throwable>() {
+                public Throwable apply(Void done, Throwable failure) {
+                    return failure;
+                }
+            }
+        ).thenCompose(
+            new Function<Throwable, CompletionStage<Void>>() {
+                public CompletionStage<Void> apply(final Throwable failure) {
+                    //Apply whatever did arrive, then report the first failure.
+                    return sendOutputAsync(serial, netAddress, RAT_OPTION_APPLY_CHANGES, last,
+                            lastValue).thenApply(
+                        new Function<byte[], Void>() {
+                            public Void apply(byte[] response) {
+                                if(failure != null)
+                                    throw failure instanceof CompletionException
+                                            ? (CompletionException)failure
+                                            : new CompletionException(failure);
+                                return null;
+                            }
+                        }
+                    );
+                }
+            }
+        );
+    }
+
+    //Drive the DIO lines set in mask of every node on every open port at once,
+    //with one broadcast command per line rather than one per line and node.  No
+    //responses are requested.  Returns false if no port is open or a port had no
+    //room for every command, those ports queue none of them.
+    public boolean broadcastDigitalOutputs(int mask, int values) {
+        checkOutputs(mask);
+
+        boolean sent = false, queued = true;
+        for(CoordinatorPort port : ports) {
+            if(!port.isOpen())
+                continue;
+            sent = true;
+            queued &= port.sendDigitalOutputs(BROADCAST_SERIAL, UNKNOWN_NET_ADDRESS, mask,
+                    values);
+        }
+        return sent && queued;
+    }
+
+    private static void checkOutputs(int mask) {
+        if(mask == 0 || (mask & ~OUTPUT_LINES) != 0)
+            throw new IllegalArgumentException(String.format("No DIO lines 0x%04X", mask));
+    }
+
+    private CompletableFuture<byte[]> sendOutputAsync(long serial, int netAddress, int options,
+            int dio, int values) {
+        String command = dioCommand(dio);
+        return sendRemoteAtAsync(serial, netAddress, options, command.charAt(0),
+                command.charAt(1), (values & 1 << dio) != 0 ? DIO_OUTPUT_HIGH : DIO_OUTPUT_LOW);
+    }
+
+    //Queue a remote AT command with a one byte parameter, no response is requested.
+    public boolean sendRemoteAt(long serial, int netAddress, int options, char c1, char c2,
+            int parameter) {
+        CoordinatorPort port = portFor(serial);
+        return port != null && port.sendRemoteAt(serial, netAddress, options, c1, c2,
+                parameter);
+    }
+
+    //Queue a remote AT command with a rolling frame ID.  The future completes with
+    //the response's parameter bytes, or with a RemoteAtException for an error
+    //status, a timeout after the retries or when the command could not be queued.
+    //A negative parameter sends none, to read a setting.  With a journal the
+    //command is journaled first and the future waits out timeouts and reconnects.
+    public CompletableFuture<byte[]> sendRemoteAtAsync(long serial, int netAddress,
+            int options, char c1, char c2, int parameter) {
+        CommandJournal j = journal;
+        if(j != null)
+            return j.submit(serial, netAddress, options, c1, c2, parameter);
+        return sendRemoteAtNow(serial, netAddress, options, c1, c2, parameter);
+    }
+
+    //Straight to a port, bypassing the journal.
+    CompletableFuture<byte[]> sendRemoteAtNow(long serial, int netAddress, int options,
+            char c1, char c2, int parameter) {
+        CoordinatorPort port = portFor(serial);
+        if(port == null) {
+            CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+            failed.completeExceptionally(new RemoteAtException("" + c1 + c2 + " to "
+                    + NodeRegistry.formatSerial(serial), RemoteAtException.NOT_SENT));
+            return failed;
+        }
+        return port.sendRemoteAtAsync(serial, netAddress, options, c1, c2, parameter);
+    }
+
+    //Port a node was last heard on, or the first open port for unknown nodes and
+    //broadcasts.  Null when no port is open.
+    public CoordinatorPort portFor(long serial) {
+        int node = registry.find(serial);
+        int index = node == NodeRegistry.NO_NODE ? -1 : registry.getPort(node);
+
+        CoordinatorPort first = null;
+        for(CoordinatorPort port : ports) {
+            if(!port.isOpen())
+                continue;
+            if(port.getIndex() == index)
+                return port;
+            if(first == null)
+                first = port;
+        }
+        return first;
+    }
+
+    //Response timeout and number of times an unanswered command is sent again,
+    //for every port.
+    public void setCommandTimeout(long timeoutMillis, int retries) {
+        commandTimeoutMillis = timeoutMillis;
+        commandRetries = retries;
+        for(CoordinatorPort port : ports)
+            port.setCommandTimeout(timeoutMillis, retries);
+    }
+
+    public int getCommandsInFlight() {
+        int n = 0;
+        for(CoordinatorPort port : ports)
+            n += port.getCommandsInFlight();
+        return n;
+    }
+
+    //Trace and capture a decoded frame, called on a port's reader thread.
+    void frameReceived(byte[] frame, int offset, int length) {
+        trace.record(frame, offset, length); //Returns at once when tracing is off.
+        CaptureRecorder r = recorder;
+        if(r != null)
+            capture(r, CaptureRecorder.RX, frame, offset, length);
+    }
+
+    //Transmitted frames are captured as they are queued.
+    void frameSent(byte[] frame, int offset, int length) {
+        CaptureRecorder r = recorder;
+        if(r != null)
+            capture(r, CaptureRecorder.TX, frame, offset, length);
+    }
+
+    //A failing capture file stops the capture, not the engine.
+    private void capture(CaptureRecorder r, int direction, byte[] frame, int offset,
+            int length) {
+        try {
+            r.record(direction, frame, offset, length);
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+            recorder = null;
+        }
+    }
+
+/******************************************************************************************/
+
+    //Record a wrapped 0x92 sample and pass it on, called on the reader thread of
+    //the port it arrived on.  Seen is that port's own map of serials to nodes.
+    void ioSampleReceived(int port, LongIntHashMap seen, IoSample sample) {
+        long time = System.currentTimeMillis();
+        int node = registry.node(sample.getSerial(), seen);
+        registry.update(node, sample.getNetAddress(),
+                sample.getDigitalMask(), sample.getDigitalSamples(),
+                sample.getAnalogMask(), sample.getAdc(0), sample.getAdc(1),
+                sample.getAdc(2), sample.getAdc(3), time, port);
+
+        SampleStore s = store;
+        if(s != null)
+            s.append(node, time, sample.getDigitalSamples(), sample.getAdc(0),
+                    sample.getAdc(1), sample.getAdc(2), sample.getAdc(3));
+
+        WindowAggregates w = aggregates;
+        if(w != null)
+            w.update(node, time, sample);
+
+        if(node >= announced) //First sample from this node, or one that raced it.
+            discover(node, sample.getSerial());
+
+        for(EngineListener listener : listeners)
+            listener.sampleReceived(node, sample);
+    }
+
+    //Announce a node once, even when its first samples arrive on two ports at once.
+    private void discover(int node, long serial) {
+        synchronized(discoveries) {
+            if(node >= discovered.length) {
+                boolean[] larger = new boolean[Math.max(node + 1, discovered.length * 2)];
+                System.arraycopy(discovered, 0, larger, 0, discovered.length);
+                discovered = larger;
+            }
+            if(node < announced || discovered[node])
+                return;
+
+            discovered[node] = true;
+            for(EngineListener listener : listeners)
+                listener.nodeDiscovered(node, serial);
+
+            int a = announced;
+            while(a < discovered.length && discovered[a])
+                a++;
+            announced = a;
+        }
+    }
+}
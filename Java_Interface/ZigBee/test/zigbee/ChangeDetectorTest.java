@@ -0,0 +1,119 @@
+package zigbee;
+
+import static org.junit.Assert.*;
+import static zigbee.XBee.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/*
+ * Deadband, hysteresis and DIO edges of the change detector.  Each row of
+ * the table is one sample, with the changed mask its listener should see,
+ * 0 for a sample that is not passed on, and the ADC values then published.
+ */
+public class ChangeDetectorTest {
+
+    private static final int DEADBAND = 10, HYSTERESIS = 5;
+
+    private static final int ALL = ChangeDetector.DIO_CHANGED | ChangeDetector.ADC_CHANGED;
+    private static final int AD0 = ChangeDetector.adcChanged(0);
+    private static final int AD1 = ChangeDetector.adcChanged(1);
+
+    private static final int[][] SAMPLES = {
+        //node, DIO mask, DIO, ADC mask, AD0, AD1, changed, published AD0, AD1
+        {0, 0x0010, 0x0010, 0x3, 500, 200, ALL, 500, 200}, //First sample of a node.
+        {0, 0x0010, 0x0010, 0x3, 505, 200, 0, 500, 200},
+        {0, 0x0010, 0x0010, 0x3, 510, 200, 0, 500, 200}, //On the edge of the band.
+        {0, 0x0010, 0x0010, 0x3, 511, 200, AD0, 511, 200},
+        {0, 0x0010, 0x0010, 0x3, 522, 200, AD0, 522, 200}, //Same way, band only.
+        {0, 0x0010, 0x0010, 0x3, 510, 200, 0, 522, 200}, //Turning back, band and
+        {0, 0x0010, 0x0010, 0x3, 507, 200, 0, 522, 200}, //hysteresis.
+        {0, 0x0010, 0x0010, 0x3, 506, 200, AD0, 506, 200},
+        {0, 0x0010, 0x0010, 0x3, 495, 200, AD0, 495, 200},
+        {0, 0x0010, 0x0010, 0x3, 495, 189, AD1, 495, 189}, //First move of AD1.
+        {0, 0x0010, 0x0000, 0x3, 495, 189, 0x0010, 495, 189}, //DIO4 falls.
+        {0, 0x0010, 0x0010, 0x3, 500, 189, 0x0010, 495, 189}, //Rises, AD0 in band.
+        {0, 0x0011, 0x0011, 0x3, 500, 189, 0x0001, 495, 189}, //DIO0 enabled high.
+        {0, 0x0011, 0x0011, 0x3, 500, 189, 0, 495, 189},
+        {0, 0x0011, 0x0011, 0x1, 500, 0, AD1, 495, 0}, //AD1 switched off.
+        {0, 0x0011, 0x0011, 0x3, 500, 190, AD1, 495, 190}, //And on again.
+        {1, 0x0011, 0x0011, 0x3, 495, 190, ALL, 495, 190}, //Another node.
+        {1, 0x0011, 0x0011, 0x3, 506, 190, AD0, 506, 190},
+        {0, 0x0011, 0x0011, 0x3, 511, 190, AD0, 511, 190}, //Node 0 still turns back.
+    };
+
+    @Test(timeout = 20000)
+    public void onlySamplesThatChangeSomethingArePassedOn() {
+        ChangeDetector detector = new ChangeDetector();
+        detector.setDeadband(DEADBAND, HYSTERESIS);
+        Changes changes = new Changes();
+        detector.addListener(changes);
+
+        int passed = 0;
+        for(int row = 0; row < SAMPLES.length; row++) {
+            int[] s = SAMPLES[row];
+            String message = "row " + row;
+            changes.events.clear();
+            detector.sampleReceived(s[0], sample(s[1], s[2], s[3], s[4], s[5]));
+
+            if(s[6] == 0) {
+                assertEquals(message, 0, changes.events.size());
+                continue;
+            }
+            passed++;
+            assertEquals(message, 1, changes.events.size());
+            long[] event = changes.events.get(0);
+            assertEquals(message, s[0], event[0]);
+            assertEquals(message, s[6], event[1]);
+
+            long packed = event[2];
+            assertEquals(message, s[2] & s[1], PackedSample.digital(packed));
+            assertEquals(message, s[3], PackedSample.analogMask(packed));
+            assertEquals(message, s[7], PackedSample.adc(packed, 0));
+            assertEquals(message, s[8], PackedSample.adc(packed, 1));
+        }
+
+        assertEquals(SAMPLES.length, detector.getSamples());
+        assertEquals(passed, detector.getChanges());
+    }
+
+/******************************************************************************************/
+
+    //A 0x92 frame with one sample set, DIO only when its mask is set.
+    private static IoSample sample(int digitalMask, int digital, int analogMask,
+            int adc0, int adc1) {
+        byte[] frame = new byte[IO_PAYLOAD_AN_MASK + 1 + 2 + 2 * 4];
+        frame[IO_PAYLOAD_FRAME_TYPE] = (byte)IO_DATA_SAMPLE_RX_INDICATOR_FRAME;
+        frame[IO_PAYLOAD_NUM_SAMPLES] = 1;
+        frame[IO_PAYLOAD_DIG_MASK] = (byte)(digitalMask >> 8);
+        frame[IO_PAYLOAD_DIG_MASK + 1] = (byte)digitalMask;
+        frame[IO_PAYLOAD_AN_MASK] = (byte)analogMask;
+
+        int i = IO_PAYLOAD_AN_MASK + 1;
+        if(digitalMask != 0) {
+            frame[i++] = (byte)(digital >> 8);
+            frame[i++] = (byte)digital;
+        }
+        int[] adc = {adc0, adc1};
+        for(int channel = 0; channel < adc.length; channel++) {
+            if((analogMask & 1 << channel) != 0) {
+                frame[i++] = (byte)(adc[channel] >> 8);
+                frame[i++] = (byte)adc[channel];
+            }
+        }
+
+        IoSample sample = new IoSample();
+        assertTrue(sample.wrap(frame, 0, i));
+        return sample;
+    }
+
+    static class Changes implements ChangeListener {
+
+        final List<long[]> events = new ArrayList<long[]>();
+
+        public void sampleChanged(int node, int changed, long sample) {
+            events.add(new long[] {node, changed, sample});
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package zigbee;
+
+import static org.junit.Assert.*;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Test;
+
+/*
+ * Crash recovery, replay and compaction of the remote AT command journal.
+ * Without an engine nothing is sent, so submitted commands stay pending in
+ * the file across a close and reopen, like a crash before the port opened.
+ */
+public class CommandJournalTest {
+
+    private static final long SERIAL = CoordinatorSimulator.FIRST_SERIAL;
+
+    @Test(timeout = 20000)
+    public void recoveryStopsAtATornRecord() throws Exception {
+        Path file = journalFile();
+        CommandJournal journal = new CommandJournal(file.toString());
+        for(int i = 0; i < 3; i++)
+            journal.submit(SERIAL, 0xFFFE, 2, 'D', '4', 5);
+        journal.close();
+        assertEquals(3 * CommandJournal.RECORD_LENGTH, Files.size(file));
+
+        //Crash halfway through writing the third record.
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.truncate(3 * CommandJournal.RECORD_LENGTH - 10);
+        channel.close();
+
+        journal = new CommandJournal(file.toString());
+        assertEquals(2, journal.getPending());
+        assertEquals(2 * CommandJournal.RECORD_LENGTH, Files.size(file)); //Torn tail gone.
+
+        //The recovered journal takes new commands after the good records.
+        journal.submit(SERIAL + 1, 0xFFFE, 2, 'D', '5', 4);
+        journal.close();
+        journal = new CommandJournal(file.toString());
+        assertEquals(3, journal.getPending());
+        journal.close();
+    }
+
+    @Test(timeout = 20000)
+    public void recoveredCommandsAreReplayedAndCompactedAway() throws Exception {
+        Path file = journalFile();
+        CommandJournal journal = new CommandJournal(file.toString());
+        for(int i = 0; i < 5; i++)
+            journal.submit(SERIAL + i % 3, 0xFFFE, 2, 'D', (char)('0' + i), 5);
+        journal.close();
+
+        journal = new CommandJournal(file.toString());
+        assertEquals(5, journal.getPending());
+        ZigBeeEngine engine = new ZigBeeEngine(file + ".trace");
+        engine.setJournal(journal);
+        engine.open(new CoordinatorSimulator(3, 10, false), false);
+        while(journal.getPending() > 0)
+            Thread.sleep(10);
+        engine.close();
+        journal.close();
+        assertEquals(10 * CommandJournal.RECORD_LENGTH, Files.size(file)); //Commands and acks.
+
+        //Reopening rewrites the file with only the pending commands, none.
+        journal = new CommandJournal(file.toString());
+        assertEquals(0, journal.getPending());
+        assertEquals(1, journal.getCompactions());
+        assertEquals(0, Files.size(file));
+        journal.close();
+    }
+
+    private static Path journalFile() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        directory.toFile().deleteOnExit();
+        return directory.resolve("commands.journal");
+    }
+}
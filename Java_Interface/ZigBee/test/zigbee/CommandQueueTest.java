@@ -0,0 +1,64 @@
+package zigbee;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+/*
+ * Producer and consumer hand frames over one at a time, so every offer
+ * races the consumer going to sleep.  A lost wakeup leaves the consumer
+ * parked with a frame in the queue and the test times out.
+ */
+public class CommandQueueTest {
+
+    private static final int FRAMES = 200000;
+
+    @Test(timeout = 60000)
+    public void everyOfferWakesTheConsumer() throws Exception {
+        final CommandQueue queue = new CommandQueue(16);
+        final OutboundFrame frame = new OutboundFrame(new byte[1], 0, 1);
+        final AtomicLong taken = new AtomicLong();
+
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                while(queue.take() != null)
+                    taken.incrementAndGet();
+            }
+        }, "Consumer");
+        consumer.start();
+
+        for(int i = 0; i < FRAMES; i++) {
+            assertTrue(queue.offer(frame));
+            while(taken.get() <= i)
+                Thread.yield(); //Wait for the take, then offer as the consumer parks.
+        }
+
+        queue.close();
+        consumer.join();
+        assertEquals(FRAMES, taken.get());
+    }
+
+    @Test
+    public void framesOfferedTogetherAreQueuedAllOrNone() {
+        CommandQueue queue = new CommandQueue(4);
+        OutboundFrame single = new OutboundFrame(new byte[1], 0, 1);
+        OutboundFrame first = new OutboundFrame(new byte[2], 0, 2);
+        OutboundFrame second = new OutboundFrame(new byte[3], 0, 3);
+        OutboundFrame[] pair = {first, second};
+
+        for(int i = 0; i < 3; i++)
+            assertTrue(queue.offer(single));
+        assertFalse(queue.offer(pair)); //One slot left.
+        assertEquals(3, queue.getDepth());
+        assertEquals(2, queue.getRejected());
+
+        assertEquals(single, queue.poll());
+        assertTrue(queue.offer(pair));
+        assertEquals(4, queue.getDepth());
+        assertEquals(single, queue.poll());
+        assertEquals(single, queue.poll());
+        assertEquals(first, queue.poll());
+        assertEquals(second, queue.poll());
+    }
+}
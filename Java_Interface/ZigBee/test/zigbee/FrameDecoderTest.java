@@ -0,0 +1,155 @@
+package zigbee;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/*
+ * API mode 1 framing.  Every stream is fed whole, cut once and cut twice at
+ * every offset, through byte arrays and direct buffers, so the in place fast
+ * path, the state machine for frames split across reads and the resync of
+ * a frame whose delimiter was noise all see the same bytes.
+ */
+public class FrameDecoderTest {
+
+    private static final byte[] SAMPLE = {(byte)0x92, 0x00, 0x13, (byte)0xA2, 0x00, 0x40,
+            0x00, 0x00, 0x01, (byte)0xFF, (byte)0xFE, 0x01, 0x01, 0x1C, (byte)0xF0, 0x0F,
+            0x00, 0x10, 0x02, 0x00, 0x01, (byte)0xFF, 0x00, 0x7E, 0x03, (byte)0xFF};
+    private static final byte[] STATUS = {(byte)0x8A, 0x06};
+
+    @Test(timeout = 20000)
+    public void framesSplitAtEveryOffsetAreReassembled() {
+        byte[] stream = concat(frame(SAMPLE), frame(STATUS), frame(SAMPLE));
+
+        for(Result r : decodeEverySplit(stream)) {
+            r.assertFrames(SAMPLE, STATUS, SAMPLE);
+            assertEquals(r.cuts, 0, r.decoder.getChecksumErrors());
+            assertEquals(r.cuts, 0, r.decoder.getDiscardedBytes());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void delimitersInsideTheLengthAndDataAreData() {
+        byte[] data = new byte[0x7E]; //Length field 0x00 0x7E.
+        Arrays.fill(data, FrameDecoder.START_DELIMITER);
+        data[0] = (byte)0x90;
+        byte[] stream = concat(frame(data), frame(STATUS));
+
+        for(Result r : decodeEverySplit(stream)) {
+            r.assertFrames(data, STATUS);
+            assertEquals(r.cuts, 0, r.decoder.getLengthErrors());
+            assertEquals(r.cuts, 0, r.decoder.getChecksumErrors());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void noiseDelimiterWithAnImpossibleLengthIsSkipped() {
+        //0x7E 0x7E 0x00 reads as length 0x7E00 until the decoder moves on a byte.
+        byte[] stream = concat(new byte[] {0x55, FrameDecoder.START_DELIMITER}, frame(SAMPLE));
+
+        for(Result r : decodeEverySplit(stream)) {
+            r.assertFrames(SAMPLE);
+            assertEquals(r.cuts, 1, r.decoder.getLengthErrors());
+            assertEquals(r.cuts, 1, r.decoder.getDiscardedBytes());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void badChecksumIsFollowedByTheNextFrame() {
+        byte[] bad = frame(SAMPLE);
+        bad[bad.length - 1] ^= 0x01;
+        byte[] stream = concat(bad, frame(STATUS));
+
+        for(Result r : decodeEverySplit(stream)) {
+            r.assertFrames(STATUS);
+            assertEquals(r.cuts, 1, r.decoder.getChecksumErrors());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void frameSwallowedByANoiseDelimiterIsFoundAgain() {
+        //The noise claims four bytes of data, the real frame's delimiter, length
+        //and type, and its status byte as the checksum.  The resync hunts through
+        //them again and finds the real frame, wherever the reads were cut.
+        byte[] stream = concat(new byte[] {FrameDecoder.START_DELIMITER, 0x00, 0x04},
+                frame(STATUS), frame(SAMPLE));
+
+        for(Result r : decodeEverySplit(stream)) {
+            r.assertFrames(STATUS, SAMPLE);
+            assertEquals(r.cuts, 1, r.decoder.getChecksumErrors());
+            assertEquals(r.cuts, 0, r.decoder.getLengthErrors());
+        }
+    }
+
+/******************************************************************************************/
+
+    private static byte[] frame(byte[] data) {
+        byte[] wire = new byte[FrameEncoder.maxEncodedLength(data.length)];
+        int length = FrameEncoder.encode(data, 0, data.length, false, wire, 0);
+        return Arrays.copyOf(wire, length);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for(byte[] part : parts)
+            length += part.length;
+
+        byte[] all = new byte[length];
+        int n = 0;
+        for(byte[] part : parts) {
+            System.arraycopy(part, 0, all, n, part.length);
+            n += part.length;
+        }
+        return all;
+    }
+
+    //Decode a stream in one, two and three reads, cut at every pair of offsets.
+    private static List<Result> decodeEverySplit(byte[] stream) {
+        List<Result> results = new ArrayList<Result>();
+        for(int direct = 0; direct < 2; direct++)
+            for(int first = 0; first <= stream.length; first++)
+                for(int second = first; second <= stream.length; second++)
+                    results.add(new Result(stream, first, second, direct != 0));
+        return results;
+    }
+
+    static class Result implements FrameDecoder.Listener {
+
+        final FrameDecoder decoder = new FrameDecoder(this);
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        final String cuts;
+
+        Result(byte[] stream, int first, int second, boolean direct) {
+            cuts = "cut at " + first + " and " + second + (direct ? " direct" : "");
+            feed(stream, 0, first, direct);
+            feed(stream, first, second - first, direct);
+            feed(stream, second, stream.length - second, direct);
+        }
+
+        private void feed(byte[] stream, int offset, int length, boolean direct) {
+            if(!direct) {
+                decoder.decode(stream, offset, length);
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            buffer.put(stream, offset, length).flip();
+            decoder.decode(buffer);
+            assertEquals(cuts, 0, buffer.remaining());
+        }
+
+        public void frameDecoded(byte[] frame, int offset, int length) {
+            frames.add(Arrays.copyOfRange(frame, offset, offset + length));
+        }
+
+        void assertFrames(byte[]... expected) {
+            assertEquals(cuts, expected.length, frames.size());
+            for(int i = 0; i < expected.length; i++)
+                assertArrayEquals(cuts, expected[i], frames.get(i));
+            assertEquals(cuts, expected.length, decoder.getFramesDecoded());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package zigbee;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/*
+ * API mode 2 round trips.  Frames carrying each byte that must be escaped
+ * in the length, the data and the checksum are encoded and decoded again,
+ * cut into two reads at every offset so an escape is also split from the
+ * byte it escapes.
+ */
+public class FrameEncoderTest {
+
+    private static final byte[] SPECIAL = {FrameDecoder.ESCAPE, FrameDecoder.START_DELIMITER,
+            FrameDecoder.XON, FrameDecoder.XOFF};
+
+    @Test(timeout = 20000)
+    public void escapedFramesSurviveEveryCut() {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        for(byte special : SPECIAL) {
+            frames.add(new byte[] {(byte)0x90, special, 0x01, special, special});
+            frames.add(withChecksum(special & 0xff));
+            byte[] data = new byte[special & 0xff]; //Escaped length byte.
+            data[0] = (byte)0x90;
+            frames.add(data);
+        }
+
+        for(byte[] data : frames) {
+            byte[] wire = encode(data);
+            assertEscaped(wire);
+
+            for(int cut = 0; cut <= wire.length; cut++) {
+                for(int direct = 0; direct < 2; direct++) {
+                    Collector c = new Collector();
+                    c.feed(wire, 0, cut, direct != 0);
+                    c.feed(wire, cut, wire.length - cut, direct != 0);
+                    assertEquals("cut at " + cut, 1, c.frames.size());
+                    assertArrayEquals("cut at " + cut, data, c.frames.get(0));
+                    assertEquals(0, c.decoder.getChecksumErrors());
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void unescapedDelimiterInsideAFrameTruncatesIt() {
+        byte[] first = encode(new byte[] {(byte)0x90, 0x01, 0x02, 0x03, 0x04, 0x05});
+        byte[] second = encode(new byte[] {(byte)0x8A, FrameDecoder.START_DELIMITER});
+
+        //Every prefix of the first frame that has got past its delimiter.
+        for(int cut = 1; cut < first.length; cut++) {
+            byte[] stream = new byte[cut + second.length];
+            System.arraycopy(first, 0, stream, 0, cut);
+            System.arraycopy(second, 0, stream, cut, second.length);
+
+            Collector c = new Collector();
+            c.feed(stream, 0, stream.length, false);
+            assertEquals("cut at " + cut, 1, c.frames.size());
+            assertArrayEquals(new byte[] {(byte)0x8A, FrameDecoder.START_DELIMITER},
+                    c.frames.get(0));
+            assertEquals("cut at " + cut, 1, c.decoder.getTruncatedFrames());
+            assertEquals(0, c.decoder.getChecksumErrors());
+        }
+    }
+
+/******************************************************************************************/
+
+    private static byte[] encode(byte[] data) {
+        byte[] wire = new byte[FrameEncoder.maxEncodedLength(data.length)];
+        int length = FrameEncoder.encode(data, 0, data.length, true, wire, 0);
+        return Arrays.copyOf(wire, length);
+    }
+
+    //Only the delimiter is sent as is, every other special byte follows an escape.
+    private static void assertEscaped(byte[] wire) {
+        assertEquals(FrameDecoder.START_DELIMITER, wire[0]);
+        for(int i = 1; i < wire.length; i++) {
+            assertFalse("unescaped byte at " + i, isSpecial(wire[i])
+                    && wire[i] != FrameDecoder.ESCAPE);
+            if(wire[i] == FrameDecoder.ESCAPE) {
+                i++;
+                assertTrue("needless escape at " + i, i < wire.length
+                        && isSpecial((byte)(wire[i] ^ FrameDecoder.ESCAPE_XOR)));
+            }
+        }
+    }
+
+    private static boolean isSpecial(byte b) {
+        for(byte special : SPECIAL)
+            if(b == special)
+                return true;
+        return false;
+    }
+
+    //A two byte frame whose checksum is the given byte.
+    private static byte[] withChecksum(int checksum) {
+        byte[] data = {(byte)0x8A, 0};
+        data[1] = (byte)(0xFF - checksum - 0x8A);
+        assertEquals(checksum, FrameEncoder.checksum(data, 0, data.length) & 0xff);
+        return data;
+    }
+
+    static class Collector implements FrameDecoder.Listener {
+
+        final FrameDecoder decoder = new FrameDecoder(this);
+        final List<byte[]> frames = new ArrayList<byte[]>();
+
+        Collector() {
+            decoder.setEscaped(true);
+        }
+
+        void feed(byte[] stream, int offset, int length, boolean direct) {
+            if(!direct) {
+                decoder.decode(stream, offset, length);
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            buffer.put(stream, offset, length).flip();
+            decoder.decode(buffer);
+        }
+
+        public void frameDecoded(byte[] frame, int offset, int length) {
+            frames.add(Arrays.copyOfRange(frame, offset, offset + length));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package zigbee;
+
+import static org.junit.Assert.*;
+import static zigbee.XBee.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/*
+ * Frame IDs, retries and timeouts of remote AT commands.  The engine talks
+ * to a MemoryTransport, every 0x17 it writes is decoded again and 0x97
+ * responses are injected by hand, so nothing answers unless the test does.
+ */
+public class RemoteAtRequestsTest {
+
+    private static final long SERIAL = CoordinatorSimulator.FIRST_SERIAL;
+    private static final int NET_ADDRESS = 0x1234;
+
+    @Test(timeout = 20000)
+    public void onlyTheMatchingResponseCompletesTheFuture() throws Exception {
+        Coordinator c = new Coordinator(10000, 2);
+        CompletableFuture<byte[]> future = c.engine.sendRemoteAtAsync(SERIAL, NET_ADDRESS,
+                RAT_OPTION_APPLY_CHANGES, 'D', '4', 5);
+        byte[] request = c.await(1).get(0);
+        assertRequest(request);
+        int id = request[RAT_FRAME_ID] & 0xff;
+
+        //Another frame ID, another command and another node are all ignored.
+        c.respond(id % RemoteAtRequests.MAX_IN_FLIGHT + 1, SERIAL, '4', 0);
+        c.respond(id, SERIAL, '5', 0);
+        c.respond(id, SERIAL + 1, '4', 0);
+        c.awaitResponses(3);
+        assertFalse(future.isDone());
+        assertEquals(1, c.engine.getCommandsInFlight());
+
+        c.respond(id, SERIAL, '4', RemoteAtException.OK, 0x05);
+        assertArrayEquals(new byte[] {0x05}, future.get(5, TimeUnit.SECONDS));
+        assertEquals(0, c.engine.getCommandsInFlight());
+        assertEquals(1, c.engine.getMetrics().getCommandRoundTrip().getCount());
+        c.close();
+    }
+
+    @Test(timeout = 20000)
+    public void errorStatusCompletesExceptionally() throws Exception {
+        Coordinator c = new Coordinator(10000, 2);
+        CompletableFuture<byte[]> future = c.engine.sendRemoteAtAsync(SERIAL, NET_ADDRESS,
+                RAT_OPTION_APPLY_CHANGES, 'D', '4', 5);
+        int id = c.await(1).get(0)[RAT_FRAME_ID] & 0xff;
+
+        c.respond(id, SERIAL, '4', RemoteAtException.INVALID_PARAMETER);
+        assertEquals(RemoteAtException.INVALID_PARAMETER, failure(future).getStatus());
+        c.close();
+    }
+
+    @Test(timeout = 20000)
+    public void timeoutSendsAFreshFrameThatCanBeAnswered() throws Exception {
+        Coordinator c = new Coordinator(200, 2);
+        CompletableFuture<byte[]> future = c.engine.sendRemoteAtAsync(SERIAL, NET_ADDRESS,
+                RAT_OPTION_APPLY_CHANGES, 'D', '4', 5);
+
+        //The retry is a whole frame of its own with the same ID, not a resent buffer.
+        List<byte[]> sent = c.await(2);
+        assertRequest(sent.get(1));
+        assertArrayEquals(sent.get(0), sent.get(1));
+        assertFalse(future.isDone());
+
+        c.respond(sent.get(1)[RAT_FRAME_ID] & 0xff, SERIAL, '4', RemoteAtException.OK);
+        assertArrayEquals(new byte[0], future.get(5, TimeUnit.SECONDS));
+        assertEquals(0, c.engine.getCommandsInFlight());
+        c.close();
+    }
+
+    @Test(timeout = 20000)
+    public void exhaustedRetriesFailWithATimeout() throws Exception {
+        Coordinator c = new Coordinator(50, 2);
+        CompletableFuture<byte[]> future = c.engine.sendRemoteAtAsync(SERIAL, NET_ADDRESS,
+                RAT_OPTION_APPLY_CHANGES, 'D', '4', 5);
+
+        assertEquals(RemoteAtException.TIMEOUT, failure(future).getStatus());
+        List<byte[]> sent = c.await(3); //The first attempt and two retries.
+        for(byte[] request : sent)
+            assertArrayEquals(sent.get(0), request);
+        assertEquals(0, c.engine.getCommandsInFlight());
+
+        //No fourth attempt follows, and a late answer changes nothing.
+        Thread.sleep(200);
+        assertEquals(3, c.await(3).size());
+        c.respond(sent.get(0)[RAT_FRAME_ID] & 0xff, SERIAL, '4', RemoteAtException.OK);
+        c.awaitResponses(1);
+        assertEquals(0, c.engine.getMetrics().getCommandRoundTrip().getCount());
+        c.close();
+    }
+
+/******************************************************************************************/
+
+    private static void assertRequest(byte[] request) {
+        assertEquals(REMOTE_AT_COMMAND_REQUEST_FRAME, request[RAT_FRAME_TYPE] & 0xff);
+        assertTrue(request[RAT_FRAME_ID] != 0);
+        assertEquals(NET_ADDRESS, (request[RAT_DEST_NET_ADR] & 0xff) << 8
+                | request[RAT_DEST_NET_ADR + 1] & 0xff);
+        assertEquals('D', request[RAT_COMMAND]);
+        assertEquals('4', request[RAT_COMMAND + 1]);
+        assertEquals(5, request[RAT_PARAMETER]);
+        assertEquals(RAT_PARAMETER + 1, request.length);
+    }
+
+    private static RemoteAtException failure(CompletableFuture<byte[]> future)
+            throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof RemoteAtException);
+            return (RemoteAtException)e.getCause();
+        }
+        fail();
+        return null;
+    }
+
+    //An engine on a MemoryTransport, with the frames it wrote decoded again.
+    static class Coordinator extends FrameAdapter implements FrameDecoder.Listener {
+
+        final ZigBeeEngine engine;
+        final MemoryTransport transport = new MemoryTransport();
+        final FrameDecoder decoder = new FrameDecoder(this);
+        final List<byte[]> written = new ArrayList<byte[]>();
+        private int responses; //Guarded by this.
+
+        Coordinator(long timeoutMillis, int retries) throws Exception {
+            Path directory = Files.createTempDirectory("remoteat");
+            directory.toFile().deleteOnExit();
+            engine = new ZigBeeEngine(directory.resolve("trace").toString());
+            engine.setCommandTimeout(timeoutMillis, retries);
+            engine.addFrameListener(this);
+            engine.open(transport, false);
+        }
+
+        //Wait until at least count frames have been written, and return them all.
+        List<byte[]> await(int count) throws InterruptedException {
+            while(true) {
+                byte[] bytes = transport.takeWritten();
+                decoder.decode(bytes, 0, bytes.length);
+                if(written.size() >= count)
+                    return written;
+                Thread.sleep(5);
+            }
+        }
+
+        //Inject a 0x97 response as the coordinator would pass it on.
+        void respond(int id, long serial, char c2, int status, int... data) {
+            byte[] frame = new byte[RAT_RESPONSE_DATA + data.length];
+            frame[0] = (byte)REMOTE_AT_COMMAND_RESPONSE_FRAME;
+            frame[RAT_RESPONSE_FRAME_ID] = (byte)id;
+            for(int i = 0; i < 8; i++)
+                frame[RAT_RESPONSE_SER + i] = (byte)(serial >> 56 - 8 * i);
+            frame[RAT_RESPONSE_NET_ADR] = (byte)(NET_ADDRESS >> 8);
+            frame[RAT_RESPONSE_NET_ADR + 1] = (byte)NET_ADDRESS;
+            frame[RAT_RESPONSE_COMMAND] = 'D';
+            frame[RAT_RESPONSE_COMMAND + 1] = (byte)c2;
+            frame[RAT_RESPONSE_STATUS] = (byte)status;
+            for(int i = 0; i < data.length; i++)
+                frame[RAT_RESPONSE_DATA + i] = (byte)data[i];
+
+            byte[] wire = new byte[FrameEncoder.maxEncodedLength(frame.length)];
+            int length = FrameEncoder.encode(frame, 0, frame.length, false, wire, 0);
+            transport.inject(wire, 0, length);
+        }
+
+        //Wait until the reader thread has handled count responses in all.
+        synchronized void awaitResponses(int count) throws InterruptedException {
+            while(responses < count)
+                wait();
+        }
+
+        public synchronized void remoteAtResponse(RemoteAtResponse response) {
+            responses++;
+            notifyAll();
+        }
+
+        public void frameDecoded(byte[] frame, int offset, int length) {
+            written.add(Arrays.copyOfRange(frame, offset, offset + length));
+        }
+
+        void close() {
+            engine.close();
+        }
+    }
+}